@@ -0,0 +1,656 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.log4j.Logger;
+import org.pvalsecc.concurrent.VirtualThreadFactory;
+
+/**
+ * A minimal non-blocking HTTP client. A single thread multiplexes all the
+ * connections with a {@link Selector}, so hundreds of requests can wait for
+ * their server without keeping hundreds of threads busy.
+ * <p/>
+ * Only plain HTTP GET requests without proxy are supported. The requests are
+ * sent as HTTP/1.0 with "Connection: close", so the end of the body is given
+ * by the Content-Length header or by the end of the connection. A connection
+ * closed before the end of the Content-Length is reported as a failure.
+ * Redirections are not followed, the listener gets the 3xx response.
+ * <p/>
+ * The host names are resolved in other threads, so that a slow DNS doesn't
+ * stall the transfers in progress.
+ * <p/>
+ * The listeners are called from the I/O thread and must return quickly.
+ */
+public class AsyncHttpClient {
+    public static final Logger LOGGER = Logger.getLogger(AsyncHttpClient.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How often (in ms) the timeouts are checked.
+     */
+    private static final long TIMEOUT_CHECK_INTERVAL = 500L;
+
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    /**
+     * Some servers end their lines with LF only.
+     */
+    private static final byte[] LENIENT_HEADER_END = {'\n', '\n'};
+
+    private final int maxConnections;
+    private final int maxConnectionsPerHost;
+    private final int connectionTimeout;
+    private final int socketTimeout;
+
+    private final Selector selector;
+    private final Thread thread;
+
+    /**
+     * Resolves the host names (blocking calls).
+     */
+    private final ExecutorService resolver = Executors.newCachedThreadPool(new VirtualThreadFactory("asyncHttpResolver"));
+
+    /**
+     * The requests not yet started. Protected by itself.
+     */
+    private final LinkedList<Exchange> waiting = new LinkedList<Exchange>();
+
+    /**
+     * The requests whose host name has been resolved, to be connected by the
+     * I/O thread. Protected by {@link #waiting}.
+     */
+    private final List<Exchange> resolved = new ArrayList<Exchange>();
+
+    /**
+     * The requests having a connection. Used only by the I/O thread.
+     */
+    private final Set<Exchange> running = new HashSet<Exchange>();
+
+    /**
+     * Number of connections by host and port. Used only by the I/O thread.
+     */
+    private final Map<String, Integer> connectionsPerHost = new HashMap<String, Integer>();
+
+    private volatile boolean stopped = false;
+
+    /**
+     * @param maxConnections        Max number of connections opened at the same time.
+     * @param maxConnectionsPerHost Max number of connections opened at the same time to one host.
+     * @param connectionTimeout     Timeout in ms for establishing a connection (0 for none).
+     * @param socketTimeout         Timeout in ms without receiving anything (0 for none).
+     */
+    public AsyncHttpClient(int maxConnections, int maxConnectionsPerHost, int connectionTimeout, int socketTimeout) throws IOException {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.connectionTimeout = connectionTimeout;
+        this.socketTimeout = socketTimeout;
+        selector = Selector.open();
+        thread = new Thread(new Runnable() {
+            public void run() {
+                loop();
+            }
+        }, "asyncHttpClient");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a GET request. Returns right away, the listener is called once
+     * the response is received or the request failed.
+     *
+     * @return A handle to abort the request.
+     */
+    public Request execute(URI uri, Map<String, String> headers, Listener listener) {
+        return execute(uri, headers, 0L, listener);
+    }
+
+    /**
+     * Same as {@link #execute(URI, Map, Listener)}, but the request fails with
+     * a {@link DeadlineExceededException} if it is not done before the given
+     * deadline (System.currentTimeMillis(), 0 for none).
+     */
+    public Request execute(URI uri, Map<String, String> headers, long deadline, Listener listener) {
+        final Exchange exchange = new Exchange(uri, headers, deadline, listener);
+        synchronized (waiting) {
+            if (!stopped) {
+                waiting.add(exchange);
+                selector.wakeup();
+                return exchange;
+            }
+        }
+        exchange.fail(new IOException("The HTTP client is stopped"));
+        return exchange;
+    }
+
+    /**
+     * Stop the I/O thread. The requests not yet finished fail.
+     */
+    public void stop() {
+        synchronized (waiting) {
+            stopped = true;
+        }
+        selector.wakeup();
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                //retry
+            }
+        }
+    }
+
+    private void loop() {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try {
+            while (!stopped) {
+                startWaiting();
+                connectResolved();
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final Exchange exchange = (Exchange) key.attachment();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isConnectable()) {
+                            exchange.connect(key);
+                        } else if (key.isWritable()) {
+                            exchange.write(key);
+                        } else if (key.isReadable() && exchange.read(buffer)) {
+                            finish(exchange, null);
+                        }
+                    } catch (IOException e) {
+                        finish(exchange, e);
+                    }
+                }
+                checkTimeouts();
+            }
+        } catch (IOException e) {
+            LOGGER.error("The asynchronous HTTP client failed", e);
+        } finally {
+            final List<Exchange> remaining = new ArrayList<Exchange>(running);
+            synchronized (waiting) {
+                stopped = true;
+                remaining.addAll(waiting);
+                waiting.clear();
+                resolved.clear();
+            }
+            resolver.shutdownNow();
+            running.clear();
+            for (Exchange exchange : remaining) {
+                exchange.close();
+                exchange.fail(new IOException("The HTTP client is stopped"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.warn("Cannot close the selector", e);
+            }
+        }
+    }
+
+    /**
+     * Resolve the host names of the waiting requests, as far as the limits
+     * allow it. The connections are opened by {@link #connectResolved()}.
+     */
+    private void startWaiting() {
+        final List<Exchange> toStart = new ArrayList<Exchange>();
+        synchronized (waiting) {
+            final Iterator<Exchange> it = waiting.iterator();
+            while (it.hasNext() && running.size() + toStart.size() < maxConnections) {
+                final Exchange exchange = it.next();
+                final Integer nb = connectionsPerHost.get(exchange.hostKey);
+                if (nb == null || nb < maxConnectionsPerHost) {
+                    it.remove();
+                    toStart.add(exchange);
+                    connectionsPerHost.put(exchange.hostKey, nb == null ? 1 : nb + 1);
+                }
+            }
+        }
+        for (final Exchange exchange : toStart) {
+            running.add(exchange);
+            exchange.startResolving();
+            resolver.execute(new Runnable() {
+                public void run() {
+                    try {
+                        exchange.resolve();
+                    } finally {
+                        synchronized (waiting) {
+                            resolved.add(exchange);
+                        }
+                        selector.wakeup();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Open the connections of the requests whose host name has been
+     * resolved.
+     */
+    private void connectResolved() {
+        final List<Exchange> toConnect;
+        synchronized (waiting) {
+            if (resolved.isEmpty()) {
+                return;
+            }
+            toConnect = new ArrayList<Exchange>(resolved);
+            resolved.clear();
+        }
+        for (Exchange exchange : toConnect) {
+            if (!running.contains(exchange)) {
+                //timed out or aborted while resolving
+                continue;
+            }
+            try {
+                exchange.open();
+            } catch (IOException e) {
+                finish(exchange, e);
+            } catch (RuntimeException e) {
+                //UnresolvedAddressException, UnsupportedAddressTypeException, ...
+                finish(exchange, new IOException("Cannot connect to " + exchange.hostKey + ": " + e));
+            }
+        }
+    }
+
+    private void checkTimeouts() {
+        final long now = System.currentTimeMillis();
+        final List<Exchange> timedOut = new ArrayList<Exchange>();
+        final List<Exchange> late = new ArrayList<Exchange>();
+        final List<Exchange> aborted = new ArrayList<Exchange>();
+        for (Exchange exchange : running) {
+            if (exchange.aborted) {
+                aborted.add(exchange);
+            } else if (exchange.hasPassed(exchange.requestDeadline, now)) {
+                late.add(exchange);
+            } else if (exchange.hasPassed(exchange.deadline, now)) {
+                timedOut.add(exchange);
+            }
+        }
+        for (Exchange exchange : timedOut) {
+            finish(exchange, new SocketTimeoutException("Timeout while reading " + exchange.uri));
+        }
+        for (Exchange exchange : late) {
+            finish(exchange, new DeadlineExceededException("Deadline exceeded while reading " + exchange.uri));
+        }
+        for (Exchange exchange : aborted) {
+            finish(exchange, new InterruptedIOException("Aborted while reading " + exchange.uri));
+        }
+
+        final List<Exchange> lateWaiting = new ArrayList<Exchange>();
+        final List<Exchange> abortedWaiting = new ArrayList<Exchange>();
+        synchronized (waiting) {
+            final Iterator<Exchange> it = waiting.iterator();
+            while (it.hasNext()) {
+                final Exchange exchange = it.next();
+                if (exchange.aborted) {
+                    it.remove();
+                    abortedWaiting.add(exchange);
+                } else if (exchange.hasPassed(exchange.requestDeadline, now)) {
+                    it.remove();
+                    lateWaiting.add(exchange);
+                }
+            }
+        }
+        for (Exchange exchange : lateWaiting) {
+            exchange.fail(new DeadlineExceededException("Deadline exceeded while waiting to read " + exchange.uri));
+        }
+        for (Exchange exchange : abortedWaiting) {
+            exchange.fail(new InterruptedIOException("Aborted while waiting to read " + exchange.uri));
+        }
+    }
+
+    /**
+     * Close the connection and call the listener.
+     *
+     * @param error Null if the response was received.
+     */
+    private void finish(Exchange exchange, IOException error) {
+        if (!running.remove(exchange)) {
+            return;
+        }
+        final int nb = connectionsPerHost.get(exchange.hostKey);
+        if (nb <= 1) {
+            connectionsPerHost.remove(exchange.hostKey);
+        } else {
+            connectionsPerHost.put(exchange.hostKey, nb - 1);
+        }
+        exchange.close();
+        if (error != null) {
+            exchange.fail(error);
+        } else {
+            exchange.complete();
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Receives the outcome of a request, in the I/O thread.
+     */
+    public static interface Listener {
+        /**
+         * @param headers The response headers, by lower case name.
+         */
+        void completed(int statusCode, String statusText, Map<String, String> headers, byte[] body);
+
+        void failed(IOException e);
+    }
+
+    /**
+     * Handle on a queued request.
+     */
+    public static interface Request {
+        /**
+         * Close the connection (or forget the request if it was still
+         * waiting for one). The listener is called with an
+         * {@link InterruptedIOException}, unless the request was already
+         * finished.
+         */
+        void abort();
+    }
+
+    /**
+     * A request and its response.
+     */
+    private class Exchange implements Request {
+        private final URI uri;
+        private final String hostKey;
+        private final ByteBuffer request;
+        private final Listener listener;
+        private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private SocketChannel channel;
+
+        /**
+         * Set by {@link #resolve()}, in the resolver thread.
+         */
+        private volatile InetSocketAddress address = null;
+
+        /**
+         * When the current step times out, 0 for never.
+         */
+        private long deadline = 0L;
+
+        /**
+         * When the whole request must be done, 0 for never.
+         */
+        private final long requestDeadline;
+
+        /**
+         * Position of the body in the received data, -1 while the headers are not received.
+         */
+        private int bodyStart = -1;
+        private int statusCode;
+        private String statusText;
+        private final Map<String, String> responseHeaders = new HashMap<String, String>();
+
+        /**
+         * Set by {@link #abort()}, acted upon by the I/O thread.
+         */
+        private volatile boolean aborted = false;
+
+        public Exchange(URI uri, Map<String, String> headers, long requestDeadline, Listener listener) {
+            this.uri = uri;
+            this.requestDeadline = requestDeadline;
+            this.listener = listener;
+            final int port = uri.getPort() > 0 ? uri.getPort() : 80;
+            hostKey = uri.getHost() + ":" + port;
+
+            final StringBuilder text = new StringBuilder("GET ");
+            text.append(uri.getRawPath() == null || uri.getRawPath().length() == 0 ? "/" : uri.getRawPath());
+            if (uri.getRawQuery() != null) {
+                text.append('?').append(uri.getRawQuery());
+            }
+            text.append(" HTTP/1.0\r\n");
+            text.append("Host: ").append(uri.getHost());
+            if (uri.getPort() > 0) {
+                text.append(':').append(uri.getPort());
+            }
+            text.append("\r\nConnection: close\r\n");
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (!header.getKey().equalsIgnoreCase("Host") && !header.getKey().equalsIgnoreCase("Connection")) {
+                    text.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+            }
+            text.append("\r\n");
+            try {
+                request = ByteBuffer.wrap(text.toString().getBytes("ISO-8859-1"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * The connection timeout includes the name resolution.
+         */
+        public void startResolving() {
+            deadline = connectionTimeout > 0 ? System.currentTimeMillis() + connectionTimeout : 0L;
+        }
+
+        /**
+         * Blocking, must not be called from the I/O thread.
+         */
+        public void resolve() {
+            final int port = uri.getPort() > 0 ? uri.getPort() : 80;
+            address = new InetSocketAddress(uri.getHost(), port);
+        }
+
+        public void open() throws IOException {
+            if (address == null || address.isUnresolved()) {
+                throw new UnknownHostException("Cannot resolve the host of " + uri);
+            }
+            if (LOGGER.isDebugEnabled()) LOGGER.debug("connecting for: " + uri);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(address)) {
+                channel.register(selector, SelectionKey.OP_WRITE, this);
+                touch();
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        public void connect(SelectionKey key) throws IOException {
+            if (channel.finishConnect()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                touch();
+            }
+        }
+
+        public void write(SelectionKey key) throws IOException {
+            channel.write(request);
+            touch();
+            if (!request.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * @return True when the whole response has been received.
+         */
+        public boolean read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            final int nb = channel.read(buffer);
+            if (nb < 0) {
+                return true;
+            }
+            received.write(buffer.array(), 0, nb);
+            touch();
+            if (bodyStart < 0) {
+                parseHeaders();
+            }
+            if (bodyStart >= 0) {
+                final String length = responseHeaders.get("content-length");
+                if (length != null) {
+                    try {
+                        return received.size() - bodyStart >= Long.parseLong(length.trim());
+                    } catch (NumberFormatException e) {
+                        //read until the end of the connection
+                    }
+                }
+            }
+            return false;
+        }
+
+        public boolean hasPassed(long time, long now) {
+            return time > 0 && time < now;
+        }
+
+        private void touch() {
+            deadline = socketTimeout > 0 ? System.currentTimeMillis() + socketTimeout : 0L;
+        }
+
+        private void parseHeaders() throws IOException {
+            final byte[] data = received.toByteArray();
+            int end = indexOf(data, HEADER_END);
+            int separatorLength = HEADER_END.length;
+            final int lenientEnd = indexOf(data, LENIENT_HEADER_END);
+            if (lenientEnd >= 0 && (end < 0 || lenientEnd < end)) {
+                end = lenientEnd;
+                separatorLength = LENIENT_HEADER_END.length;
+            }
+            if (end < 0) {
+                return;
+            }
+            final String[] lines = new String(data, 0, end, "ISO-8859-1").split("\r?\n");
+            final String[] status = lines[0].split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Invalid HTTP response from " + uri + ": " + lines[0]);
+            }
+            try {
+                statusCode = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid HTTP response from " + uri + ": " + lines[0]);
+            }
+            statusText = status.length > 2 ? status[2] : "";
+            for (int i = 1; i < lines.length; i++) {
+                final int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    final String name = lines[i].substring(0, colon).trim().toLowerCase();
+                    if (!responseHeaders.containsKey(name)) {
+                        responseHeaders.put(name, lines[i].substring(colon + 1).trim());
+                    }
+                }
+            }
+            bodyStart = end + separatorLength;
+        }
+
+        public void abort() {
+            aborted = true;
+            selector.wakeup();
+        }
+
+        public void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Cannot close the connection for " + uri, e);
+                }
+            }
+        }
+
+        public void complete() {
+            try {
+                if (bodyStart < 0) {
+                    parseHeaders();
+                    if (bodyStart < 0) {
+                        throw new IOException("Incomplete HTTP response from " + uri);
+                    }
+                }
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            final byte[] data = received.toByteArray();
+            int length = data.length - bodyStart;
+            final String contentLength = responseHeaders.get("content-length");
+            if (contentLength != null) {
+                long expected;
+                try {
+                    expected = Long.parseLong(contentLength.trim());
+                } catch (NumberFormatException e) {
+                    expected = length;
+                }
+                if (length < expected) {
+                    fail(new IOException("Truncated response from " + uri + " (" + length + " bytes received out of " + expected + ")"));
+                    return;
+                }
+                length = (int) expected;
+            }
+            final byte[] body = new byte[length];
+            System.arraycopy(data, bodyStart, body, 0, length);
+            if (LOGGER.isDebugEnabled()) LOGGER.debug("received " + length + " bytes for: " + uri);
+            try {
+                listener.completed(statusCode, statusText, responseHeaders, body);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error while handling the response of " + uri, e);
+            }
+        }
+
+        public void fail(IOException error) {
+            try {
+                listener.failed(error);
+            } catch (RuntimeException e) {
+                LOGGER.error("Error while handling the failure of " + uri, e);
+            }
+        }
+    }
+}
@@ -34,6 +34,10 @@ public interface Constants {
      * The output filename in the json spec file.
      */
     String OUTPUT_FILENAME_KEY = "outputFilename";
+    /**
+     * The priority class in the json spec file.
+     */
+    String JSON_PRIORITY_KEY = "priority";
     public interface ImagePlaceHolderConstants {
         String THROW = "throw";
         String DEFAULT = "default";
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print;
+
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the number of requests running at the same time on each host. The
+ * number of threads fetching the map data can then be raised (see the
+ * "virtualThreads" configuration) without hammering the servers.
+ * <p/>
+ * In adaptive mode, the limit of a host follows an AIMD scheme: it goes up
+ * by one for each "limit" requests answered quickly and is halved when the
+ * server is slow or returns errors (5xx, 429, timeouts), without going above
+ * the configured max of the host.
+ * <p/>
+ * The waiting threads don't use monitors, to not pin the carrier threads of
+ * the virtual threads.
+ */
+public class HostLimiter {
+    public static final Logger LOGGER = Logger.getLogger(HostLimiter.class);
+
+    private final int defaultMax;
+    private final Map<String, Integer> maxPerHost;
+    private final boolean adaptive;
+    private final int minLimit;
+
+    /**
+     * Requests slower than that (in ms) are considered as a sign of overload
+     * in adaptive mode.
+     */
+    private final long latencyThreshold;
+
+    /**
+     * Number of latencies kept by host.
+     */
+    private static final int NB_LATENCIES = 100;
+
+    /**
+     * Min number of latencies needed to compute a percentile.
+     */
+    private static final int MIN_LATENCIES = 20;
+
+    private final ConcurrentMap<String, HostState> states = new ConcurrentHashMap<String, HostState>();
+
+    /**
+     * Fixed limit, the same for all the hosts.
+     */
+    public HostLimiter(int defaultMax) {
+        this(defaultMax, Collections.<String, Integer>emptyMap(), false, 1, 0L);
+    }
+
+    /**
+     * @param defaultMax       The max for the hosts not in maxPerHost.
+     * @param maxPerHost       The max by host name (lower case).
+     * @param adaptive         If true, the limits are adapted to how the servers behave.
+     * @param minLimit         The lowest limit in adaptive mode.
+     * @param latencyThreshold Requests slower than that (in ms) reduce the limit in
+     *                         adaptive mode, 0 to look only at the errors.
+     */
+    public HostLimiter(int defaultMax, Map<String, Integer> maxPerHost, boolean adaptive, int minLimit, long latencyThreshold) {
+        this.defaultMax = defaultMax;
+        this.maxPerHost = maxPerHost;
+        this.adaptive = adaptive;
+        this.minLimit = minLimit;
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    /**
+     * Wait until a request can be done on the host of the given URI. Must be
+     * followed by a call to {@link #release(URI, long, boolean)}.
+     */
+    public void acquire(URI uri) throws InterruptedIOException {
+        try {
+            getState(uri).acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting to read " + uri);
+        }
+    }
+
+    /**
+     * @param duration How long the request took (in ms).
+     * @param failure  True if the server returned a 5xx or 429 error or did
+     *                 not answer.
+     */
+    public void release(URI uri, long duration, boolean failure) {
+        final boolean overloaded = failure || (latencyThreshold > 0 && duration > latencyThreshold);
+        getState(uri).release(adaptive, overloaded, failure ? -1L : duration);
+    }
+
+    /**
+     * Take into account a request that was not limited by this class (done
+     * by the {@link AsyncHttpClient}, which has its own limits), for the
+     * latency percentiles and the adaptive limits.
+     *
+     * @param duration How long the request took (in ms).
+     * @param failure  True if the server returned a 5xx or 429 error or did
+     *                 not answer.
+     */
+    public void record(URI uri, long duration, boolean failure) {
+        final boolean overloaded = failure || (latencyThreshold > 0 && duration > latencyThreshold);
+        getState(uri).record(adaptive, overloaded, failure ? -1L : duration);
+    }
+
+    /**
+     * @param percentile Between 1 and 99.
+     * @return The given percentile of the latency (in ms) of the last
+     *         successful requests on the host of the given URI, -1 if not
+     *         enough requests were done yet.
+     */
+    public long getLatencyPercentile(URI uri, int percentile) {
+        return getState(uri).getLatencyPercentile(percentile);
+    }
+
+    /**
+     * @return The current limit for the host of the given URI.
+     */
+    public int getLimit(URI uri) {
+        return getState(uri).getLimit();
+    }
+
+    private HostState getState(URI uri) {
+        final String host = uri.getHost() != null ? uri.getHost().toLowerCase() : "";
+        HostState state = states.get(host);
+        if (state == null) {
+            final Integer max = maxPerHost.get(host);
+            final HostState newState = new HostState(host, max != null ? max : defaultMax);
+            state = states.putIfAbsent(host, newState);
+            if (state == null) {
+                state = newState;
+            }
+        }
+        return state;
+    }
+
+    private class HostState {
+        private final String host;
+        private final int max;
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Signaled when a request is finished or the limit raised.
+         */
+        private final Condition available = lock.newCondition();
+
+        /**
+         * The current limit. Protected by lock.
+         */
+        private double limit;
+
+        /**
+         * Number of requests running. Protected by lock.
+         */
+        private int running = 0;
+
+        /**
+         * When the limit was last reduced. The requests started before were
+         * sent with the old limit, their overload doesn't reduce it again.
+         * Protected by lock.
+         */
+        private long lastDecrease = 0L;
+
+        /**
+         * Circular buffer of the last latencies. Protected by lock.
+         */
+        private final long[] latencies = new long[NB_LATENCIES];
+        private int nbLatencies = 0;
+        private int nextLatency = 0;
+
+        public HostState(String host, int max) {
+            this.host = host;
+            this.max = max;
+            this.limit = max;
+        }
+
+        public void acquire() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (running >= (int) limit) {
+                    available.await();
+                }
+                running++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @param latency The duration of the request, -1 if it failed.
+         */
+        public void release(boolean adapt, boolean overloaded, long latency) {
+            lock.lock();
+            try {
+                running--;
+                update(adapt, overloaded, latency);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Same as {@link #release(boolean, boolean, long)} for a request that
+         * was not counted in {@link #running}.
+         */
+        public void record(boolean adapt, boolean overloaded, long latency) {
+            lock.lock();
+            try {
+                update(adapt, overloaded, latency);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void update(boolean adapt, boolean overloaded, long latency) {
+            if (latency >= 0) {
+                latencies[nextLatency] = latency;
+                nextLatency = (nextLatency + 1) % latencies.length;
+                nbLatencies = Math.min(nbLatencies + 1, latencies.length);
+            }
+            if (adapt) {
+                final long now = System.currentTimeMillis();
+                if (overloaded) {
+                    if (now - lastDecrease > Math.max(latencyThreshold, 1000L)) {
+                        limit = Math.max(minLimit, limit / 2);
+                        lastDecrease = now;
+                        LOGGER.info("Host " + host + " is overloaded, its limit is reduced to " + (int) limit);
+                    }
+                } else if (limit < max) {
+                    limit = Math.min(max, limit + 1.0 / Math.floor(limit));
+                }
+            }
+            available.signalAll();
+        }
+
+        public int getLimit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public long getLatencyPercentile(int percentile) {
+            final long[] sorted;
+            lock.lock();
+            try {
+                if (nbLatencies < MIN_LATENCIES) {
+                    return -1L;
+                }
+                sorted = new long[nbLatencies];
+                System.arraycopy(latencies, 0, sorted, 0, nbLatencies);
+            } finally {
+                lock.unlock();
+            }
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+        }
+    }
+}
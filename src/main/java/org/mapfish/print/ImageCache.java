@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Process wide cache of the content of the small images (legend icons,
+ * logos, external graphics, ...) that are used again and again by the
+ * prints. Contrary to {@link RenderingContext#getTemplateCache()}, it
+ * survives the end of a print.
+ * <p/>
+ * The size is bounded by the sum of the bytes of the cached images. The
+ * least recently used images are removed first.
+ */
+public class ImageCache {
+    public static final Logger LOGGER = Logger.getLogger(ImageCache.class);
+
+    public static final long DEFAULT_MAX_SIZE = 20L * 1024L * 1024L;
+
+    private static final ImageCache INSTANCE = new ImageCache(DEFAULT_MAX_SIZE);
+
+    /**
+     * The cached images, the least recently used first. Protected by this.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(100, 0.75f, true);
+
+    /**
+     * Sum of the size of the cached images. Protected by this.
+     */
+    private long totalSize = 0L;
+
+    private long maxSize;
+
+    /**
+     * True once a configuration asked for a size.
+     */
+    private boolean sizeRequested = false;
+
+    public ImageCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public static ImageCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return The entry (fresh or expired) or null if the image is not cached.
+     */
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        final Entry previous = entries.remove(key);
+        if (previous != null) {
+            totalSize -= previous.data.length;
+        }
+        if (entry.data.length > maxSize) {
+            return;
+        }
+        entries.put(key, entry);
+        totalSize += entry.data.length;
+        evict();
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Called by each configuration. The cache being shared, it takes the
+     * biggest size asked, so that loading one configuration doesn't shrink
+     * the cache of the others.
+     */
+    public synchronized void requestMaxSize(long maxSize) {
+        setMaxSize(sizeRequested ? Math.max(this.maxSize, maxSize) : maxSize);
+        sizeRequested = true;
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalSize = 0L;
+    }
+
+    private void evict() {
+        final Iterator<Entry> it = entries.values().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            totalSize -= it.next().data.length;
+            it.remove();
+        }
+    }
+
+    /**
+     * The same URI can give a different image depending on the headers
+     * (cookies, authentication, ...) and on the configuration (security
+     * strategies, local host forwarding), so they are part of the key.
+     *
+     * @param scope See {@link org.mapfish.print.config.Config#getAccessScope(URI)}, may be null.
+     */
+    public static String getKey(String scope, URI uri, Map<String, String> headers) {
+        final StringBuilder result = new StringBuilder();
+        if (scope != null) {
+            result.append(scope).append('\n');
+        }
+        result.append(uri.toString());
+        if (headers != null && !headers.isEmpty()) {
+            for (Map.Entry<String, String> header : new TreeMap<String, String>(headers).entrySet()) {
+                result.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+            }
+        }
+        return result.toString();
+    }
+
+    /**
+     * The content of an image and what is needed to revalidate it.
+     */
+    public static class Entry {
+        private final byte[] data;
+        private final String etag;
+        private final String lastModified;
+        private volatile long expires;
+
+        /**
+         * @param etag         The value of the ETag header (may be null)
+         * @param lastModified The value of the Last-Modified header (may be null)
+         * @param ttl          How long the entry is fresh (in ms)
+         */
+        public Entry(byte[] data, String etag, String lastModified, long ttl) {
+            this.data = data;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = System.currentTimeMillis() + ttl;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * Called when the server said the content didn't change.
+         */
+        public void refresh(long ttl) {
+            expires = System.currentTimeMillis() + ttl;
+        }
+    }
+}
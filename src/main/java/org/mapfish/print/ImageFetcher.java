@@ -0,0 +1,831 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.log4j.Logger;
+import org.mapfish.print.config.TileRequestsConfig;
+import org.pvalsecc.concurrent.VirtualThreadFactory;
+
+/**
+ * Does the HTTP requests for the images and map tiles.
+ * <p/>
+ * Identical requests (same configuration, same URI and same forwarded
+ * headers) done at the same time, by the same print or by concurrent prints,
+ * are coalesced: only the first one goes to the server, the others wait for
+ * its response.
+ * <p/>
+ * When the configuration has an "asyncHttp" section, the map tiles can be
+ * prefetched with the {@link AsyncHttpClient}, without blocking a thread.
+ * <p/>
+ * The "tileRequests" configuration adds retries, hedged requests and a
+ * deadline for all the requests of a print.
+ */
+public class ImageFetcher {
+    public static final Logger LOGGER = Logger.getLogger(ImageFetcher.class);
+
+    /**
+     * The requests currently running, by key.
+     */
+    private static final ConcurrentMap<String, PendingResponse> IN_FLIGHT =
+            new ConcurrentHashMap<String, PendingResponse>();
+
+    /**
+     * Runs the requests that must not block the thread asking for them (when
+     * there is a deadline or for the hedged requests).
+     */
+    private static final ExecutorService REQUEST_EXECUTOR =
+            Executors.newCachedThreadPool(new VirtualThreadFactory("imageFetcher"));
+
+    /**
+     * Get the given URI.
+     *
+     * @param toValidate If not null, a conditional request is done with the
+     *                   validators of this cache entry.
+     */
+    public static Response fetch(final RenderingContext context, final URI uri, final ImageCache.Entry toValidate) throws IOException {
+        checkCancelled(context, uri);
+        final String key = getKey(context, uri, toValidate);
+        final PendingResponse task = new PendingResponse(new Callable<Response>() {
+            public Response call() throws Exception {
+                return doFetch(context, uri, toValidate);
+            }
+        });
+
+        PendingResponse running = IN_FLIGHT.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                task.release(key);
+            }
+        } else if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("waiting for an identical request: " + uri);
+        }
+
+        final long deadline = context.getDeadline();
+        final Response response;
+        try {
+            if (deadline > 0) {
+                response = running.get(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } else {
+                response = running.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while reading " + uri);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException("Deadline exceeded while reading " + uri);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PrintCancelledException && !context.isCancelled()) {
+                //the print that did the request was cancelled, not this one
+                return doFetch(context, uri, toValidate);
+            }
+            if (e.getCause() instanceof DeadlineExceededException && running != task &&
+                    (deadline <= 0 || System.currentTimeMillis() < deadline)) {
+                //the deadline of the print that did the request, not the one of this print
+                return doFetch(context, uri, toValidate);
+            }
+            if (running.prefetched && canRetry(context, e.getCause())) {
+                return doFetch(context, uri, toValidate);
+            }
+            throw unwrap(e);
+        }
+        if (running.prefetched && isRetryable(response.statusCode) && canRetry(context, null)) {
+            return doFetch(context, uri, toValidate);
+        }
+        if (running.prefetched && isRedirect(response.statusCode)) {
+            //the asynchronous client doesn't follow the redirections, the blocking one does
+            return doFetch(context, uri, toValidate);
+        }
+        return response;
+    }
+
+    /**
+     * @return True if a failed prefetch can be done again with the blocking
+     *         client, since the asynchronous client doesn't retry.
+     */
+    private static boolean canRetry(RenderingContext context, Throwable error) {
+        final TileRequestsConfig policy = context.getConfig().getTileRequests();
+        return policy != null && policy.getRetries() > 0 && !(error instanceof DeadlineExceededException) &&
+                !context.isCancelled();
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else {
+            return new IOException(cause.toString());
+        }
+    }
+
+    private static boolean isRedirect(int statusCode) {
+        return statusCode >= 300 && statusCode < 400 && statusCode != 304;
+    }
+
+    private static boolean isRetryable(int statusCode) {
+        return statusCode >= 500 || statusCode == 429;
+    }
+
+    /**
+     * Start fetching the given URI with the asynchronous HTTP client and
+     * return right away. Until {@link Prefetch#release()} is called, the
+     * response is given without waiting to the identical
+     * {@link #fetch(RenderingContext, URI, ImageCache.Entry)} calls, as if the
+     * request was still in flight.
+     *
+     * @param listener Called once the response is there (or the request
+     *                 failed), typically from the I/O thread.
+     * @return Null if the URI cannot be fetched asynchronously (no "asyncHttp"
+     *         configuration, HTTPS, proxy, ...).
+     */
+    public static Prefetch prefetch(final RenderingContext context, final URI uri, final PrefetchListener listener) {
+        final AsyncHttpClient client = context.getConfig().getAsyncHttpClient(uri);
+        if (client == null) {
+            return null;
+        }
+        final String key = getKey(context, uri, null);
+        while (true) {
+            final PendingResponse task = new PendingResponse(new Callable<Response>() {
+                public Response call() throws Exception {
+                    throw new IllegalStateException("Completed by the asynchronous HTTP client");
+                }
+            });
+            task.prefetched = true;
+            final PendingResponse running = IN_FLIGHT.putIfAbsent(key, task);
+            final Prefetch result;
+            if (running == null) {
+                result = new Prefetch(key, task);
+                if (LOGGER.isDebugEnabled()) LOGGER.debug("prefetching image: " + uri);
+                final AbortOnCancel abort = new AbortOnCancel(context.getProgress());
+                //the asynchronous client has its own per host limit, but its
+                //latencies are needed for hedging and the adaptive limits
+                final HostLimiter limiter = context.getConfig().getHostLimiter();
+                final long start = System.currentTimeMillis();
+                final AsyncHttpClient.Request request = client.execute(uri, context.getHeaders(), context.getDeadline(), new AsyncHttpClient.Listener() {
+                    public void completed(int statusCode, String statusText, Map<String, String> headers, byte[] body) {
+                        abort.unregister();
+                        limiter.record(uri, System.currentTimeMillis() - start, isRetryable(statusCode));
+                        final Response response = new Response();
+                        response.statusCode = statusCode;
+                        response.statusText = statusText;
+                        response.contentType = headers.containsKey("content-type") ? headers.get("content-type") : "";
+                        response.etag = headers.get("etag");
+                        response.lastModified = headers.get("last-modified");
+                        response.data = body;
+                        task.complete(response);
+                    }
+
+                    public void failed(IOException e) {
+                        abort.unregister();
+                        if (!context.isCancelled()) {
+                            limiter.record(uri, System.currentTimeMillis() - start, true);
+                        }
+                        task.fail(context.isCancelled() ? new PrintCancelledException("The print was cancelled while reading " + uri) : e);
+                    }
+                });
+                abort.register(request);
+            } else if (running.acquire()) {
+                result = new Prefetch(key, running);
+            } else {
+                //the response was just released, retry
+                continue;
+            }
+            result.task.whenDone(new Runnable() {
+                public void run() {
+                    listener.fetched(result);
+                }
+            });
+            return result;
+        }
+    }
+
+    /**
+     * The response depends on the configuration (security strategies, local
+     * host forwarding, timeouts, ...), so it is part of the key.
+     */
+    private static String getKey(RenderingContext context, URI uri, ImageCache.Entry toValidate) {
+        final StringBuilder key = new StringBuilder(ImageCache.getKey(context.getConfig().getId(), uri, context.getHeaders()));
+        if (toValidate != null) {
+            key.append("\nIf-None-Match: ").append(toValidate.getEtag());
+            key.append("\nIf-Modified-Since: ").append(toValidate.getLastModified());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Do the request, retried as many times as configured.
+     */
+    private static Response doFetch(RenderingContext context, URI uri, ImageCache.Entry toValidate) throws IOException {
+        final TileRequestsConfig policy = context.getConfig().getTileRequests();
+        final long deadline = context.getDeadline();
+        final int retries = policy != null ? policy.getRetries() : 0;
+        for (int attempt = 0; ; attempt++) {
+            checkDeadline(uri, deadline);
+            checkCancelled(context, uri);
+            Response response = null;
+            IOException error = null;
+            try {
+                response = hedgedFetch(context, uri, toValidate, policy, deadline);
+            } catch (DeadlineExceededException e) {
+                throw e;
+            } catch (PrintCancelledException e) {
+                throw e;
+            } catch (IOException e) {
+                error = e;
+            }
+            if (attempt >= retries || (error == null && !isRetryable(response.statusCode))) {
+                if (error != null) {
+                    throw error;
+                }
+                return response;
+            }
+
+            final long delay = (long) policy.getRetryDelay() << Math.min(attempt, 20);
+            if (deadline > 0 && System.currentTimeMillis() + delay >= deadline) {
+                if (error != null) {
+                    throw error;
+                }
+                return response;
+            }
+            LOGGER.info("Retrying in " + delay + "ms (" + (error != null ? error.toString() : "status=" + response.statusCode) + "): " + uri);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while reading " + uri);
+            }
+        }
+    }
+
+    private static void checkDeadline(URI uri, long deadline) throws DeadlineExceededException {
+        if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+            throw new DeadlineExceededException("Deadline exceeded while reading " + uri);
+        }
+    }
+
+    private static void checkCancelled(RenderingContext context, URI uri) throws PrintCancelledException {
+        if (context.isCancelled()) {
+            throw new PrintCancelledException("The print was cancelled before reading " + uri);
+        }
+    }
+
+    /**
+     * Do the request. If there is a deadline or if hedging is enabled, the
+     * request is done in another thread, to not wait longer than the
+     * deadline and to send a second identical request if the first one is
+     * slower than most of the requests to the same host. The first good
+     * response wins.
+     */
+    private static Response hedgedFetch(final RenderingContext context, final URI uri, final ImageCache.Entry toValidate,
+                                        TileRequestsConfig policy, long deadline) throws IOException {
+        final long hedgeDelay = policy != null && policy.isHedging() ?
+                context.getConfig().getHostLimiter().getLatencyPercentile(uri, policy.getHedgingPercentile()) : -1L;
+        if (deadline <= 0 && hedgeDelay < 0) {
+            return limitedFetch(context, uri, toValidate, null);
+        }
+
+        final CompletionService<Response> completion = new ExecutorCompletionService<Response>(REQUEST_EXECUTOR);
+        final Map<Future<Response>, Attempt> attempts = new HashMap<Future<Response>, Attempt>();
+        final long start = System.currentTimeMillis();
+        Attempt attempt = new Attempt(context, uri, toValidate);
+        attempts.put(completion.submit(attempt), attempt);
+        Future<Response> winner = null;
+        boolean hedged = hedgeDelay < 0;
+        int pending = 1;
+        Response lastResponse = null;
+        ExecutionException lastError = null;
+        try {
+            while (pending > 0) {
+                long wait = deadline > 0 ? deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+                if (!hedged) {
+                    wait = Math.min(wait, start + hedgeDelay - System.currentTimeMillis());
+                }
+                final Future<Response> done = completion.poll(Math.max(0L, wait), TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (!hedged && (deadline <= 0 || System.currentTimeMillis() < deadline)) {
+                        hedged = true;
+                        if (LOGGER.isDebugEnabled()) LOGGER.debug("slow response, sending a hedged request: " + uri);
+                        attempt = new Attempt(context, uri, toValidate);
+                        attempts.put(completion.submit(attempt), attempt);
+                        pending++;
+                        continue;
+                    }
+                    throw new DeadlineExceededException("Deadline exceeded while reading " + uri);
+                }
+                pending--;
+                try {
+                    lastResponse = done.get();
+                    lastError = null;
+                    if (!isRetryable(lastResponse.statusCode)) {
+                        winner = done;
+                        return lastResponse;
+                    }
+                } catch (ExecutionException e) {
+                    lastError = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while reading " + uri);
+        } finally {
+            //cancelling the future doesn't interrupt a blocking read, the
+            //connection is closed to free it and its host limiter permit
+            for (Map.Entry<Future<Response>, Attempt> cur : attempts.entrySet()) {
+                if (cur.getKey() != winner) {
+                    cur.getKey().cancel(true);
+                    cur.getValue().abort();
+                }
+            }
+        }
+        if (lastError != null) {
+            throw unwrap(lastError);
+        }
+        return lastResponse;
+    }
+
+    /**
+     * Do the request, once the host limiter allows it.
+     */
+    private static Response limitedFetch(RenderingContext context, URI uri, ImageCache.Entry toValidate, Attempt attempt) throws IOException {
+        final HostLimiter limiter = context.getConfig().getHostLimiter();
+        limiter.acquire(uri);
+        final long start = System.currentTimeMillis();
+        boolean failure = true;
+        try {
+            final Response response = request(context, uri, toValidate, attempt);
+            failure = isRetryable(response.statusCode);
+            return response;
+        } finally {
+            limiter.release(uri, System.currentTimeMillis() - start, failure);
+        }
+    }
+
+    /**
+     * @param attempt If not null, the request is registered with it, so that it can be aborted.
+     */
+    private static Response request(RenderingContext context, URI uri, ImageCache.Entry toValidate, Attempt attempt) throws IOException {
+        final Response response = new Response();
+        if ((uri.getScheme().equals("http") || uri.getScheme().equals("https"))
+                && context.getConfig().localHostForwardIsFrom(uri.getHost())) {
+            String scheme = uri.getScheme();
+            final String host = uri.getHost();
+            if (uri.getScheme().equals("https")
+                    && context.getConfig().localHostForwardIsHttps2http()) {
+                scheme = "http";
+            }
+            URL url = new URL(scheme, "localhost", uri.getPort(),
+                    uri.getPath() + "?" + uri.getQuery());
+
+            final HttpURLConnection connexion = (HttpURLConnection) url.openConnection();
+            connexion.setRequestProperty("Host", host);
+            for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
+                connexion.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+            if (toValidate != null) {
+                if (toValidate.getEtag() != null) {
+                    connexion.setRequestProperty("If-None-Match", toValidate.getEtag());
+                }
+                if (toValidate.getLastModified() != null) {
+                    connexion.setRequestProperty("If-Modified-Since", toValidate.getLastModified());
+                }
+            }
+            final Runnable abort = new Runnable() {
+                public void run() {
+                    connexion.disconnect();
+                }
+            };
+            addAbortListeners(context, uri, attempt, abort);
+            InputStream is = null;
+            try {
+                try {
+                    is = connexion.getInputStream();
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[1024];
+                    int length;
+                    while ((length = is.read(buffer)) != -1) {
+                        baos.write(buffer, 0, length);
+                    }
+                    baos.flush();
+                    response.data = baos.toByteArray();
+                } catch (IOException e) {
+                    LOGGER.warn(e);
+                }
+                response.statusCode = connexion.getResponseCode();
+                response.statusText = connexion.getResponseMessage();
+                response.contentType = connexion.getContentType() != null ? connexion.getContentType() : "";
+                response.etag = connexion.getHeaderField("ETag");
+                response.lastModified = connexion.getHeaderField("Last-Modified");
+            } catch (IOException e) {
+                throw wasCancelled(context, uri, e);
+            } finally {
+                removeAbortListeners(context, attempt, abort);
+                if (is != null) {
+                    is.close();
+                }
+            }
+        } else {
+            final GetMethod getMethod = new GetMethod(uri.toString());
+            final Runnable abort = new Runnable() {
+                public void run() {
+                    getMethod.abort();
+                }
+            };
+            addAbortListeners(context, uri, attempt, abort);
+            try {
+                for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
+                    getMethod.setRequestHeader(entry.getKey(), entry.getValue());
+                }
+                if (toValidate != null) {
+                    if (toValidate.getEtag() != null) {
+                        getMethod.setRequestHeader("If-None-Match", toValidate.getEtag());
+                    }
+                    if (toValidate.getLastModified() != null) {
+                        getMethod.setRequestHeader("If-Modified-Since", toValidate.getLastModified());
+                    }
+                }
+                final long deadline = context.getDeadline();
+                if (deadline > 0) {
+                    //don't keep the thread longer than needed when the deadline is reached
+                    final long remaining = Math.max(1L, deadline - System.currentTimeMillis());
+                    final int socketTimeout = context.getConfig().getSocketTimeout();
+                    if (socketTimeout == 0 || remaining < socketTimeout) {
+                        getMethod.getParams().setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+                    }
+                }
+                if (LOGGER.isDebugEnabled()) LOGGER.debug("loading image: " + uri);
+                context.getConfig().getHttpClient(uri).executeMethod(getMethod);
+                response.statusCode = getMethod.getStatusCode();
+                response.statusText = getMethod.getStatusText();
+
+                Header contentTypeHeader = getMethod.getResponseHeader("Content-Type");
+                if (contentTypeHeader == null) {
+                    response.contentType = "";
+                } else {
+                    response.contentType = contentTypeHeader.getValue();
+                }
+                Header etagHeader = getMethod.getResponseHeader("ETag");
+                response.etag = etagHeader != null ? etagHeader.getValue() : null;
+                Header lastModifiedHeader = getMethod.getResponseHeader("Last-Modified");
+                response.lastModified = lastModifiedHeader != null ? lastModifiedHeader.getValue() : null;
+                response.data = getMethod.getResponseBody();
+            } catch (IOException e) {
+                throw wasCancelled(context, uri, e);
+            } finally {
+                removeAbortListeners(context, attempt, abort);
+                getMethod.releaseConnection();
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Register the given action to abort the request if the print is
+     * cancelled.
+     */
+    private static void addCancelListener(RenderingContext context, URI uri, Runnable abort) throws PrintCancelledException {
+        final PrintProgress progress = context.getProgress();
+        if (progress != null && !progress.addCancelListener(abort)) {
+            throw new PrintCancelledException("The print was cancelled before reading " + uri);
+        }
+    }
+
+    private static void removeCancelListener(RenderingContext context, Runnable abort) {
+        final PrintProgress progress = context.getProgress();
+        if (progress != null) {
+            progress.removeCancelListener(abort);
+        }
+    }
+
+    /**
+     * Register the given action to abort the request if the print is
+     * cancelled or if the attempt loses.
+     */
+    private static void addAbortListeners(RenderingContext context, URI uri, Attempt attempt, Runnable abort) throws IOException {
+        addCancelListener(context, uri, abort);
+        if (attempt != null && !attempt.setAbort(abort)) {
+            removeCancelListener(context, abort);
+            throw new InterruptedIOException("Aborted before reading " + uri);
+        }
+    }
+
+    private static void removeAbortListeners(RenderingContext context, Attempt attempt, Runnable abort) {
+        removeCancelListener(context, abort);
+        if (attempt != null) {
+            attempt.setAbort(null);
+        }
+    }
+
+    /**
+     * @return The error to throw when a request failed, a
+     *         {@link PrintCancelledException} if it was aborted because the
+     *         print was cancelled.
+     */
+    private static IOException wasCancelled(RenderingContext context, URI uri, IOException error) {
+        if (context.isCancelled() && !(error instanceof PrintCancelledException)) {
+            return new PrintCancelledException("The print was cancelled while reading " + uri);
+        }
+        return error;
+    }
+
+    /**
+     * One of the identical requests of
+     * {@link #hedgedFetch(RenderingContext, URI, ImageCache.Entry, TileRequestsConfig, long)}.
+     * Its connection can be closed from another thread when it loses.
+     */
+    private static class Attempt implements Callable<Response> {
+        private final RenderingContext context;
+        private final URI uri;
+        private final ImageCache.Entry toValidate;
+
+        /**
+         * Closes the connection, null when no request is running. Protected by this.
+         */
+        private Runnable abort = null;
+        private boolean aborted = false;
+
+        public Attempt(RenderingContext context, URI uri, ImageCache.Entry toValidate) {
+            this.context = context;
+            this.uri = uri;
+            this.toValidate = toValidate;
+        }
+
+        public Response call() throws Exception {
+            return limitedFetch(context, uri, toValidate, this);
+        }
+
+        /**
+         * @return False if the attempt was already aborted.
+         */
+        public synchronized boolean setAbort(Runnable abort) {
+            if (aborted && abort != null) {
+                return false;
+            }
+            this.abort = abort;
+            return true;
+        }
+
+        public void abort() {
+            final Runnable toRun;
+            synchronized (this) {
+                aborted = true;
+                toRun = abort;
+                abort = null;
+            }
+            if (toRun != null) {
+                toRun.run();
+            }
+        }
+    }
+
+    /**
+     * Aborts an asynchronous request if the print is cancelled.
+     */
+    private static class AbortOnCancel implements Runnable {
+        private final PrintProgress progress;
+
+        /**
+         * Protected by this.
+         */
+        private AsyncHttpClient.Request request = null;
+        private boolean finished = false;
+
+        public AbortOnCancel(PrintProgress progress) {
+            this.progress = progress;
+        }
+
+        /**
+         * To be called once the request is queued.
+         */
+        public void register(AsyncHttpClient.Request request) {
+            synchronized (this) {
+                if (finished || progress == null) {
+                    return;
+                }
+                this.request = request;
+            }
+            if (!progress.addCancelListener(this)) {
+                request.abort();
+            }
+        }
+
+        /**
+         * To be called once the request is finished.
+         */
+        public void unregister() {
+            synchronized (this) {
+                finished = true;
+                request = null;
+            }
+            if (progress != null) {
+                progress.removeCancelListener(this);
+            }
+        }
+
+        public void run() {
+            final AsyncHttpClient.Request toAbort;
+            synchronized (this) {
+                toAbort = request;
+            }
+            if (toAbort != null) {
+                toAbort.abort();
+            }
+        }
+    }
+
+    /**
+     * A response being fetched, shared by the identical requests. It is
+     * removed from {@link #IN_FLIGHT} once all its users released it.
+     */
+    private static class PendingResponse extends FutureTask<Response> {
+        /**
+         * Protected by this.
+         */
+        private int users = 1;
+
+        /**
+         * True if the request is done by the asynchronous HTTP client.
+         */
+        private volatile boolean prefetched = false;
+
+        /**
+         * Called once the response is there, null once done. Protected by this.
+         */
+        private List<Runnable> listeners = new ArrayList<Runnable>();
+
+        public PendingResponse(Callable<Response> callable) {
+            super(callable);
+        }
+
+        /**
+         * @return False if the response was already released by all its users.
+         */
+        public synchronized boolean acquire() {
+            if (users == 0) {
+                return false;
+            }
+            users++;
+            return true;
+        }
+
+        public void release(String key) {
+            synchronized (this) {
+                if (--users > 0) {
+                    return;
+                }
+            }
+            IN_FLIGHT.remove(key, this);
+        }
+
+        public void complete(Response response) {
+            set(response);
+        }
+
+        public void fail(Throwable error) {
+            setException(error);
+        }
+
+        /**
+         * Run the given code once the response is there (right away if it
+         * is already there).
+         */
+        public void whenDone(Runnable listener) {
+            synchronized (this) {
+                if (listeners != null) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.run();
+        }
+
+        @Override
+        protected void done() {
+            final List<Runnable> toCall;
+            synchronized (this) {
+                toCall = listeners;
+                listeners = null;
+            }
+            for (Runnable listener : toCall) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error while handling a response", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * A response fetched in advance. Must be released once used.
+     */
+    public static class Prefetch {
+        private final String key;
+        private final PendingResponse task;
+        private boolean released = false;
+
+        private Prefetch(String key, PendingResponse task) {
+            this.key = key;
+            this.task = task;
+        }
+
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                task.release(key);
+            }
+        }
+    }
+
+    /**
+     * Called when a prefetched response is there.
+     */
+    public static interface PrefetchListener {
+        void fetched(Prefetch prefetch);
+    }
+
+    /**
+     * What was received from the server. Shared between the coalesced
+     * requests, so it must not be modified.
+     */
+    public static class Response {
+        private int statusCode;
+        private String statusText;
+        private String contentType;
+        private String etag;
+        private String lastModified;
+        private byte[] data;
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public String getStatusText() {
+            return statusText;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return The body of the response (may be null).
+         */
+        public byte[] getData() {
+            return data;
+        }
+    }
+}
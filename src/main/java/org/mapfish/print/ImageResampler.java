@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Downsamples the bitmaps that have more pixels than what can be seen on
+ * the paper at the resolution of the map, before they are added to the PDF.
+ */
+public class ImageResampler {
+    public static final Logger LOGGER = Logger.getLogger(ImageResampler.class);
+
+    public static enum Quality {
+        /**
+         * Fastest, takes the nearest pixel.
+         */
+        NEAREST,
+        /**
+         * Interpolates between the 4 nearest pixels.
+         */
+        BILINEAR,
+        /**
+         * Averages all the source pixels covered by a target pixel. Slowest,
+         * but the best for big reduction factors.
+         */
+        AREA
+    }
+
+    private ImageResampler() {
+    }
+
+    /**
+     * Downsample the encoded image if it is bigger than the given size. The
+     * aspect ratio is kept.
+     *
+     * @return The original data if nothing had to be done, or the downsampled
+     *         image encoded in the same format (JPEG or PNG).
+     */
+    public static byte[] resample(byte[] data, long maxWidth, long maxHeight, Quality quality) throws IOException {
+        final ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        if (input == null) {
+            return data;
+        }
+        final BufferedImage image;
+        final String formatName;
+        try {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return data;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input);
+                //the size is known without decoding the pixels
+                if (!isTooBig(reader.getWidth(0), reader.getHeight(0), maxWidth, maxHeight)) {
+                    return data;
+                }
+                formatName = reader.getFormatName().toLowerCase();
+                image = reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            input.close();
+        }
+
+        final BufferedImage result = resample(image, maxWidth, maxHeight, quality);
+        final boolean jpeg = formatName.equals("jpeg") || formatName.equals("jpg");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(jpeg ? toRgb(result) : result, jpeg ? "jpeg" : "png", out)) {
+            return data;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Image downsampled from " + image.getWidth() + "x" + image.getHeight() + " to " +
+                    result.getWidth() + "x" + result.getHeight() + " (" + data.length + " -> " + out.size() + " bytes)");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Downsample the image if it is bigger than the given size. The aspect
+     * ratio is kept.
+     */
+    public static BufferedImage resample(BufferedImage image, long maxWidth, long maxHeight, Quality quality) {
+        if (!isTooBig(image.getWidth(), image.getHeight(), maxWidth, maxHeight)) {
+            return image;
+        }
+        final double factor = Math.min((double) maxWidth / image.getWidth(), (double) maxHeight / image.getHeight());
+        final int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        final int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+
+        final BufferedImage result = new BufferedImage(width, height,
+                image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = result.createGraphics();
+        try {
+            switch (quality) {
+                case AREA:
+                    graphics.drawImage(image.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING), 0, 0, null);
+                    break;
+                case BILINEAR:
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    graphics.drawImage(image, 0, 0, width, height, null);
+                    break;
+                default:
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+                    graphics.drawImage(image, 0, 0, width, height, null);
+            }
+        } finally {
+            graphics.dispose();
+        }
+        return result;
+    }
+
+    /**
+     * One pixel of tolerance for the rounding done while computing the sizes.
+     */
+    private static boolean isTooBig(long width, long height, long maxWidth, long maxHeight) {
+        return maxWidth > 0 && maxHeight > 0 && (width > maxWidth + 1 || height > maxHeight + 1);
+    }
+
+    private static BufferedImage toRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        final BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = result.createGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return result;
+    }
+}
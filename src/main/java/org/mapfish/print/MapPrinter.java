@@ -26,6 +26,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.TreeSet;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PreDestroy;
 
@@ -67,6 +68,12 @@ public class MapPrinter {
      */
     private File configDir;
 
+    /**
+     * When the configuration file was last modified (0 if the config doesn't
+     * come from a file).
+     */
+    private long configLastModified = 0L;
+
     /**
      * OutputFactory for the final output
      *
@@ -82,6 +89,12 @@ public class MapPrinter {
 
     private volatile boolean fontsInitialized = false;
 
+    /**
+     * Number of users of this printer. The one who created it holds the
+     * first reference.
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+
     static {
         //configure iText to use a higher precision for floats
         ByteBuffer.HIGH_PRECISION = true;
@@ -113,6 +126,7 @@ public class MapPrinter {
      * @return this
      */
     public MapPrinter setYamlConfigFile(File configFile) throws FileNotFoundException {
+        configLastModified = configFile.lastModified();
         this.config = configFactory.fromYaml(configFile);
         configDir = configFile.getParentFile();
         if (configDir == null) {
@@ -177,10 +191,21 @@ public class MapPrinter {
      * @throws InterruptedException
      */
     public RenderingContext print(PJsonObject jsonSpec, OutputStream outputStream, Map<String, String> headers) throws DocumentException, InterruptedException {
+        return print(jsonSpec, outputStream, headers, new PrintProgress());
+    }
+
+    /**
+     * Generate the PDF using the given spec and report how far it went in the
+     * given progress object.
+     *
+     * @return The context that was used for printing.
+     * @throws InterruptedException
+     */
+    public RenderingContext print(PJsonObject jsonSpec, OutputStream outputStream, Map<String, String> headers, PrintProgress progress) throws DocumentException, InterruptedException {
         initFonts();
         OutputFormat output = this.outputFactory.create(config, jsonSpec);
 
-        PrintParams params = new PrintParams(config, configDir, jsonSpec, outputStream, headers);
+        PrintParams params = new PrintParams(config, configDir, jsonSpec, outputStream, headers, progress);
         return output.print(params );
 
     }
@@ -210,6 +235,35 @@ public class MapPrinter {
         config.close();
     }
 
+    /**
+     * Take a reference on this printer, so that its thread pools and
+     * connections are not closed while it is used.
+     *
+     * @return False if the last reference was already released (the printer
+     *         is stopped).
+     */
+    public boolean retain() {
+        while (true) {
+            final int current = references.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a reference taken with {@link #retain()} (or the one of the
+     * creator). The printer is stopped when the last one is released.
+     */
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            stop();
+        }
+    }
+
     public String getOutputFilename(String layout, String defaultName) {
         final String name = config.getOutputFilename(layout);
         return name == null ? defaultName : name;
@@ -218,6 +272,11 @@ public class MapPrinter {
     public Config getConfig() {
         return config;
     }
+
+    public long getConfigLastModified() {
+        return configLastModified;
+    }
+
     public OutputFormat getOutputFormat(PJsonObject jsonSpec) {
         return outputFactory.create(config, jsonSpec);
     }
@@ -32,10 +32,10 @@ import com.lowagie.text.pdf.PdfPCell;
 import com.lowagie.text.pdf.PdfPTable;
 import com.lowagie.text.pdf.PdfTemplate;
 import java.awt.Graphics2D;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.*;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -44,6 +44,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
 import org.apache.batik.bridge.BridgeContext;
 import org.apache.batik.bridge.DocumentLoader;
 import org.apache.batik.bridge.GVTBuilder;
@@ -53,14 +54,14 @@ import org.apache.batik.dom.svg.SAXSVGDocumentFactory;
 import org.apache.batik.dom.svg.SVGDocumentFactory;
 import org.apache.batik.gvt.GraphicsNode;
 import org.apache.batik.util.XMLResourceDescriptor;
-import org.apache.commons.httpclient.Header;
-import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.log4j.Logger;
+import org.mapfish.print.config.ImageCacheConfig;
 import org.mapfish.print.config.layout.Block;
 import org.mapfish.print.config.layout.HorizontalAlign;
 import org.mapfish.print.config.layout.MapBlock;
 import org.mapfish.print.config.layout.ScalebarBlock;
 import org.mapfish.print.config.layout.TableConfig;
+import org.mapfish.print.map.DiskTileCache;
 import org.mapfish.print.utils.PJsonObject;
 import org.w3c.dom.svg.SVGDocument;
 
@@ -84,6 +85,44 @@ public class PDFUtils {
      * bitmap content multiple times in order to reduce the file size.
      */
     public static Image getImage(RenderingContext context, URI uri, float w, float h, float scale) throws IOException, DocumentException {
+        return getImage(context, uri, w, h, scale, 0L);
+    }
+
+    /**
+     * Same as {@link #getImage(RenderingContext, URI, float, float, float)}, but
+     * uses the tile cache of the configuration (if any) to avoid fetching the
+     * image again.
+     *
+     * @param cacheTtl How long the image can be kept in the tile cache (in ms),
+     *                 0 to not use the cache.
+     */
+    public static Image getImage(RenderingContext context, URI uri, float w, float h, float scale, long cacheTtl) throws IOException, DocumentException {
+        return getImage(context, uri, w, h, scale, cacheTtl, false, 0L, 0L);
+    }
+
+    /**
+     * Same as {@link #getImage(RenderingContext, URI, float, float, float, long)},
+     * but if the configuration has an "imageResampling" quality, images
+     * bigger than maxPixelW x maxPixelH pixels are downsampled before being
+     * added to the PDF.
+     */
+    public static Image getImage(RenderingContext context, URI uri, float w, float h, float scale, long cacheTtl,
+                                 long maxPixelW, long maxPixelH) throws IOException, DocumentException {
+        return getImage(context, uri, w, h, scale, cacheTtl, false, maxPixelW, maxPixelH);
+    }
+
+    /**
+     * Same as {@link #getImage(RenderingContext, URI, float, float, float)}, but
+     * for the small images likely to be used by many prints (legend icons,
+     * logos, ...). Their content is kept in the {@link ImageCache} if the
+     * configuration has an imageCache section.
+     */
+    public static Image getSharedImage(RenderingContext context, URI uri, float w, float h, float scale) throws IOException, DocumentException {
+        return getImage(context, uri, w, h, scale, 0L, true, 0L, 0L);
+    }
+
+    private static Image getImage(RenderingContext context, URI uri, float w, float h, float scale, long cacheTtl,
+                                  boolean shared, long maxPixelW, long maxPixelH) throws IOException, DocumentException {
         //Check the image is not already used in the PDF file.
         //
         //This part is not protected against multi-threads... worst case, a single image can
@@ -92,7 +131,7 @@ public class PDFUtils {
         Map<URI, PdfTemplate> cache = context.getTemplateCache();
         PdfTemplate template = cache.get(uri);
         if (template == null) {
-            Image content = getImageDirect(context, uri);
+            Image content = loadImageFromUrl(context, uri, false, cacheTtl, shared, maxPixelW, maxPixelH);
             content.setAbsolutePosition(0, 0);
             final PdfContentByte dc = context.getDirectContent();
             synchronized (context.getPdfLock()) {  //protect against parallel writing on the PDF file
@@ -178,6 +217,19 @@ public class PDFUtils {
     private static Image loadImageFromUrl(final RenderingContext context, final URI uri, final boolean alwaysThrowExceptionOnError)
             throws
             IOException, DocumentException {
+        return loadImageFromUrl(context, uri, alwaysThrowExceptionOnError, 0L, false, 0L, 0L);
+    }
+
+    /**
+     * @param cacheTtl  How long the image can be kept in the tile cache (in ms), 0 to not use it.
+     * @param shared    If true, the image is looked for and stored in the {@link ImageCache}.
+     * @param maxPixelW The max width in pixels of the image, 0 to not downsample it.
+     * @param maxPixelH The max height in pixels of the image, 0 to not downsample it.
+     */
+    private static Image loadImageFromUrl(final RenderingContext context, final URI uri, final boolean alwaysThrowExceptionOnError,
+                                          final long cacheTtl, final boolean shared, final long maxPixelW, final long maxPixelH)
+            throws
+            IOException, DocumentException {
         if (!uri.isAbsolute()) {
             //Assumption is that the file is on the local file system
             return Image.getInstance(uri.toString());
@@ -194,78 +246,37 @@ public class PDFUtils {
             return Image.getInstance(new File(path).toURI().toURL());
         } else {
 
-            final String contentType;
-            final int statusCode;
-            final String statusText;
-            byte[] data = null;
-            try {
-                //read the whole image content in memory, then give that to iText
-                if ((uri.getScheme().equals("http") || uri.getScheme().equals("https"))
-                        && context.getConfig().localHostForwardIsFrom(uri.getHost())) {
-                    String scheme = uri.getScheme();
-                    final String host = uri.getHost();
-                    if (uri.getScheme().equals("https")
-                            && context.getConfig().localHostForwardIsHttps2http()) {
-                        scheme = "http";
-                    }
-                    URL url = new URL(scheme, "localhost", uri.getPort(),
-                            uri.getPath() + "?" + uri.getQuery());
-
-                    HttpURLConnection connexion = (HttpURLConnection) url.openConnection();
-                    connexion.setRequestProperty("Host", host);
-                    for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
-                        connexion.setRequestProperty(entry.getKey(), entry.getValue());
-                    }
-                    InputStream is = null;
-                    try {
-                        try {
-                            is = connexion.getInputStream();
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            byte[] buffer = new byte[1024];
-                            int length;
-                            while ((length = is.read(buffer)) != -1) {
-                                baos.write(buffer, 0, length);
-                            }
-                            baos.flush();
-                            data = baos.toByteArray();
-                        } catch (IOException e) {
-                            LOGGER.warn(e);
-                        }
-                        statusCode = connexion.getResponseCode();
-                        statusText = connexion.getResponseMessage();
-                        contentType = connexion.getContentType();
-                    } finally {
-                        if (is != null) {
-                            is.close();
-                        }
-                    }
-                } else {
-                    GetMethod getMethod = null;
-                    try {
-                        getMethod = new GetMethod(uri.toString());
-                        for (Map.Entry<String, String> entry : context.getHeaders().entrySet()) {
-                            getMethod.setRequestHeader(entry.getKey(), entry.getValue());
-                        }
-                        if (LOGGER.isDebugEnabled()) LOGGER.debug("loading image: " + uri);
-                        context.getConfig().getHttpClient(uri).executeMethod(getMethod);
-                        statusCode = getMethod.getStatusCode();
-                        statusText = getMethod.getStatusText();
-
-                        Header contentTypeHeader = getMethod.getResponseHeader("Content-Type");
-                        if (contentTypeHeader == null) {
-                            contentType = "";
-                        } else {
-                            contentType = contentTypeHeader.getValue();
-                        }
-                        data = getMethod.getResponseBody();
-                    } finally {
-                        if (getMethod != null) {
-                            getMethod.releaseConnection();
-                        }
-                    }
+            final DiskTileCache tileCache = cacheTtl > 0 ? context.getConfig().getTileCache() : null;
+            if (tileCache != null) {
+                final byte[] cached = tileCache.get(uri, cacheTtl);
+                if (cached != null) {
+                    return toImage(context, cached, maxPixelW, maxPixelH);
                 }
+            }
 
-                if (statusCode == 204) {
+            final ImageCacheConfig imageCacheConfig = shared ? context.getConfig().getImageCache() : null;
+            final long imageTtl = imageCacheConfig != null ? imageCacheConfig.getTtl(uri) : 0L;
+            final String imageKey = imageTtl > 0 ? ImageCache.getKey(context.getConfig().getAccessScope(uri), uri, context.getHeaders()) : null;
+            final ImageCache.Entry cachedEntry = imageKey != null ? ImageCache.getInstance().get(imageKey) : null;
+            if (cachedEntry != null && cachedEntry.isFresh()) {
+                if (LOGGER.isDebugEnabled()) LOGGER.debug("image taken from the cache: " + uri);
+                return toImage(context, cachedEntry.getData(), maxPixelW, maxPixelH);
+            }
+            final ImageCache.Entry toValidate = cachedEntry != null && cachedEntry.hasValidators() ? cachedEntry : null;
+
+            try {
+                //read the whole image content in memory, then give that to iText
+                final ImageFetcher.Response response = ImageFetcher.fetch(context, uri, toValidate);
+                final int statusCode = response.getStatusCode();
+                final String statusText = response.getStatusText();
+                final String contentType = response.getContentType();
+                byte[] data = response.getData();
+
+                if (statusCode == 304 && toValidate != null) {
+                    if (LOGGER.isDebugEnabled()) LOGGER.debug("image not modified: " + uri);
+                    toValidate.refresh(imageTtl);
+                    return toImage(context, toValidate.getData(), maxPixelW, maxPixelH);
+                } else if (statusCode == 204) {
                     // returns a transparent image
                     if (LOGGER.isDebugEnabled()) LOGGER.debug("creating a transparent image for: " + uri);
                     try {
@@ -311,8 +322,18 @@ public class PDFUtils {
                     return image;
                 } else {
                     if (LOGGER.isDebugEnabled()) LOGGER.debug("loaded image: " + uri);
-                    return Image.getInstance(data);
+                    final Image image = toImage(context, data, maxPixelW, maxPixelH);
+                    if (tileCache != null) {
+                        tileCache.put(uri, data);
+                    }
+                    if (imageKey != null) {
+                        ImageCache.getInstance().put(imageKey, new ImageCache.Entry(data, response.getEtag(), response.getLastModified(), imageTtl));
+                    }
+                    return image;
                 }
+            } catch (PrintCancelledException e) {
+                //nobody will look at the result
+                throw e;
             } catch (IOException e) {
                 LOGGER.error("Server returned an error for " + uri + ": " + e.getMessage());
 
@@ -320,11 +341,116 @@ public class PDFUtils {
                     throw e;
                 }
 
+                if (e instanceof DeadlineExceededException) {
+                    //a late image never fails the whole print
+                    return getPlaceholder(context, Constants.ImagePlaceHolderConstants.THROW.equalsIgnoreCase(
+                            context.getConfig().getBrokenUrlPlaceholder()) ?
+                            Constants.ImagePlaceHolderConstants.DEFAULT : context.getConfig().getBrokenUrlPlaceholder());
+                }
+
                 return handleImageLoadError(context, e.getMessage());
             }
         }
     }
 
+    /**
+     * Create the iText image, downsampled if the configuration asks for it
+     * and the image is bigger than the given size.
+     */
+    private static Image toImage(RenderingContext context, byte[] data, long maxPixelW, long maxPixelH) throws IOException, DocumentException {
+        final ImageResampler.Quality quality = context.getConfig().getImageResampling();
+        if (quality != null && maxPixelW > 0 && maxPixelH > 0) {
+            data = ImageResampler.resample(data, maxPixelW, maxPixelH, quality);
+        }
+        return Image.getInstance(data);
+    }
+
+    /**
+     * Fetch and decode a bitmap, for the tiles that are drawn in a mosaic
+     * instead of being added one by one to the PDF.
+     *
+     * @param cacheTtl How long the image can be kept in the tile cache (in ms), 0 to not use it.
+     * @return The image or null if the server has nothing to show (HTTP 204)
+     *         or returned an error and a placeholder is configured.
+     */
+    public static BufferedImage loadBufferedImage(final RenderingContext context, final URI uri, final long cacheTtl) throws IOException {
+        if (!uri.isAbsolute() || "file".equalsIgnoreCase(uri.getScheme())) {
+            final URL url = uri.isAbsolute() ? uri.toURL() : new File(uri.toString()).toURI().toURL();
+            return decodeImage(ImageIO.read(url), uri);
+        }
+
+        final DiskTileCache tileCache = cacheTtl > 0 ? context.getConfig().getTileCache() : null;
+        if (tileCache != null) {
+            final byte[] cached = tileCache.get(uri, cacheTtl);
+            if (cached != null) {
+                return decodeImage(ImageIO.read(new ByteArrayInputStream(cached)), uri);
+            }
+        }
+
+        final ImageFetcher.Response response;
+        try {
+            response = ImageFetcher.fetch(context, uri, null);
+        } catch (DeadlineExceededException e) {
+            LOGGER.warn(e.getMessage() + ", the tile is left empty.");
+            return null;
+        }
+        final int statusCode = response.getStatusCode();
+        final String contentType = response.getContentType();
+        if (statusCode == 204) {
+            if (LOGGER.isDebugEnabled()) LOGGER.debug("no content for: " + uri);
+            return null;
+        } else if (statusCode < 200 || statusCode >= 300 || contentType.startsWith("text/") ||
+                contentType.equals("application/vnd.ogc.se_xml")) {
+            final String errorMessage;
+            if (statusCode < 200 || statusCode >= 300) {
+                errorMessage = "Error (status=" + statusCode + ") while reading the image from " + uri + ": " + response.getStatusText();
+            } else {
+                errorMessage = "Didn't receive an image while reading: " + uri;
+            }
+            if (Constants.ImagePlaceHolderConstants.THROW.equalsIgnoreCase(context.getConfig().getBrokenUrlPlaceholder())) {
+                throw new IOException(errorMessage);
+            }
+            LOGGER.warn(errorMessage + ", the tile is left empty.");
+            return null;
+        }
+
+        if (LOGGER.isDebugEnabled()) LOGGER.debug("loaded image: " + uri);
+        final BufferedImage image = decodeImage(ImageIO.read(new ByteArrayInputStream(response.getData())), uri);
+        if (tileCache != null) {
+            tileCache.put(uri, response.getData());
+        }
+        return image;
+    }
+
+    /**
+     * Start downloading an image with the non-blocking HTTP client, so that
+     * the following {@link #getImage} or {@link #loadBufferedImage} call for
+     * the same URI gets it without waiting.
+     *
+     * @param cacheTtl How long the image can be kept in the tile cache (in ms), 0 to not use it.
+     * @return Null if there is nothing to download or if the URI cannot be
+     *         fetched asynchronously, the listener is then never called.
+     */
+    public static ImageFetcher.Prefetch prefetch(final RenderingContext context, final URI uri, final long cacheTtl,
+                                                 final ImageFetcher.PrefetchListener listener) {
+        final Map<URI, PdfTemplate> templates = context.getTemplateCache();
+        if (!uri.isAbsolute() || (templates != null && templates.containsKey(uri))) {
+            return null;
+        }
+        final DiskTileCache tileCache = cacheTtl > 0 ? context.getConfig().getTileCache() : null;
+        if (tileCache != null && tileCache.contains(uri, cacheTtl)) {
+            return null;
+        }
+        return ImageFetcher.prefetch(context, uri, listener);
+    }
+
+    private static BufferedImage decodeImage(BufferedImage image, URI uri) throws IOException {
+        if (image == null) {
+            throw new IOException("Cannot decode the image read from " + uri);
+        }
+        return image;
+    }
+
     /**
      * In the case url fails to load an image this method should be called to handle the issue.  If the configuration
      * has a default image for broken image urls then it will be returned otherwise an error will be thrown.
@@ -338,25 +464,30 @@ public class PDFUtils {
         if (placeholderString.equalsIgnoreCase(Constants.ImagePlaceHolderConstants.THROW)) {
             throw new IOException(errorMessage);
         } else {
-            Image image = placeholderCache.get(placeholderString);
+            return getPlaceholder(context, placeholderString);
+        }
+    }
 
-            if (image == null) {
-                try {
-                    if (placeholderString.equalsIgnoreCase(Constants.ImagePlaceHolderConstants.DEFAULT)) {
-                        URL url = PDFUtils.class.getClassLoader().getResource(Constants.ImagePlaceHolderConstants.DEFAULT_ERROR_IMAGE);
-                        image = loadImageFromUrl(context, url.toURI(), true);
-                    } else {
-                        image = loadImageFromUrl(context, new URI(placeholderString), true);
-                    }
-                } catch (URISyntaxException e) {
-                    throw new RuntimeException(e);
-                }
-                if (image != null) {
-                    placeholderCache.put(placeholderString, image);
+    private static Image getPlaceholder(final RenderingContext context, final String placeholderString) throws IOException,
+            DocumentException {
+        Image image = placeholderCache.get(placeholderString);
+
+        if (image == null) {
+            try {
+                if (placeholderString.equalsIgnoreCase(Constants.ImagePlaceHolderConstants.DEFAULT)) {
+                    URL url = PDFUtils.class.getClassLoader().getResource(Constants.ImagePlaceHolderConstants.DEFAULT_ERROR_IMAGE);
+                    image = loadImageFromUrl(context, url.toURI(), true);
+                } else {
+                    image = loadImageFromUrl(context, new URI(placeholderString), true);
                 }
+            } catch (URISyntaxException e) {
+                throw new RuntimeException(e);
+            }
+            if (image != null) {
+                placeholderCache.put(placeholderString, image);
             }
-            return image;
         }
+        return image;
     }
 
     /**
@@ -398,27 +529,12 @@ public class PDFUtils {
 
     private static final Pattern VAR_REGEXP = Pattern.compile("\\$\\{([^}]+)\\}");
 
+    /**
+     * Evaluates stuff like "toto ${titi}", with ${pageTot} replaced by a
+     * block filled at the end.
+     */
     public static Phrase renderString(RenderingContext context, PJsonObject params, String val, com.lowagie.text.Font font) throws BadElementException {
-        Phrase result = new Phrase();
-        while (true) {
-            Matcher matcher = VAR_REGEXP.matcher(val);
-            if (matcher.find()) {
-                result.add(val.substring(0, matcher.start()));
-                final String value;
-                final String varName = matcher.group(1);
-                if (varName.equals("pageTot")) {
-                    result.add(context.getCustomBlocks().getOrCreateTotalPagesBlock(font));
-                } else {
-                    value = getContextValue(context, params, varName);
-                    result.add(value);
-                }
-                val = val.substring(matcher.end());
-            } else {
-                break;
-            }
-        }
-        result.add(val);
-        return result;
+        return StringTemplate.get(val).render(context, params, font);
     }
 
     /**
@@ -428,32 +544,9 @@ public class PDFUtils {
         if (val == null) {
             return null;
         }
-        StringBuilder result = new StringBuilder();
-        while (true) {
-            Matcher matcher = VAR_REGEXP.matcher(val);
-            if (matcher.find()) {
-                result.append(val.substring(0, matcher.start()));
-                result.append(getContextValue(context, params, matcher.group(1)));
-                val = val.substring(matcher.end());
-            } else {
-                break;
-            }
-        }
-        result.append(val);
-        String uri = result.toString();
-
-        if(System.getProperty("os.name").toLowerCase().indexOf("win") >= 0){
-            uri = uri.replace("\\", "/");
-            if(uri.matches("file://\\w:(/.*)?")) {
-                return "file:/"+uri.substring(7);
-            }
-        }
-
-        return uri;
+        return StringTemplate.get(val).evaluate(context, params);
     }
 
-    private static final Pattern FORMAT_PATTERN = Pattern.compile("^format\\s+(%[-+# 0,(]*\\d*(\\.\\d*)?(d))\\s+(.*)$");
-
     public static String getValueFromString(String val) {
         String str = val;
         while (true) {
@@ -480,73 +573,6 @@ public class PDFUtils {
         return val;
     }
 
-    private static String getContextValue(RenderingContext context, PJsonObject params, String key) {
-        String result = null;
-        if (context != null) {
-            Matcher matcher;
-            if (key.equals("pageNum")) {
-                return Integer.toString(context.getWriter().getPageNumber());
-            } else if (key.equals("now")) {
-                return new Date().toString();
-            } else if (key.startsWith("now ")) {
-                return formatTime(context, key);
-            } else if ((matcher = FORMAT_PATTERN.matcher(key)) != null && matcher.matches()) {
-                return format(context, params, matcher);
-            } else if (key.equals("configDir")) {
-                return context.getConfigDir().replace('\\', '/');
-            } else if (key.equals("scale")) {
-                return Integer.toString(context.getLayout().getMainPage().getMap().createTransformer(context, params).getScale());
-            }
-            result = context.getGlobalParams().optString(key);
-        }
-        if (result == null) {
-            result = params.getString(key);
-        }
-        return result;
-    }
-
-    private static String format(RenderingContext context, PJsonObject params, Matcher matcher) {
-        final String valueTxt = getContextValue(context, params, matcher.group(4));
-        final Object value;
-        switch (matcher.group(3).charAt(0)) {
-            case 'd':
-            case 'o':
-            case 'x':
-            case 'X':
-                value = Long.valueOf(valueTxt);
-                break;
-            case 'e':
-            case 'E':
-            case 'f':
-            case 'g':
-            case 'G':
-            case 'a':
-            case 'A':
-                value = Double.valueOf(valueTxt);
-                break;
-            default:
-                value = valueTxt;
-        }
-        try {
-            return String.format(matcher.group(1), value);
-        } catch (RuntimeException e) {
-            // gracefuly fallback to the standard format
-            context.addError(e);
-            return valueTxt;
-        }
-    }
-
-    private static String formatTime(RenderingContext context, String key) {
-        try {
-            SimpleDateFormat format = new SimpleDateFormat(key.substring(4));
-            return format.format(new Date());
-        } catch (IllegalArgumentException e) {
-            // gracefuly fallback to the standard format
-            context.addError(e);
-            return new Date().toString();
-        }
-    }
-
     private static String formatTime(String key) throws IllegalArgumentException {
         SimpleDateFormat format = new SimpleDateFormat(key.substring(4));
         return format.format(new Date());
@@ -637,7 +663,7 @@ public class PDFUtils {
     public static Image createImage(RenderingContext context, double maxWidth, double maxHeight, float scale, URI url, float rotation) throws DocumentException {
         final Image image;
         try {
-            image = getImage(context, url, (float) maxWidth, (float) maxHeight, scale);
+            image = getSharedImage(context, url, (float) maxWidth, (float) maxHeight, scale);
         } catch (IOException e) {
             throw new InvalidValueException("url", url.toString(), e);
         }
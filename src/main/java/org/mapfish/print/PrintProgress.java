@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of how far a print went. Updated by the rendering thread and
+ * read by whoever wants to report the status of the print (the servlet for
+ * example).
+ * <p/>
+ * Also the way to cancel a print from another thread: the rendering stops at
+ * the next check and the requests in flight are aborted by their cancel
+ * listeners.
+ */
+public class PrintProgress {
+    /**
+     * Number of main pages requested in the spec.
+     */
+    private volatile int nbPages = 0;
+
+    /**
+     * Number of main pages already rendered.
+     */
+    private final AtomicInteger nbPagesDone = new AtomicInteger(0);
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Called when the print is cancelled. Protected by itself.
+     */
+    private final List<Runnable> cancelListeners = new ArrayList<Runnable>();
+
+    public void setNbPages(int nbPages) {
+        this.nbPages = nbPages;
+    }
+
+    public int getNbPages() {
+        return nbPages;
+    }
+
+    public void pageDone() {
+        nbPagesDone.incrementAndGet();
+    }
+
+    public int getNbPagesDone() {
+        return nbPagesDone.get();
+    }
+
+    /**
+     * @return A value between 0 and 1.
+     */
+    public float getRatio() {
+        final int total = nbPages;
+        if (total <= 0) {
+            return 0.0f;
+        }
+        return Math.min(1.0f, (float) nbPagesDone.get() / total);
+    }
+
+    /**
+     * Cancel the print and call the cancel listeners. Does nothing if it was
+     * already cancelled.
+     */
+    public void cancel() {
+        final List<Runnable> listeners;
+        synchronized (cancelListeners) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            listeners = new ArrayList<Runnable>(cancelListeners);
+            cancelListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Register something to do if the print is cancelled (typically aborting
+     * a request). Must be removed once not needed anymore.
+     *
+     * @return False if the print is already cancelled, in which case the
+     *         listener is not registered (nor called).
+     */
+    public boolean addCancelListener(Runnable listener) {
+        synchronized (cancelListeners) {
+            if (cancelled) {
+                return false;
+            }
+            cancelListeners.add(listener);
+            return true;
+        }
+    }
+
+    public void removeCancelListener(Runnable listener) {
+        synchronized (cancelListeners) {
+            cancelListeners.remove(listener);
+        }
+    }
+}
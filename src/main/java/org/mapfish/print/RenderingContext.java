@@ -34,6 +34,7 @@ import org.mapfish.print.config.layout.Page.Position;
 import org.mapfish.print.utils.PJsonObject;
 
 import com.lowagie.text.Document;
+import com.lowagie.text.DocumentException;
 import com.lowagie.text.pdf.PdfContentByte;
 import com.lowagie.text.pdf.PdfTemplate;
 import com.lowagie.text.pdf.PdfWriter;
@@ -65,6 +66,11 @@ public class RenderingContext {
      */
     private float styleFactor = 1.0f;
 
+    /**
+     * Where to report how far the print went.
+     */
+    private PrintProgress progress = new PrintProgress();
+
     /**
      * Cache of PDF images.
      */
@@ -78,6 +84,22 @@ public class RenderingContext {
      */
     private final Object pdfLock=new Object();
 
+    /**
+     * True if the output depends on the time of the print (${now}).
+     */
+    private volatile boolean timeDependent = false;
+
+    /**
+     * When the images must have been read (System.currentTimeMillis()), 0
+     * for no limit.
+     */
+    private final long deadline;
+
+    /**
+     * The weight of the print's priority class.
+     */
+    private final int priority;
+
     public RenderingContext(Document document, PdfWriter writer, Config config,
                             PJsonObject globalParams, String configDir, Layout layout, Map<String, String> headers) {
         this.document = document;
@@ -87,6 +109,9 @@ public class RenderingContext {
         this.configDir = configDir;
         this.layout = layout;
         this.headers = headers;
+        final long maxDuration = config.getTileRequests() != null ? config.getTileRequests().getDeadline() : 0L;
+        this.deadline = maxDuration > 0 ? System.currentTimeMillis() + maxDuration : 0L;
+        this.priority = config.getPriorityWeight(globalParams != null ? globalParams.optString(Constants.JSON_PRIORITY_KEY) : null);
         customBlocks = new PDFCustomBlocks(writer, this);
     }
 
@@ -142,6 +167,31 @@ public class RenderingContext {
         this.styleFactor = styleFactor;
     }
 
+    public PrintProgress getProgress() {
+        return progress;
+    }
+
+    public void setProgress(PrintProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * @return True if the print was cancelled, nothing more needs to be
+     *         read or rendered.
+     */
+    public boolean isCancelled() {
+        return progress != null && progress.isCancelled();
+    }
+
+    /**
+     * Stop the rendering if the print was cancelled.
+     */
+    public void checkCancelled() throws DocumentException {
+        if (isCancelled()) {
+            throw new DocumentException(new PrintCancelledException("The print was cancelled"));
+        }
+    }
+
     public Map<URI, PdfTemplate> getTemplateCache() {
         return templateCache;
     }
@@ -175,4 +225,32 @@ public class RenderingContext {
 	}
 
 	
+
+    public boolean isTimeDependent() {
+        return timeDependent;
+    }
+
+    /**
+     * To be called when something depending on the current time is rendered.
+     * Such prints cannot be reused.
+     */
+    public void setTimeDependent() {
+        timeDependent = true;
+    }
+
+    /**
+     * @return When the images of this print must have been read
+     *         (System.currentTimeMillis()), 0 for no limit.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return The weight of the print's priority class, used to share the
+     *         tile threads between the prints.
+     */
+    public int getPriority() {
+        return priority;
+    }
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mapfish.print;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mapfish.print.utils.PJsonObject;
+
+import com.lowagie.text.BadElementException;
+import com.lowagie.text.Font;
+import com.lowagie.text.Phrase;
+
+/**
+ * A string of the layout with "${...}" variables (margins, sizes, URLs,
+ * texts, ...). It is parsed only once and then evaluated for every page and
+ * block using it. A string without variable is evaluated only once.
+ * <p/>
+ * Thread safe.
+ */
+public final class StringTemplate {
+    private static final Pattern VAR_REGEXP = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    private static final Pattern FORMAT_PATTERN = Pattern.compile("^format\\s+(%[-+# 0,(]*\\d*(\\.\\d*)?(d))\\s+(.*)$");
+
+    private static final boolean WINDOWS = System.getProperty("os.name").toLowerCase().indexOf("win") >= 0;
+
+    /**
+     * The strings come from the configurations, this is just a protection
+     * against a caller evaluating strings coming from the specs.
+     */
+    private static final int MAX_CACHED = 10000;
+
+    private static final ConcurrentMap<String, StringTemplate> CACHE = new ConcurrentHashMap<String, StringTemplate>();
+
+    /**
+     * The text around the variables, one more than the variables.
+     */
+    private final String[] literals;
+
+    private final Variable[] variables;
+
+    /**
+     * The result of {@link #evaluate} if there is no variable, null
+     * otherwise.
+     */
+    private final String constant;
+
+    private final int estimatedLength;
+
+    public StringTemplate(String source) {
+        final List<String> literalList = new ArrayList<String>();
+        final List<Variable> variableList = new ArrayList<Variable>();
+        final Matcher matcher = VAR_REGEXP.matcher(source);
+        int pos = 0;
+        while (matcher.find()) {
+            literalList.add(source.substring(pos, matcher.start()));
+            variableList.add(new Variable(matcher.group(1)));
+            pos = matcher.end();
+        }
+        literalList.add(source.substring(pos));
+        literals = literalList.toArray(new String[literalList.size()]);
+        variables = variableList.toArray(new Variable[variableList.size()]);
+        estimatedLength = source.length() + 16 * variables.length;
+        constant = variables.length == 0 ? fixFileUri(source) : null;
+    }
+
+    /**
+     * @return The template for the given string, parsed only the first time.
+     */
+    public static StringTemplate get(String source) {
+        StringTemplate result = CACHE.get(source);
+        if (result == null) {
+            result = new StringTemplate(source);
+            if (CACHE.size() < MAX_CACHED) {
+                CACHE.putIfAbsent(source, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param context May be null, in which case all the variables are taken
+     *                from the params.
+     */
+    public String evaluate(RenderingContext context, PJsonObject params) {
+        if (constant != null) {
+            return constant;
+        }
+        final StringBuilder result = new StringBuilder(estimatedLength);
+        result.append(literals[0]);
+        for (int i = 0; i < variables.length; ++i) {
+            result.append(variables[i].getValue(context, params));
+            result.append(literals[i + 1]);
+        }
+        return fixFileUri(result.toString());
+    }
+
+    /**
+     * Same as {@link #evaluate} but ${pageTot} is replaced by a block
+     * filled once the number of pages is known.
+     */
+    public Phrase render(RenderingContext context, PJsonObject params, Font font) throws BadElementException {
+        final Phrase result = new Phrase();
+        for (int i = 0; i < variables.length; ++i) {
+            result.add(literals[i]);
+            final Variable variable = variables[i];
+            if (variable.kind == Kind.PAGE_TOT) {
+                result.add(context.getCustomBlocks().getOrCreateTotalPagesBlock(font));
+            } else {
+                result.add(variable.getValue(context, params));
+            }
+        }
+        result.add(literals[variables.length]);
+        return result;
+    }
+
+    /**
+     * @return True if the result doesn't depend on the context nor the
+     *         params.
+     */
+    public boolean isConstant() {
+        return constant != null;
+    }
+
+    private static String fixFileUri(String uri) {
+        if (WINDOWS) {
+            uri = uri.replace("\\", "/");
+            if (uri.matches("file://\\w:(/.*)?")) {
+                return "file:/" + uri.substring(7);
+            }
+        }
+        return uri;
+    }
+
+    private static enum Kind {
+        PAGE_NUM, PAGE_TOT, NOW, NOW_FORMAT, FORMAT, CONFIG_DIR, SCALE, PARAM
+    }
+
+    /**
+     * A "${...}", with its kind found once for all.
+     */
+    private static final class Variable {
+        private final String key;
+        private final Kind kind;
+
+        /**
+         * For ${format %d key}, the format, its conversion and the variable
+         * to format.
+         */
+        private final String format;
+        private final char conversion;
+        private final Variable formatted;
+
+        public Variable(String key) {
+            this.key = key;
+            final Matcher matcher = FORMAT_PATTERN.matcher(key);
+            if (key.equals("pageNum")) {
+                kind = Kind.PAGE_NUM;
+            } else if (key.equals("pageTot")) {
+                kind = Kind.PAGE_TOT;
+            } else if (key.equals("now")) {
+                kind = Kind.NOW;
+            } else if (key.startsWith("now ")) {
+                kind = Kind.NOW_FORMAT;
+            } else if (matcher.matches()) {
+                kind = Kind.FORMAT;
+            } else if (key.equals("configDir")) {
+                kind = Kind.CONFIG_DIR;
+            } else if (key.equals("scale")) {
+                kind = Kind.SCALE;
+            } else {
+                kind = Kind.PARAM;
+            }
+            if (kind == Kind.FORMAT) {
+                format = matcher.group(1);
+                conversion = matcher.group(3).charAt(0);
+                formatted = new Variable(matcher.group(4));
+            } else {
+                format = null;
+                conversion = 0;
+                formatted = null;
+            }
+        }
+
+        public String getValue(RenderingContext context, PJsonObject params) {
+            if (context != null) {
+                switch (kind) {
+                    case PAGE_NUM:
+                        return Integer.toString(context.getWriter().getPageNumber());
+                    case NOW:
+                        context.setTimeDependent();
+                        return new Date().toString();
+                    case NOW_FORMAT:
+                        context.setTimeDependent();
+                        return formatTime(context);
+                    case FORMAT:
+                        return format(context, params);
+                    case CONFIG_DIR:
+                        return context.getConfigDir().replace('\\', '/');
+                    case SCALE:
+                        return Integer.toString(context.getLayout().getMainPage().getMap().createTransformer(context, params).getScale());
+                    default:
+                        final String result = context.getGlobalParams().optString(key);
+                        if (result != null) {
+                            return result;
+                        }
+                }
+            }
+            return params.getString(key);
+        }
+
+        private String format(RenderingContext context, PJsonObject params) {
+            final String valueTxt = formatted.getValue(context, params);
+            final Object value;
+            switch (conversion) {
+                case 'd':
+                case 'o':
+                case 'x':
+                case 'X':
+                    value = Long.valueOf(valueTxt);
+                    break;
+                case 'e':
+                case 'E':
+                case 'f':
+                case 'g':
+                case 'G':
+                case 'a':
+                case 'A':
+                    value = Double.valueOf(valueTxt);
+                    break;
+                default:
+                    value = valueTxt;
+            }
+            try {
+                return String.format(format, value);
+            } catch (RuntimeException e) {
+                // gracefuly fallback to the standard format
+                context.addError(e);
+                return valueTxt;
+            }
+        }
+
+        private String formatTime(RenderingContext context) {
+            try {
+                SimpleDateFormat format = new SimpleDateFormat(key.substring(4));
+                return format.format(new Date());
+            } catch (IllegalArgumentException e) {
+                // gracefuly fallback to the standard format
+                context.addError(e);
+                return new Date().toString();
+            }
+        }
+    }
+}
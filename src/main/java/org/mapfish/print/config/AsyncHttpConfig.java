@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.config;
+
+import org.mapfish.print.InvalidValueException;
+
+/**
+ * Bean mapping the "asyncHttp" section of the configuration file. When
+ * present, the map tiles are downloaded with the non-blocking
+ * {@link org.mapfish.print.AsyncHttpClient}, without keeping the threads of
+ * the tile executor busy while waiting for the servers.
+ */
+public class AsyncHttpConfig {
+    /**
+     * Max number of requests running at the same time.
+     */
+    private int maxConnections = 256;
+
+    /**
+     * Max number of requests running at the same time on one host.
+     */
+    private int maxConnectionsPerHost = 32;
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public void validate() {
+        if (maxConnections < 1) {
+            throw new InvalidValueException("asyncHttp.maxConnections", maxConnections);
+        }
+        if (maxConnectionsPerHost < 1) {
+            throw new InvalidValueException("asyncHttp.maxConnectionsPerHost", maxConnectionsPerHost);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.config;
+
+import org.mapfish.print.InvalidValueException;
+
+/**
+ * Bean mapping the "capabilitiesCache" section of the configuration file.
+ * Tells how long the capabilities of the WMS servers are kept and where they
+ * are persisted.
+ */
+public class CapabilitiesCacheConfig {
+    /**
+     * Time to live in seconds of the capabilities, 0 to keep them forever.
+     */
+    private int ttl = 60 * 60;
+
+    /**
+     * Time in seconds during which a server whose capabilities cannot be
+     * read is taken as a standard WMS without asking it again.
+     */
+    private int errorTtl = 60;
+
+    /**
+     * The capabilities are read again in the background when they are used
+     * less than that many seconds before they expire.
+     */
+    private int refreshAhead = 5 * 60;
+
+    /**
+     * Where the capabilities are stored to survive a restart (may be null).
+     */
+    private String directory = null;
+
+    public void setTtl(int ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * @return The time to live in ms, 0 for forever.
+     */
+    public long getTtl() {
+        return ttl * 1000L;
+    }
+
+    public void setErrorTtl(int errorTtl) {
+        this.errorTtl = errorTtl;
+    }
+
+    /**
+     * @return The time to live of the failures in ms.
+     */
+    public long getErrorTtl() {
+        return errorTtl * 1000L;
+    }
+
+    public void setRefreshAhead(int refreshAhead) {
+        this.refreshAhead = refreshAhead;
+    }
+
+    /**
+     * @return In ms.
+     */
+    public long getRefreshAhead() {
+        return refreshAhead * 1000L;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void validate() {
+        if (ttl < 0) {
+            throw new InvalidValueException("capabilitiesCache.ttl", ttl);
+        }
+        if (errorTtl < 0) {
+            throw new InvalidValueException("capabilitiesCache.errorTtl", errorTtl);
+        }
+        if (refreshAhead < 0) {
+            throw new InvalidValueException("capabilitiesCache.refreshAhead", refreshAhead);
+        }
+    }
+}
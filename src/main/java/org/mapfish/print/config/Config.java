@@ -21,6 +21,7 @@ package org.mapfish.print.config;
 
 //import org.apache.commons.httpclient.HostConfiguration;
 import java.io.Closeable;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Proxy;
@@ -34,6 +35,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethodBase;
@@ -43,16 +45,22 @@ import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.json.JSONException;
 import org.json.JSONWriter;
+import org.mapfish.print.AsyncHttpClient;
 import org.mapfish.print.Constants;
+import org.mapfish.print.HostLimiter;
+import org.mapfish.print.ImageCache;
+import org.mapfish.print.ImageResampler;
 import org.mapfish.print.InvalidValueException;
 import org.mapfish.print.PDFUtils;
 import org.mapfish.print.config.layout.Layout;
 import org.mapfish.print.config.layout.Layouts;
+import org.mapfish.print.map.DiskTileCache;
 import org.mapfish.print.map.MapTileTask;
 import org.mapfish.print.map.readers.MapReaderFactoryFinder;
 import org.mapfish.print.map.readers.WMSServerInfo;
 import org.mapfish.print.output.OutputFactory;
 import org.pvalsecc.concurrent.OrderedResultsExecutor;
+import org.pvalsecc.concurrent.VirtualThreadFactory;
 //import org.mapfish.print.output.OutputFormat;
 
 /**
@@ -61,6 +69,13 @@ import org.pvalsecc.concurrent.OrderedResultsExecutor;
 public class Config implements Closeable {
     public static final Logger LOGGER = Logger.getLogger(Config.class);
 
+    private static final AtomicLong NEXT_ID = new AtomicLong(0L);
+
+    /**
+     * Identifies this instance in the process wide caches.
+     */
+    private final long id = NEXT_ID.incrementAndGet();
+
     private Layouts layouts;
     private TreeSet<Integer> dpis;
     private TreeSet<Integer> scales;
@@ -85,6 +100,8 @@ public class Config implements Closeable {
     private int connectionTimeout = 40*60*1000; // 40 minutes //30*1000;
 
     private boolean tilecacheMerging = false;
+    private boolean tileMosaic = false;
+    private String imageResampling = null;
     private boolean disableScaleLocking = false;
     
     private List<SecurityStrategy> security = Collections.emptyList();
@@ -103,12 +120,23 @@ public class Config implements Closeable {
      */
     private OrderedResultsExecutor<MapTileTask> mapRenderingExecutor = null;
     private MultiThreadedHttpConnectionManager connectionManager;
+    private HostLimiter hostLimiter;
+    private HostLimitsConfig hostLimits = null;
+    private TileRequestsConfig tileRequests = null;
+    private PrioritiesConfig priorities = null;
+    private CapabilitiesCacheConfig capabilitiesCache = null;
+    private boolean virtualThreads = false;
     private TreeSet<String> formats; // private int svgMaxWidth = -1; private int svgMaxHeight = -1;
 
 	private OutputFactory outputFactory;
 
 	private MapReaderFactoryFinder mapReaderFactoryFinder;
     private String brokenUrlPlaceholder = Constants.ImagePlaceHolderConstants.THROW;
+    private DiskTileCache tileCache = null;
+    private ImageCacheConfig imageCache = null;
+    private RequestTilingConfig requestTiling = null;
+    private AsyncHttpConfig asyncHttp = null;
+    private AsyncHttpClient asyncHttpClient = null;
 
     public Config() {
         hosts.add(new LocalHostMatcher());
@@ -283,6 +311,45 @@ public class Config implements Closeable {
             key.validate();
         }
 
+        if (tileCache != null) {
+            tileCache.validate();
+        }
+
+        try {
+            getImageResampling();
+        } catch (IllegalArgumentException e) {
+            throw new InvalidValueException("imageResampling", imageResampling);
+        }
+
+        if (requestTiling != null) {
+            requestTiling.validate();
+        }
+
+        if (asyncHttp != null) {
+            asyncHttp.validate();
+        }
+
+        if (hostLimits != null) {
+            hostLimits.validate();
+        }
+
+        if (tileRequests != null) {
+            tileRequests.validate();
+        }
+
+        if (priorities != null) {
+            priorities.validate();
+        }
+
+        if (capabilitiesCache != null) {
+            capabilitiesCache.validate();
+        }
+
+        if (imageCache != null) {
+            imageCache.validate();
+            ImageCache.getInstance().requestMaxSize(imageCache.getMaxSize() * 1024L * 1024L);
+        }
+
     }
 
     /**
@@ -307,7 +374,15 @@ public class Config implements Closeable {
 
     public synchronized OrderedResultsExecutor<MapTileTask> getMapRenderingExecutor() {
         if (mapRenderingExecutor == null && globalParallelFetches > 1) {
-            mapRenderingExecutor = new OrderedResultsExecutor<MapTileTask>(globalParallelFetches, "tilesReader");
+            if (virtualThreads) {
+                if (!VirtualThreadFactory.isSupported()) {
+                    LOGGER.warn("Virtual threads are not supported by this JVM, using normal threads for each tile");
+                }
+                mapRenderingExecutor = new OrderedResultsExecutor<MapTileTask>(globalParallelFetches, "tilesReader",
+                        new VirtualThreadFactory("tileReader"));
+            } else {
+                mapRenderingExecutor = new OrderedResultsExecutor<MapTileTask>(globalParallelFetches, "tilesReader");
+            }
             mapRenderingExecutor.start();
         }
         return mapRenderingExecutor;
@@ -318,15 +393,32 @@ public class Config implements Closeable {
      */
     public synchronized void close() {
         try {
-            WMSServerInfo.clearCache();
+            if (capabilitiesCache == null) {
+                //without TTL, that's the only way to see changes in the
+                //capabilities; the ones loaded by the other apps are kept
+                WMSServerInfo.clearCache(this);
+            }
         } finally {
             try {
                 if (mapRenderingExecutor != null) {
                     mapRenderingExecutor.stop();
                 }
             } finally {
-                if (connectionManager != null) {
-                    connectionManager.shutdown();
+                try {
+                    if (connectionManager != null) {
+                        connectionManager.shutdown();
+                    }
+                } finally {
+                    try {
+                        if (asyncHttpClient != null) {
+                            asyncHttpClient.stop();
+                            asyncHttpClient = null;
+                        }
+                    } finally {
+                        if (tileCache != null) {
+                            tileCache.close();
+                        }
+                    }
                 }
             }
         }
@@ -338,7 +430,6 @@ public class Config implements Closeable {
 
     public void setPerHostParallelFetches(int perHostParallelFetches) {
         this.perHostParallelFetches = perHostParallelFetches;
-        System.getProperties().setProperty("http.maxConnections", Integer.toString(perHostParallelFetches));
     }
 
     /**
@@ -378,7 +469,9 @@ public class Config implements Closeable {
         if(connectionManager == null) {
             connectionManager = new MultiThreadedHttpConnectionManager();
             final HttpConnectionManagerParams params = connectionManager.getParams();
-            params.setDefaultMaxConnectionsPerHost(perHostParallelFetches);
+            //the real per host limits are enforced by the HostLimiter
+            params.setDefaultMaxConnectionsPerHost(hostLimits != null ?
+                    Math.max(perHostParallelFetches, hostLimits.getMaxParallelFetches()) : perHostParallelFetches);
             params.setMaxTotalConnections(globalParallelFetches);
             params.setSoTimeout(socketTimeout);
             params.setConnectionTimeout(connectionTimeout);
@@ -386,6 +479,112 @@ public class Config implements Closeable {
         return connectionManager;
     }
 
+    /**
+     * The process wide caches must not give to a configuration what has been
+     * fetched with the credentials or the local host forwarding of another
+     * one.
+     *
+     * @return Null if the given URI is fetched the same way whatever the
+     *         configuration, else an identifier of this configuration.
+     */
+    public String getAccessScope(URI uri) {
+        if (uri.getHost() != null && localHostForwardIsFrom(uri.getHost())) {
+            return getId();
+        }
+        for (SecurityStrategy sec : security) {
+            if (sec.matches(uri)) {
+                return getId();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return An identifier of this instance, unique in the process.
+     */
+    public String getId() {
+        return "config" + id;
+    }
+
+    /**
+     * Get the non-blocking client to be used to fetch the given map data.
+     *
+     * @return Null if there is no "asyncHttp" section in the configuration or
+     *         if the URI needs something not supported by this client (HTTPS,
+     *         proxy, security strategy or local host forwarding).
+     */
+    public AsyncHttpClient getAsyncHttpClient(URI uri) {
+        if (asyncHttp == null || !"http".equals(uri.getScheme()) || uri.getHost() == null ||
+                localHostForwardIsFrom(uri.getHost())) {
+            return null;
+        }
+        final List<Proxy> proxies = ProxySelector.getDefault().select(uri);
+        if (!proxies.isEmpty() && !proxies.get(0).equals(Proxy.NO_PROXY)) {
+            return null;
+        }
+        for (SecurityStrategy sec : security) {
+            if (sec.matches(uri)) {
+                return null;
+            }
+        }
+        synchronized (this) {
+            if (asyncHttpClient == null) {
+                try {
+                    asyncHttpClient = new AsyncHttpClient(asyncHttp.getMaxConnections(),
+                            asyncHttp.getMaxConnectionsPerHost(), connectionTimeout, socketTimeout);
+                } catch (IOException e) {
+                    LOGGER.error("Cannot start the asynchronous HTTP client, using the blocking one", e);
+                    asyncHttp = null;
+                    return null;
+                }
+            }
+            return asyncHttpClient;
+        }
+    }
+
+    /**
+     * @return The limiter for the number of requests done at the same time
+     *         on each host.
+     */
+    public synchronized HostLimiter getHostLimiter() {
+        if (hostLimiter == null) {
+            hostLimiter = hostLimits != null ? hostLimits.createLimiter(perHostParallelFetches) :
+                    new HostLimiter(perHostParallelFetches);
+        }
+        return hostLimiter;
+    }
+
+    public void setHostLimits(HostLimitsConfig hostLimits) {
+        this.hostLimits = hostLimits;
+    }
+
+    public HostLimitsConfig getHostLimits() {
+        return hostLimits;
+    }
+
+    public void setTileRequests(TileRequestsConfig tileRequests) {
+        this.tileRequests = tileRequests;
+    }
+
+    /**
+     * @return The deadline, retries and hedging settings or null for none.
+     */
+    public TileRequestsConfig getTileRequests() {
+        return tileRequests;
+    }
+
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
     public void setTilecacheMerging(boolean tilecacheMerging) {
         this.tilecacheMerging = tilecacheMerging;
     }
@@ -394,6 +593,33 @@ public class Config implements Closeable {
         return tilecacheMerging;
     }
 
+    public void setTileMosaic(boolean tileMosaic) {
+        this.tileMosaic = tileMosaic;
+    }
+
+    /**
+     * @return True if the bitmap tiles of a layer are drawn in a single image
+     *         before being added to the PDF.
+     */
+    public boolean isTileMosaic() {
+        return tileMosaic;
+    }
+
+    public void setImageResampling(String imageResampling) {
+        this.imageResampling = imageResampling;
+    }
+
+    /**
+     * @return How to downsample the map images having more pixels than needed
+     *         at the map's DPI, null to embed them as they are.
+     */
+    public ImageResampler.Quality getImageResampling() {
+        if (imageResampling == null || imageResampling.equalsIgnoreCase("none")) {
+            return null;
+        }
+        return ImageResampler.Quality.valueOf(imageResampling.toUpperCase());
+    }
+
     public void setDisableScaleLocking(boolean disableScaleLocking) {
         this.disableScaleLocking = disableScaleLocking;
     }
@@ -513,6 +739,92 @@ public class Config implements Closeable {
         return false;
     }
 
+    public void setTileCache(DiskTileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * @return The cache for the map tiles or null if not configured.
+     */
+    public DiskTileCache getTileCache() {
+        return tileCache;
+    }
+
+    public void setImageCache(ImageCacheConfig imageCache) {
+        this.imageCache = imageCache;
+    }
+
+    /**
+     * @return The settings for the images shared between prints or null if
+     *         they must not be cached.
+     */
+    public ImageCacheConfig getImageCache() {
+        return imageCache;
+    }
+
+    public void setRequestTiling(RequestTilingConfig requestTiling) {
+        this.requestTiling = requestTiling;
+    }
+
+    /**
+     * @return The limits for the size of the untiled requests or null if
+     *         they are never split.
+     */
+    public RequestTilingConfig getRequestTiling() {
+        return requestTiling;
+    }
+
+    public void setAsyncHttp(AsyncHttpConfig asyncHttp) {
+        this.asyncHttp = asyncHttp;
+    }
+
+    /**
+     * @return The settings of the non-blocking HTTP client or null if the
+     *         blocking one is used for everything.
+     */
+    public AsyncHttpConfig getAsyncHttp() {
+        return asyncHttp;
+    }
+
+    public void setCapabilitiesCache(CapabilitiesCacheConfig capabilitiesCache) {
+        this.capabilitiesCache = capabilitiesCache;
+    }
+
+    /**
+     * @return The settings of the cache of the WMS capabilities or null if
+     *         they are kept until the configuration is closed.
+     */
+    public CapabilitiesCacheConfig getCapabilitiesCache() {
+        return capabilitiesCache;
+    }
+
+    public void setPriorities(PrioritiesConfig priorities) {
+        this.priorities = priorities;
+    }
+
+    /**
+     * @return The priority classes or null if all the prints have the same
+     *         priority.
+     */
+    public PrioritiesConfig getPriorities() {
+        return priorities;
+    }
+
+    /**
+     * @param priorityClass The priority class asked for by a print (may be null).
+     * @return The weight of the print in the job queue and the tile executor.
+     * @throws org.mapfish.print.InvalidValueException If the class is unknown.
+     */
+    public int getPriorityWeight(String priorityClass) {
+        if (priorities == null) {
+            if (priorityClass != null) {
+                throw new InvalidValueException("priority", priorityClass);
+            }
+            return 1;
+        }
+        return priorities.getWeight(priorityClass);
+    }
+
     public void setBrokenUrlPlaceholder(String brokenUrlPlaceholder) {
         this.brokenUrlPlaceholder = brokenUrlPlaceholder;
     }
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mapfish.print.HostLimiter;
+import org.mapfish.print.InvalidValueException;
+
+/**
+ * Bean mapping the "hostLimits" section of the configuration file.
+ *
+ * @see HostLimiter
+ */
+public class HostLimitsConfig {
+    /**
+     * Max number of requests running at the same time, by host name.
+     */
+    private HashMap<String, Object> hosts = new HashMap<String, Object>();
+
+    /**
+     * If true, the limits are lowered for the hosts that are slow or
+     * returning errors.
+     */
+    private boolean adaptive = false;
+
+    /**
+     * The lowest limit in adaptive mode.
+     */
+    private int minParallelFetches = 1;
+
+    /**
+     * Requests slower than that (in ms) reduce the limit in adaptive mode.
+     */
+    private int latencyThreshold = 10000;
+
+    public void setHosts(HashMap<String, Object> hosts) {
+        this.hosts = hosts;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public void setMinParallelFetches(int minParallelFetches) {
+        this.minParallelFetches = minParallelFetches;
+    }
+
+    public void setLatencyThreshold(int latencyThreshold) {
+        this.latencyThreshold = latencyThreshold;
+    }
+
+    /**
+     * @return The max by host name, in lower case.
+     */
+    public Map<String, Integer> getHosts() {
+        final Map<String, Integer> result = new HashMap<String, Integer>();
+        if (hosts != null) {
+            for (Map.Entry<String, Object> entry : hosts.entrySet()) {
+                result.put(entry.getKey().toLowerCase(), Integer.parseInt(String.valueOf(entry.getValue())));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The biggest limit of the configured hosts, 0 if none.
+     */
+    public int getMaxParallelFetches() {
+        int result = 0;
+        for (Integer value : getHosts().values()) {
+            result = Math.max(result, value);
+        }
+        return result;
+    }
+
+    public HostLimiter createLimiter(int defaultMax) {
+        return new HostLimiter(defaultMax, getHosts(), adaptive, minParallelFetches, latencyThreshold);
+    }
+
+    public void validate() {
+        if (minParallelFetches < 1) {
+            throw new InvalidValueException("hostLimits.minParallelFetches", minParallelFetches);
+        }
+        if (latencyThreshold < 0) {
+            throw new InvalidValueException("hostLimits.latencyThreshold", latencyThreshold);
+        }
+        if (hosts != null) {
+            for (Map.Entry<String, Object> entry : hosts.entrySet()) {
+                final String value = String.valueOf(entry.getValue());
+                try {
+                    if (Integer.parseInt(value) < 1) {
+                        throw new InvalidValueException("hostLimits.hosts." + entry.getKey(), value);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new InvalidValueException("hostLimits.hosts." + entry.getKey(), value);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.config;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mapfish.print.ImageCache;
+import org.mapfish.print.InvalidValueException;
+
+/**
+ * Bean mapping the "imageCache" section of the configuration file.
+ *
+ * @see ImageCache
+ */
+public class ImageCacheConfig {
+    /**
+     * Max size in MB of the process wide cache.
+     */
+    private int maxSize = (int) (ImageCache.DEFAULT_MAX_SIZE / (1024 * 1024));
+
+    /**
+     * Default time to live in seconds.
+     */
+    private int ttl = 5 * 60;
+
+    /**
+     * Time to live in seconds, by host name.
+     */
+    private HashMap<String, Object> hosts = new HashMap<String, Object>();
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setTtl(int ttl) {
+        this.ttl = ttl;
+    }
+
+    public void setHosts(HashMap<String, Object> hosts) {
+        this.hosts = hosts;
+    }
+
+    /**
+     * @return How long the images of the given URI stay fresh (in ms). 0 if
+     *         they must not be cached.
+     */
+    public long getTtl(URI uri) {
+        Object value = null;
+        if (hosts != null && uri.getHost() != null) {
+            value = hosts.get(uri.getHost());
+        }
+        final long seconds = value != null ? Long.parseLong(value.toString()) : ttl;
+        return Math.max(0L, seconds * 1000L);
+    }
+
+    public void validate() {
+        if (maxSize < 0) {
+            throw new InvalidValueException("imageCache.maxSize", maxSize);
+        }
+        if (ttl < 0) {
+            throw new InvalidValueException("imageCache.ttl", ttl);
+        }
+        if (hosts != null) {
+            for (Map.Entry<String, Object> entry : hosts.entrySet()) {
+                try {
+                    Long.parseLong(String.valueOf(entry.getValue()));
+                } catch (NumberFormatException e) {
+                    throw new InvalidValueException("imageCache.hosts." + entry.getKey(), String.valueOf(entry.getValue()));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mapfish.print.InvalidValueException;
+
+/**
+ * Bean mapping the "priorities" section of the configuration file. Defines
+ * the priority classes a print can ask for (the "priority" attribute of the
+ * spec), each with a weight. A print with a bigger weight goes first in the
+ * job queue and gets more of the tile threads than the prints with a
+ * smaller weight (for example short interactive prints vs. long batch
+ * atlases).
+ */
+public class PrioritiesConfig {
+    /**
+     * Weight by class name.
+     */
+    private HashMap<String, Object> classes = new HashMap<String, Object>();
+
+    /**
+     * The class of the prints that don't ask for one.
+     */
+    private String defaultClass = null;
+
+    public void setClasses(HashMap<String, Object> classes) {
+        this.classes = classes;
+    }
+
+    public void setDefaultClass(String defaultClass) {
+        this.defaultClass = defaultClass;
+    }
+
+    public String getDefaultClass() {
+        return defaultClass;
+    }
+
+    /**
+     * @param name The class asked for by the print (may be null).
+     * @return The weight of the class, 1 if none was asked for and there is
+     *         no default class.
+     * @throws InvalidValueException If the class is unknown.
+     */
+    public int getWeight(String name) {
+        if (name == null) {
+            name = defaultClass;
+            if (name == null) {
+                return 1;
+            }
+        }
+        final Object value = classes != null ? classes.get(name) : null;
+        if (value == null) {
+            throw new InvalidValueException("priority", name);
+        }
+        return Integer.parseInt(value.toString());
+    }
+
+    public void validate() {
+        if (classes != null) {
+            for (Map.Entry<String, Object> entry : classes.entrySet()) {
+                try {
+                    if (Integer.parseInt(String.valueOf(entry.getValue())) < 1) {
+                        throw new InvalidValueException("priorities.classes." + entry.getKey(), String.valueOf(entry.getValue()));
+                    }
+                } catch (NumberFormatException e) {
+                    throw new InvalidValueException("priorities.classes." + entry.getKey(), String.valueOf(entry.getValue()));
+                }
+            }
+        }
+        if (defaultClass != null && (classes == null || !classes.containsKey(defaultClass))) {
+            throw new InvalidValueException("priorities.defaultClass", defaultClass);
+        }
+    }
+}
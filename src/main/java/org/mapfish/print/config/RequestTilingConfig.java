@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.config;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mapfish.print.InvalidValueException;
+
+/**
+ * Bean mapping the "requestTiling" section of the configuration file. Splits
+ * the single image requests of the untiled layers (WMS without tileCache
+ * info) that are too big for the map servers into a grid of smaller
+ * requests, fetched in parallel.
+ */
+public class RequestTilingConfig {
+    /**
+     * Default max width and height in pixels of one request, 0 for no limit.
+     */
+    private int maxSize = 2048;
+
+    /**
+     * Number of pixels fetched around each request and cropped afterwards,
+     * to avoid seams in the labels.
+     */
+    private int buffer = 0;
+
+    /**
+     * Max size in pixels, by layer name or base URL.
+     */
+    private HashMap<String, Object> layers = new HashMap<String, Object>();
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setBuffer(int buffer) {
+        this.buffer = buffer;
+    }
+
+    public int getBuffer() {
+        return buffer;
+    }
+
+    public void setLayers(HashMap<String, Object> layers) {
+        this.layers = layers;
+    }
+
+    /**
+     * @param layer   The name of the layer (may be null)
+     * @param baseUrl The base URL of the layer (may be null)
+     * @return The max width and height of the requests for the given layer,
+     *         0 if there is no limit.
+     */
+    public int getMaxSize(String layer, URI baseUrl) {
+        Object value = null;
+        if (layers != null) {
+            if (layer != null) {
+                value = layers.get(layer);
+            }
+            if (value == null && baseUrl != null) {
+                value = layers.get(baseUrl.toString());
+            }
+        }
+        return Math.max(0, value != null ? Integer.parseInt(value.toString()) : maxSize);
+    }
+
+    public void validate() {
+        if (maxSize < 0) {
+            throw new InvalidValueException("requestTiling.maxSize", maxSize);
+        }
+        if (buffer < 0) {
+            throw new InvalidValueException("requestTiling.buffer", buffer);
+        }
+        if (layers != null) {
+            for (Map.Entry<String, Object> entry : layers.entrySet()) {
+                try {
+                    Integer.parseInt(String.valueOf(entry.getValue()));
+                } catch (NumberFormatException e) {
+                    throw new InvalidValueException("requestTiling.layers." + entry.getKey(), String.valueOf(entry.getValue()));
+                }
+            }
+        }
+    }
+}
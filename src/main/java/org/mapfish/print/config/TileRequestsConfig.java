@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.config;
+
+import org.mapfish.print.InvalidValueException;
+
+/**
+ * Bean mapping the "tileRequests" section of the configuration file. Bounds
+ * the time taken by the requests for the images and map tiles of a print.
+ */
+public class TileRequestsConfig {
+    /**
+     * Max time in seconds for reading the images of a print, 0 for no limit.
+     */
+    private int deadline = 0;
+
+    /**
+     * Number of times a failed request is done again.
+     */
+    private int retries = 0;
+
+    /**
+     * Delay in ms before the first retry, doubled for each following retry.
+     */
+    private int retryDelay = 500;
+
+    /**
+     * If true, a second identical request is sent when the first one is
+     * slower than most of the requests to the same host.
+     */
+    private boolean hedging = false;
+
+    /**
+     * The percentile of the latency of a host after which a hedged request
+     * is sent.
+     */
+    private int hedgingPercentile = 95;
+
+    public void setDeadline(int deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return The deadline in ms, 0 for none.
+     */
+    public long getDeadline() {
+        return deadline * 1000L;
+    }
+
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public void setRetryDelay(int retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public int getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    public boolean isHedging() {
+        return hedging;
+    }
+
+    public void setHedgingPercentile(int hedgingPercentile) {
+        this.hedgingPercentile = hedgingPercentile;
+    }
+
+    public int getHedgingPercentile() {
+        return hedgingPercentile;
+    }
+
+    public void validate() {
+        if (deadline < 0) {
+            throw new InvalidValueException("tileRequests.deadline", deadline);
+        }
+        if (retries < 0) {
+            throw new InvalidValueException("tileRequests.retries", retries);
+        }
+        if (retryDelay < 0) {
+            throw new InvalidValueException("tileRequests.retryDelay", retryDelay);
+        }
+        if (hedgingPercentile < 1 || hedgingPercentile > 99) {
+            throw new InvalidValueException("tileRequests.hedgingPercentile", hedgingPercentile);
+        }
+    }
+}
@@ -48,6 +48,12 @@ public class Layout {
 	
     private String outputFilename;
 
+    /**
+     * If true, the prints done with this layout can be served again for the
+     * same spec (see the printCache init-param of the servlet).
+     */
+    private boolean cacheable = false;
+
     public void render(PJsonObject params, RenderingContext context) throws DocumentException {
         if (metaData != null) {
             metaData.render(params, context);
@@ -60,12 +66,16 @@ public class Layout {
 		
         if (mainPage != null) {
             PJsonArray pages = params.getJSONArray("pages");
+            context.getProgress().setNbPages(pages.size());
             for (int i = 0; i < pages.size(); ++i) {
+                context.checkCancelled();
                 final PJsonObject cur = pages.getJSONObject(i);
                 mainPage.render(cur, context);
+                context.getProgress().pageDone();
             }
         }
         
+        context.checkCancelled();
         renderExtraPages(ExtraPage.BEFORE_LAST_PAGE, params, context);
 		
         if (lastPage != null) {
@@ -165,4 +175,12 @@ public class Layout {
     public void setOutputFilename(String outputFilename) {
         this.outputFilename = outputFilename;
     }
+
+    public boolean isCacheable() {
+        return cacheable;
+    }
+
+    public void setCacheable(boolean cacheable) {
+        this.cacheable = cacheable;
+    }
 }
@@ -22,17 +22,16 @@ package org.mapfish.print.config.layout;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
@@ -40,23 +39,24 @@ import org.mapfish.print.InvalidValueException;
 import org.mapfish.print.PDFUtils;
 import org.mapfish.print.RenderingContext;
 import org.mapfish.print.legend.LegendItemTable;
+import org.mapfish.print.map.MapTileTask;
+import org.mapfish.print.map.ParallelMapTileLoader;
 import org.mapfish.print.utils.PJsonArray;
 import org.mapfish.print.utils.PJsonObject;
 
 import com.lowagie.text.Chunk;
-import com.lowagie.text.Document;
 import com.lowagie.text.DocumentException;
 import com.lowagie.text.Element;
 import com.lowagie.text.Font;
 import com.lowagie.text.FontFactory;
 import com.lowagie.text.Image;
+import com.lowagie.text.PageSize;
 import com.lowagie.text.Phrase;
 import com.lowagie.text.pdf.BaseFont;
 import com.lowagie.text.pdf.PdfContentByte;
 import com.lowagie.text.pdf.PdfPCell;
 import com.lowagie.text.pdf.PdfPTable;
 import com.lowagie.text.pdf.PdfTemplate;
-import com.lowagie.text.pdf.PdfWriter;
 
 /**
  * Bean to configure a !legends block.
@@ -65,8 +65,13 @@ import com.lowagie.text.pdf.PdfWriter;
  */
 public class LegendsBlock extends Block {
     public static final Logger LOGGER = Logger.getLogger(LegendsBlock.class);
-    private static String tempDir = System.getProperty("java.io.tmpdir");
-    private static String fileSeparator = System.getProperty("file.separator");
+
+    /**
+     * Width given to the tables whose width is not locked when they are
+     * measured (the one of an A4 page with the default margins, what
+     * iText would use when adding them to a default document).
+     */
+    private static final float MEASURE_WIDTH = PageSize.A4.getWidth() - 2 * 36f;
 
     private boolean borders = false; // for debugging or seeing effects
     private float maxWidth = Float.MAX_VALUE; // so setting max value!
@@ -133,19 +138,6 @@ public class LegendsBlock extends Block {
      * @author Stéphane Brunner
      */
     private class Renderer {
-        /*
-         * need these to calculate widths/heights of output
-         *
-         * For example a cell could contain the text "Hello World"
-         * while it is the equivalent of 7 characters wide "World" would
-         * be wrapped onto the next line which would make the height
-         * calculation complicated if not actually rendered onto a page.
-         * This is important for long legend texts which wrap.
-         */
-        private String tempFilename;
-        private Document tempDocument = new Document();
-        private PdfWriter writer;
-
         private RenderingContext context;
 
         // all the pdf columns
@@ -167,7 +159,6 @@ public class LegendsBlock extends Block {
         private PdfPCell leftCell;
         private PdfPCell rightCell;
         private float[] absoluteWidths;
-        private boolean needTempDocument = true;
 
         /**
          * Construct
@@ -178,14 +169,6 @@ public class LegendsBlock extends Block {
             column = getDefaultOuterTable(1);
             columns.add(column);
             this.context = context;
-            PJsonArray legends = context.getGlobalParams().optJSONArray("legends");
-            if (legends == null || legends.size() == 0 || (overflow && hasExtraRendering())) {
-                // this prevents a bug when there are no legends
-                needTempDocument = false;
-            }
-            if (needTempDocument) {
-                makeTempDocument(); // need this to calculate widths and heights of elements!
-            }
         }
 
         public void render(PdfElement target) throws DocumentException {
@@ -207,6 +190,7 @@ public class LegendsBlock extends Block {
 	            float maxColumnWidth = maxWidth;
 	
 	            if (legends != null && legends.size() > 0) {
+	                prefetchIcons(legends);
 	                for (int i = 0; i < legends.size(); ++i) {
 	                	try {
 	                		createLegend(legends.getJSONObject(i), i == 0);
@@ -268,7 +252,7 @@ public class LegendsBlock extends Block {
             }
             table.setHorizontalAlignment(horizontalAlignment);
             if(fitWidth != 0.0f || fitHeight != 0.0) {
-            	tempDocument.add(table);
+            	getHeight(table);
             	float aspectRatio = table.getTotalWidth() / table.getTotalHeight();
             	if(fitWidth == 0.0f) {
             		fitWidth = aspectRatio * fitHeight;
@@ -287,9 +271,6 @@ public class LegendsBlock extends Block {
             } else {
             	target.add(table);
             }
-            if(!overflowDone) {
-            	cleanup(); // don't forget to cleanup afterwards
-            }
         }
         
         /**
@@ -642,6 +623,58 @@ public class LegendsBlock extends Block {
             return width;
         }
 
+        /**
+         * Download all the icons of the legends in parallel with the tile
+         * executor (and its per host limits), so that the layout finds them
+         * in the template cache instead of fetching them one after the other.
+         */
+        private void prefetchIcons(PJsonArray legends) {
+            final Set<URI> icons = new LinkedHashSet<URI>();
+            for (int i = 0; i < legends.size(); ++i) {
+                final PJsonObject layer = legends.getJSONObject(i);
+                addIcons(layer, icons);
+                final PJsonArray classes = layer.optJSONArray("classes");
+                for (int j = 0; classes != null && j < classes.size(); ++j) {
+                    addIcons(classes.getJSONObject(j), icons);
+                }
+            }
+            if (icons.size() < 2 || context.getConfig().getMapRenderingExecutor() == null) {
+                //nothing to do in parallel, the layout loads them anyway
+                return;
+            }
+            final ParallelMapTileLoader loader = new ParallelMapTileLoader(context, context.getDirectContent());
+            for (URI icon : icons) {
+                loader.addTileToLoad(new IconPrefetchTask(context, icon));
+            }
+            loader.waitForCompletion();
+        }
+
+        private void addIcons(PJsonObject node, Set<URI> icons) {
+            final PJsonArray iconsArray = node.optJSONArray("icons");
+            if (iconsArray != null) {
+                for (int i = 0; i < iconsArray.size(); ++i) {
+                    addIcon(iconsArray.getString(i), icons);
+                }
+            } else {
+                addIcon(node.optString("icon"), icons);
+            }
+        }
+
+        private void addIcon(String iconItem, Set<URI> icons) {
+            if (iconItem == null || iconItem.indexOf("image%2Fsvg%2Bxml") != -1) {
+                //the SVG icons are not downloaded the same way
+                return;
+            }
+            try {
+                final URI uri = new URI(iconItem);
+                if ("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme())) {
+                    icons.add(uri);
+                }
+            } catch (URISyntaxException e) {
+                //will fail in the layout
+            }
+        }
+
         /**
          * Create a chunk from an image (svg, png, ...)
          * @param context PDF rendering context
@@ -674,64 +707,18 @@ public class LegendsBlock extends Block {
         }               
 
         /**
-         * creates a "real" PDF document to draw on to be able to calculate
-         * correct widths of text etc
-         * @throws DocumentException
-         */
-        private void makeTempDocument() throws DocumentException {
-            try {
-                tempFilename = tempDir.indexOf('/') != -1 ? "" : "\\";
-                long time = (new Date()).getTime();
-                tempFilename = tempDir + fileSeparator +
-                        "mapfish-print-tmp-"+ time +".pdf";
-                // Unfortunately have to open an actual file on disk
-                // for the calculations to work properly
-                writer = PdfWriter.getInstance(tempDocument,
-                        new FileOutputStream(tempFilename));
-                tempDocument.open();
-            } catch (FileNotFoundException e) {
-                throw new DocumentException(e);
-            } catch (DocumentException e) {
-                // don't forget to delete the useless file
-                new File(tempFilename).delete();
-                throw new DocumentException(e);
-            }
-        }
-
-        /**
-         * delete the temporary file needed for dimensions' calculations
-         * @throws DocumentException
-         */
-        private void cleanup() throws DocumentException {
-            if (!needTempDocument) {
-                return;
-            }
-            try {
-                tempDocument.close();
-                writer.close();
-                // don't forget to delete the useless file
-            } catch (Exception e) {
-                throw new DocumentException(e);
-            } finally {
-                new File(tempFilename).delete();
-            }
-        }
-
-        /**
-         * get the height in points when printed onto the temporary document
-         * @param element any PDF element
+         * Get the height in points the table will have once in the PDF,
+         * without writing it anywhere. The texts are wrapped according to the
+         * widths of the columns, using the font metrics, and the images
+         * according to their size.
+         * @param table any PDF table
          * @return height in points
-         * @throws DocumentException
          */
-        private float getHeight(Element element) throws DocumentException {
-            tempDocument.add(element);
-            if (element instanceof PdfPTable) {
-                return ((PdfPTable) element).getTotalHeight();
-            }
-            if (element instanceof PdfPCell) {
-                return ((PdfPCell) element).getHeight();
+        private float getHeight(PdfPTable table) {
+            if (!table.isLockedWidth()) {
+                table.setTotalWidth(MEASURE_WIDTH * table.getWidthPercentage() / 100f);
             }
-            return -1;
+            return table.getTotalHeight();
         }
 
         /**
@@ -1111,6 +1098,42 @@ public class LegendsBlock extends Block {
         }
     }
 
+    /**
+     * Puts a legend icon in the template cache of the print. Nothing is
+     * drawn and the errors are ignored: they are reported when the layout
+     * uses the icon.
+     */
+    private static class IconPrefetchTask extends MapTileTask {
+        private final RenderingContext context;
+        private final URI uri;
+
+        public IconPrefetchTask(RenderingContext context, URI uri) {
+            this.context = context;
+            this.uri = uri;
+        }
+
+        @Override
+        protected void readTile() {
+            try {
+                PDFUtils.getSharedImage(context, uri, 0f, 0f, 0f);
+            } catch (Exception e) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Cannot prefetch the legend icon " + uri + ": " + e);
+                }
+            }
+        }
+
+        @Override
+        public boolean handleException(RenderingContext context) {
+            //nothing to draw
+            return true;
+        }
+
+        @Override
+        protected void renderOnPdf(PdfContentByte dc) {
+        }
+    }
+
     /**
      * Sets the overflow behavious: if true legends flow to next pages.
      * 
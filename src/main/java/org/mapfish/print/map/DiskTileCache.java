@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.map;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.mapfish.print.InvalidValueException;
+
+/**
+ * Bean mapping the "tileCache" section of the configuration file. Persistent
+ * cache of the map tiles, shared by all the prints using the same
+ * configuration.
+ * <p/>
+ * The tiles are stored in files named after a hash of their URI (the
+ * headers sent with the request are not part of the key). The least recently
+ * used tiles are removed when the cache grows bigger than maxSize.
+ * <p/>
+ * The index of the files is shared by all the instances using the same
+ * directory (for example the old and the new configuration while it is
+ * reloaded), so that they agree on the size of the cache.
+ */
+public class DiskTileCache {
+    public static final Logger LOGGER = Logger.getLogger(DiskTileCache.class);
+
+    private static final String SUFFIX = ".tile";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private String directory;
+
+    /**
+     * Max size in MB.
+     */
+    private int maxSize = 500;
+
+    /**
+     * Default time to live in seconds.
+     */
+    private int ttl = 24 * 60 * 60;
+
+    /**
+     * Time to live in seconds, by layer name or base URL.
+     */
+    private HashMap<String, Object> layers = new HashMap<String, Object>();
+
+    /**
+     * The states of the directories in use, by canonical path. Protected by
+     * itself.
+     */
+    private static final Map<String, Store> STORES = new HashMap<String, Store>();
+
+    /**
+     * The state of the directory, shared with the other instances using it.
+     * Protected by {@link #STORES}.
+     */
+    private Store store = null;
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public void setTtl(int ttl) {
+        this.ttl = ttl;
+    }
+
+    public void setLayers(HashMap<String, Object> layers) {
+        this.layers = layers;
+    }
+
+    /**
+     * @param layer   The name of the layer (may be null)
+     * @param baseUrl The base URL of the layer (may be null)
+     * @return The time to live of the tiles of the given layer in milliseconds.
+     *         0 if they must not be cached.
+     */
+    public long getTtl(String layer, URI baseUrl) {
+        Object value = null;
+        if (layers != null) {
+            if (layer != null) {
+                value = layers.get(layer);
+            }
+            if (value == null && baseUrl != null) {
+                value = layers.get(baseUrl.toString());
+            }
+        }
+        final long seconds = value != null ? Long.parseLong(value.toString()) : ttl;
+        return Math.max(0L, seconds * 1000L);
+    }
+
+    /**
+     * @return The content of the tile or null if it's not in the cache or
+     *         older than the given TTL.
+     */
+    public byte[] get(URI uri, long ttlMillis) {
+        final String key = getKey(uri);
+        final File file = getFile(key);
+        final Store store = getStore();
+        synchronized (store) {
+            if (getIndex(store).get(key) == null) {
+                return null;
+            }
+        }
+
+        if (System.currentTimeMillis() - file.lastModified() > ttlMillis) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Expired tile in cache: " + uri);
+            }
+            remove(store, key);
+            return null;
+        }
+
+        try {
+            final byte[] data = readFile(file);
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Tile read from the cache: " + uri);
+            }
+            return data;
+        } catch (IOException e) {
+            LOGGER.warn("Cannot read cached tile " + file.getAbsolutePath() + ": " + e.getMessage());
+            remove(store, key);
+            return null;
+        }
+    }
+
+    /**
+     * Cheaper than {@link #get(URI, long)}, the file is not read.
+     *
+     * @return True if the tile is in the cache and not older than the given TTL.
+     */
+    public boolean contains(URI uri, long ttlMillis) {
+        final String key = getKey(uri);
+        final Store store = getStore();
+        synchronized (store) {
+            if (!getIndex(store).containsKey(key)) {
+                return false;
+            }
+        }
+        return System.currentTimeMillis() - getFile(key).lastModified() <= ttlMillis;
+    }
+
+    /**
+     * Store the content of a tile.
+     */
+    public void put(URI uri, byte[] data) {
+        final String key = getKey(uri);
+        final File file = getFile(key);
+        final File tmpFile = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        final Store store = getStore();
+        synchronized (store) {
+            getIndex(store);  // must be built before writing, it removes the stale temporary files
+        }
+        try {
+            final File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException("Cannot create directory " + parent.getAbsolutePath());
+            }
+            writeFile(tmpFile, data);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot store tile " + uri + " in the cache: " + e.getMessage());
+            tmpFile.delete();
+            return;
+        }
+
+        synchronized (store) {
+            final Long previous = getIndex(store).remove(key);
+            if (previous != null) {
+                store.totalSize -= previous;
+            }
+            if (file.exists() && !file.delete()) {
+                LOGGER.warn("Cannot replace cached tile " + file.getAbsolutePath());
+                tmpFile.delete();
+                return;
+            }
+            if (!tmpFile.renameTo(file)) {
+                LOGGER.warn("Cannot rename " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+                tmpFile.delete();
+                return;
+            }
+            store.index.put(key, (long) data.length);
+            store.totalSize += data.length;
+            evict(store);
+        }
+    }
+
+    public long getTotalSize() {
+        final Store store = getStore();
+        synchronized (store) {
+            getIndex(store);
+            return store.totalSize;
+        }
+    }
+
+    /**
+     * Stop sharing the index of the directory. The index is forgotten once
+     * no instance uses it anymore.
+     */
+    public void close() {
+        synchronized (STORES) {
+            if (store != null) {
+                if (--store.nbUsers == 0) {
+                    STORES.remove(store.path);
+                }
+                store = null;
+            }
+        }
+    }
+
+    public void validate() {
+        if (directory == null) {
+            throw new InvalidValueException("tileCache.directory", "null");
+        }
+        if (maxSize < 0) {
+            throw new InvalidValueException("tileCache.maxSize", maxSize);
+        }
+        if (ttl < 0) {
+            throw new InvalidValueException("tileCache.ttl", ttl);
+        }
+        if (layers != null) {
+            for (Map.Entry<String, Object> entry : layers.entrySet()) {
+                try {
+                    Long.parseLong(String.valueOf(entry.getValue()));
+                } catch (NumberFormatException e) {
+                    throw new InvalidValueException("tileCache.layers." + entry.getKey(), String.valueOf(entry.getValue()));
+                }
+            }
+        }
+    }
+
+    private void remove(Store store, String key) {
+        synchronized (store) {
+            final Long size = getIndex(store).remove(key);
+            if (size != null) {
+                store.totalSize -= size;
+                deleteFile(getFile(key));
+            }
+        }
+    }
+
+    /**
+     * @return The state of the directory, shared with the other instances
+     *         using the same directory.
+     */
+    private Store getStore() {
+        synchronized (STORES) {
+            if (store == null) {
+                final File dir = new File(directory);
+                String path;
+                try {
+                    path = dir.getCanonicalPath();
+                } catch (IOException e) {
+                    path = dir.getAbsolutePath();
+                }
+                store = STORES.get(path);
+                if (store == null) {
+                    store = new Store(path);
+                    STORES.put(path, store);
+                }
+                store.nbUsers++;
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Remove the least recently used tiles until the cache fits in maxSize.
+     * Must be called with the lock of the store.
+     */
+    private void evict(Store store) {
+        final long max = maxSize * 1024L * 1024L;
+        final Iterator<Map.Entry<String, Long>> it = store.index.entrySet().iterator();
+        while (store.totalSize > max && it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            it.remove();
+            store.totalSize -= entry.getValue();
+            deleteFile(getFile(entry.getKey()));
+        }
+    }
+
+    /**
+     * Lazily build the index from the content of the directory. The oldest
+     * files are considered to be the least recently used.
+     * Must be called with the lock of the store.
+     */
+    private LinkedHashMap<String, Long> getIndex(Store store) {
+        if (store.index == null) {
+            store.index = new LinkedHashMap<String, Long>(1000, 0.75f, true);
+            store.totalSize = 0L;
+            final List<File> files = new ArrayList<File>();
+            final File[] subDirs = new File(directory).listFiles();
+            if (subDirs != null) {
+                for (File subDir : subDirs) {
+                    final File[] children = subDir.listFiles();
+                    if (children == null) {
+                        continue;
+                    }
+                    for (File child : children) {
+                        if (child.getName().endsWith(SUFFIX)) {
+                            files.add(child);
+                        } else if (child.getName().endsWith(TMP_SUFFIX)) {
+                            deleteFile(child);
+                        }
+                    }
+                }
+            }
+            Collections.sort(files, new Comparator<File>() {
+                public int compare(File o1, File o2) {
+                    final long diff = o1.lastModified() - o2.lastModified();
+                    return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                }
+            });
+            for (File file : files) {
+                final String name = file.getName();
+                store.index.put(name.substring(0, name.length() - SUFFIX.length()), file.length());
+                store.totalSize += file.length();
+            }
+            LOGGER.info("Tile cache " + directory + " contains " + store.index.size() + " tiles (" + store.totalSize + " bytes)");
+            evict(store);
+        }
+        return store.index;
+    }
+
+    private File getFile(String key) {
+        return new File(new File(directory, key.substring(0, 2)), key + SUFFIX);
+    }
+
+    /**
+     * The key is a hash of the URI, without the user info.
+     */
+    public static String getKey(URI uri) {
+        String text = uri.toString();
+        if (uri.getRawUserInfo() != null) {
+            text = text.replace(uri.getRawUserInfo() + "@", "");
+        }
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(text.getBytes("UTF-8"));
+            final StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16));
+                result.append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Cannot delete file:" + file.getAbsolutePath());
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream((int) file.length());
+            final byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                result.write(buffer, 0, length);
+            }
+            return result.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * The state of a cache directory.
+     */
+    private static class Store {
+        private final String path;
+
+        /**
+         * The number of {@link DiskTileCache} using it. Protected by {@link #STORES}.
+         */
+        private int nbUsers = 0;
+
+        /**
+         * The cached files and their size, the least recently used first.
+         * Protected by this.
+         */
+        private LinkedHashMap<String, Long> index = null;
+
+        /**
+         * Sum of the size of the files in the index. Protected by this.
+         */
+        private long totalSize = 0L;
+
+        public Store(String path) {
+            this.path = path;
+        }
+    }
+}
@@ -20,7 +20,11 @@
 package org.mapfish.print.map;
 
 import java.io.IOException;
+import java.net.URI;
 
+import org.mapfish.print.ImageFetcher;
+import org.mapfish.print.PDFUtils;
+import org.mapfish.print.PrintCancelledException;
 import org.mapfish.print.RenderingContext;
 import org.pvalsecc.concurrent.OrderedResultsExecutor;
 
@@ -30,13 +34,31 @@ import com.lowagie.text.pdf.PdfContentByte;
 /**
  * Task for loading and rendering a tile.
  */
-public abstract class MapTileTask implements OrderedResultsExecutor.Task<MapTileTask> {
+public abstract class MapTileTask implements OrderedResultsExecutor.AsyncTask<MapTileTask> {
     /**
      * When not null, we had an exception in the reading.
      */
     private Exception readException;
 
+    /**
+     * The print this tile is for, set when the task is scheduled. Used to
+     * skip the reading once the print is cancelled.
+     */
+    private RenderingContext printContext;
+
+    void setPrintContext(RenderingContext printContext) {
+        this.printContext = printContext;
+    }
+
+    protected boolean isCancelled() {
+        return printContext != null && printContext.isCancelled();
+    }
+
     public MapTileTask process() {
+        if (isCancelled()) {
+            readException = new PrintCancelledException("The print was cancelled");
+            return this;
+        }
         try {
             readTile();
         } catch (Exception e) {
@@ -45,9 +67,18 @@ public abstract class MapTileTask implements OrderedResultsExecutor.Task<MapTile
         return this;
     }
 
+    /**
+     * Called by the executor. By default, does the reading right away.
+     */
+    public void start(OrderedResultsExecutor.Continuation<MapTileTask> continuation) {
+        continuation.done(process());
+    }
+
     public boolean handleException(RenderingContext context) {
         if (readException != null) {
-            context.addError(readException);
+            if (!(readException instanceof PrintCancelledException)) {
+                context.addError(readException);
+            }
             return true;
         }
         return false;
@@ -65,6 +96,52 @@ public abstract class MapTileTask implements OrderedResultsExecutor.Task<MapTile
      */
     protected abstract void renderOnPdf(PdfContentByte dc) throws DocumentException;
 
+    /**
+     * Task whose reading is mainly the download of an image. With the
+     * non-blocking HTTP client, no executor thread is used while waiting for
+     * the server: {@link #readTile()} is called once the image is there and
+     * gets it without waiting.
+     */
+    public static abstract class Download extends MapTileTask {
+        private final RenderingContext context;
+        private final URI uri;
+        private final long cacheTtl;
+
+        /**
+         * @param cacheTtl How long the image can be kept in the tile cache (in ms), 0 to not use it.
+         */
+        protected Download(RenderingContext context, URI uri, long cacheTtl) {
+            this.context = context;
+            this.uri = uri;
+            this.cacheTtl = cacheTtl;
+        }
+
+        @Override
+        public void start(final OrderedResultsExecutor.Continuation<MapTileTask> continuation) {
+            if (isCancelled()) {
+                super.start(continuation);
+                return;
+            }
+            final ImageFetcher.Prefetch prefetch = PDFUtils.prefetch(context, uri, cacheTtl, new ImageFetcher.PrefetchListener() {
+                public void fetched(final ImageFetcher.Prefetch prefetch) {
+                    continuation.resume(new Runnable() {
+                        public void run() {
+                            try {
+                                process();
+                            } finally {
+                                prefetch.release();
+                            }
+                            continuation.done(Download.this);
+                        }
+                    });
+                }
+            });
+            if (prefetch == null) {
+                super.start(continuation);
+            }
+        }
+    }
+
     /**
      * Task for rending something (no loading needed)
      */
@@ -68,8 +68,9 @@ public class ParallelMapTileLoader implements OrderedResultsExecutor.ResultColle
      */
     public void addTileToLoad(MapTileTask task) {
         nbTiles++;
+        task.setPrintContext(context);
         if (executor != null) {
-            executor.addTask(task, this);
+            executor.addTask(task, this, context.getPriority());
         } else {
             //no parallel loading... do it right away
             task.process();
@@ -90,7 +91,10 @@ public class ParallelMapTileLoader implements OrderedResultsExecutor.ResultColle
      * scheduled to be loaded. For one PDF file, not called in //.
      */
     public void handle(MapTileTask mapTileTaskResult) {
-        if (!mapTileTaskResult.handleException(context)) {
+        if (context.isCancelled()) {
+            //nobody will look at the result
+            target.addDone(1);
+        } else if (!mapTileTaskResult.handleException(context)) {
             synchronized (context.getPdfLock()) {  //tiles may be currently loading in another thread
                 dc.saveState();
                 try {
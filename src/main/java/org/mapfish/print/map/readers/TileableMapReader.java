@@ -28,7 +28,10 @@ import java.util.List;
 
 import org.mapfish.print.RenderingContext;
 import org.mapfish.print.Transformer;
+import org.mapfish.print.config.RequestTilingConfig;
+import org.mapfish.print.map.DiskTileCache;
 import org.mapfish.print.map.ParallelMapTileLoader;
+import org.mapfish.print.map.renderers.BitmapTileRenderer;
 import org.mapfish.print.map.renderers.TileRenderer;
 import org.mapfish.print.utils.PJsonObject;
 
@@ -47,6 +50,7 @@ public abstract class TileableMapReader extends HTTPMapReader {
         final long bitmapTileW;
         final long bitmapTileH;
         int nbTilesW = 0;
+        long cacheTtl = 0L;
 
         float minGeoX = transformer.getRotatedMinGeoX();
         float minGeoY = transformer.getRotatedMinGeoY();
@@ -64,6 +68,11 @@ public abstract class TileableMapReader extends HTTPMapReader {
                 urls.add(null);
             }
 
+            final DiskTileCache tileCache = context.getConfig().getTileCache();
+            if (tileCache != null) {
+                cacheTtl = tileCache.getTtl(toString(), baseUrl);
+            }
+
             bitmapTileW = tileCacheLayerInfo.getWidth();
             bitmapTileH = tileCacheLayerInfo.getHeight();
             final float tileGeoWidth = transformer.getResolution() * bitmapTileW;
@@ -112,6 +121,13 @@ public abstract class TileableMapReader extends HTTPMapReader {
             }
 
         } else {
+            final RequestTilingConfig requestTiling = context.getConfig().getRequestTiling();
+            final int maxSize = requestTiling != null && formater instanceof BitmapTileRenderer ? requestTiling.getMaxSize(toString(), baseUrl) : 0;
+            if (maxSize > 0 && (transformer.getRotatedBitmapW() > maxSize || transformer.getRotatedBitmapH() > maxSize)) {
+                renderSplitTile((BitmapTileRenderer) formater, transformer, commonUri, parallelMapTileLoader, maxSize, requestTiling.getBuffer());
+                return;
+            }
+
             //single tile
             nbTilesW = 1;
             offsetX = 0;
@@ -120,7 +136,45 @@ public abstract class TileableMapReader extends HTTPMapReader {
             bitmapTileH = transformer.getRotatedBitmapH();
             urls.add(getTileUri(commonUri, transformer, minGeoX, minGeoY, maxGeoX, maxGeoY, bitmapTileW, bitmapTileH));
         }
-        formater.render(transformer, urls, parallelMapTileLoader, context, opacity, nbTilesW, offsetX, offsetY, bitmapTileW, bitmapTileH);
+        formater.render(transformer, urls, parallelMapTileLoader, context, opacity, nbTilesW, offsetX, offsetY, bitmapTileW, bitmapTileH, cacheTtl);
+    }
+
+    /**
+     * Split the single tile in a grid of requests of at most maxSize pixels
+     * (buffer included), loaded in parallel.
+     */
+    private void renderSplitTile(BitmapTileRenderer formater, Transformer transformer, URI commonUri, ParallelMapTileLoader parallelMapTileLoader, int maxSize, int buffer) throws IOException, URISyntaxException {
+        if (maxSize - 2 * buffer < 1) {
+            LOGGER.warn("Buffer of " + buffer + " pixels too big for requests of " + maxSize + " pixels, ignored");
+            buffer = 0;
+        }
+        final long bitmapW = transformer.getRotatedBitmapW();
+        final long bitmapH = transformer.getRotatedBitmapH();
+        final float minGeoX = transformer.getRotatedMinGeoX();
+        final float minGeoY = transformer.getRotatedMinGeoY();
+        final double resolutionX = (transformer.getRotatedMaxGeoX() - minGeoX) / bitmapW;
+        final double resolutionY = (transformer.getRotatedMaxGeoY() - minGeoY) / bitmapH;
+
+        final int nbTilesW = (int) Math.ceil((double) bitmapW / (maxSize - 2 * buffer));
+        final int nbTilesH = (int) Math.ceil((double) bitmapH / (maxSize - 2 * buffer));
+        final long bitmapTileW = (long) Math.ceil((double) bitmapW / nbTilesW);
+        final long bitmapTileH = (long) Math.ceil((double) bitmapH / nbTilesH);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Request of " + bitmapW + "x" + bitmapH + " pixels split in " + nbTilesW + "x" + nbTilesH + " tiles for " + this);
+        }
+
+        final List<URI> urls = new ArrayList<URI>(nbTilesW * nbTilesH);
+        for (int line = 0; line < nbTilesH; ++line) {
+            for (int col = 0; col < nbTilesW; ++col) {
+                final double tileMinGeoX = minGeoX + (col * bitmapTileW - buffer) * resolutionX;
+                final double tileMinGeoY = minGeoY + (line * bitmapTileH - buffer) * resolutionY;
+                final double tileMaxGeoX = tileMinGeoX + (bitmapTileW + 2 * buffer) * resolutionX;
+                final double tileMaxGeoY = tileMinGeoY + (bitmapTileH + 2 * buffer) * resolutionY;
+                urls.add(getTileUri(commonUri, transformer, (float) tileMinGeoX, (float) tileMinGeoY, (float) tileMaxGeoX, (float) tileMaxGeoY,
+                        bitmapTileW + 2 * buffer, bitmapTileH + 2 * buffer));
+            }
+        }
+        formater.render(transformer, urls, parallelMapTileLoader, context, opacity, nbTilesW, 0, 0, bitmapTileW, bitmapTileH, 0L, buffer);
     }
 
     /**
@@ -19,17 +19,30 @@
 
 package org.mapfish.print.map.readers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -40,6 +53,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.xerces.util.DOMUtil;
 import org.mapfish.print.RenderingContext;
+import org.mapfish.print.config.CapabilitiesCacheConfig;
+import org.mapfish.print.config.Config;
+import org.mapfish.print.map.DiskTileCache;
+import org.pvalsecc.concurrent.VirtualThreadFactory;
+import org.pvalsecc.misc.FileUtilities;
 import org.pvalsecc.misc.URIUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -51,12 +69,30 @@ import org.xml.sax.SAXException;
 
 /**
  * Use to get information about a WMS server. Caches the results.
+ * <p/>
+ * Each server is read by one thread at a time, the others needing it wait
+ * for the result; the other servers are not blocked. With the
+ * "capabilitiesCache" configuration, the results expire, are read again in
+ * the background shortly before, the failures are kept for a shorter time
+ * and the capabilities can be stored on disk to survive a restart.
  */
 public class WMSServerInfo {
     private static final Log LOGGER = LogFactory.getLog(WMSServerInfo.class);
-    private static final Map<URI, WMSServerInfo> cache = Collections.synchronizedMap(new HashMap<URI, WMSServerInfo>());
+    private static final String SUFFIX = ".xml";
+    private static final String TMP_SUFFIX = ".tmp";
 
-    private static DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+    /**
+     * By base URL. A task not done yet is a read in progress.
+     */
+    private static final ConcurrentMap<URI, FutureTask<CacheEntry>> cache = new ConcurrentHashMap<URI, FutureTask<CacheEntry>>();
+
+    /**
+     * Reads the capabilities that will soon expire.
+     */
+    private static final ExecutorService REFRESH_EXECUTOR =
+            Executors.newCachedThreadPool(new VirtualThreadFactory("capabilitiesRefresh"));
+
+    private static final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
 
     static {
         documentBuilderFactory.setValidating(false);  //doesn't work?!?!?
@@ -70,46 +106,201 @@ public class WMSServerInfo {
     public WMSServerInfo() {
     }
 
-    public static synchronized void clearCache() {
+    public static void clearCache() {
         cache.clear();
     }
 
-    public static WMSServerInfo getInfo(URI uri, RenderingContext context) {
-        WMSServerInfo result = cache.get(uri);
-        if (result == null) {
-            return getInfoImpl(uri, context);
+    /**
+     * Forget the capabilities loaded for the given configuration. The ones
+     * loaded for the other configurations are kept.
+     */
+    public static void clearCache(Config config) {
+        final String owner = config.getId();
+        for (Map.Entry<URI, FutureTask<CacheEntry>> cur : cache.entrySet()) {
+            final FutureTask<CacheEntry> task = cur.getValue();
+            if (!task.isDone()) {
+                continue;
+            }
+            try {
+                if (owner.equals(task.get().owner)) {
+                    cache.remove(cur.getKey(), task);
+                }
+            } catch (Exception e) {
+                //load() doesn't throw
+                cache.remove(cur.getKey(), task);
+            }
         }
-        return result;
     }
 
-    private static synchronized WMSServerInfo getInfoImpl(URI uri, RenderingContext context) {
-        WMSServerInfo result = cache.get(uri);
-        if (result == null) {
+    public static WMSServerInfo getInfo(final URI uri, final RenderingContext context) {
+        final long start = System.currentTimeMillis();
+        while (true) {
+            FutureTask<CacheEntry> task = cache.get(uri);
+            if (task == null) {
+                final FutureTask<CacheEntry> newTask = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+                    public CacheEntry call() {
+                        return load(uri, context, true);
+                    }
+                });
+                task = cache.putIfAbsent(uri, newTask);
+                if (task == null) {
+                    task = newTask;
+                    task.run();
+                }
+            }
+
+            final CacheEntry entry;
             try {
-                result = requestInfo(uri, context);
-            } catch (Exception e) {
-                LOGGER.info("Error while getting capabilities for "+uri+". The print module will assume it's a standard WMS.");
-                String stackTrace = "";
-                for (StackTraceElement el : e.getStackTrace()) {
-                    stackTrace += el.toString() +"\n";
+                entry = task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new WMSServerInfo();
+            } catch (ExecutionException e) {
+                //load() doesn't throw
+                throw new RuntimeException(e.getCause());
+            }
+
+            final long now = System.currentTimeMillis();
+            if (now >= entry.expires) {
+                cache.remove(uri, task);
+                if (entry.loadTime < start) {
+                    continue;
                 }
-                LOGGER.info(stackTrace);
-                result = new WMSServerInfo();
+                //loaded for this call, even if it cannot be kept
+            } else if (now >= entry.refreshAt) {
+                refresh(uri, context, task, entry);
             }
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("GetCapabilities " + uri + ": " + result);
+            return entry.info;
+        }
+    }
+
+
+    /**
+     * Read the capabilities again in the background. The current ones are
+     * used until the new ones are there. If the server fails, they are kept
+     * until they expire.
+     */
+    private static void refresh(final URI uri, final RenderingContext context, final FutureTask<CacheEntry> task, CacheEntry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Refreshing the capabilities of " + uri);
+        }
+        REFRESH_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                final CacheEntry fresh = load(uri, context, false);
+                if (!fresh.failed) {
+                    final FutureTask<CacheEntry> done = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+                        public CacheEntry call() {
+                            return fresh;
+                        }
+                    });
+                    done.run();
+                    cache.replace(uri, task, done);
+                }
+            }
+        });
+    }
+
+    /**
+     * Get the capabilities from the disk or from the server. A server that
+     * cannot be read is taken as a standard WMS.
+     */
+    private static CacheEntry load(URI uri, RenderingContext context, boolean useDisk) {
+        final CapabilitiesCacheConfig settings = context.getConfig().getCapabilitiesCache();
+        final File file = settings != null && settings.getDirectory() != null ?
+                new File(settings.getDirectory(), DiskTileCache.getKey(uri) + SUFFIX) : null;
+        if (useDisk && file != null && file.isFile()) {
+            final long fetchTime = file.lastModified();
+            if (settings.getTtl() == 0 || System.currentTimeMillis() - fetchTime < settings.getTtl()) {
+                try {
+                    final WMSServerInfo result = parseCapabilities(new ByteArrayInputStream(readFile(file)));
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("GetCapabilities " + uri + " from " + file + ": " + result);
+                    }
+                    return new CacheEntry(result, fetchTime, context.getConfig(), false);
+                } catch (Exception e) {
+                    LOGGER.warn("Cannot read the cached capabilities " + file + ": " + e.getMessage());
+                }
             }
-            cache.put(uri, result);
         }
-        return result;
+
+        final long fetchTime = System.currentTimeMillis();
+        WMSServerInfo result;
+        boolean failed = false;
+        try {
+            final byte[] capabilities = requestCapabilities(uri, context);
+            result = parseCapabilities(new ByteArrayInputStream(capabilities));
+            if (file != null) {
+                writeFile(file, capabilities);
+            }
+        } catch (Exception e) {
+            LOGGER.info("Error while getting capabilities for "+uri+". The print module will assume it's a standard WMS.");
+            String stackTrace = "";
+            for (StackTraceElement el : e.getStackTrace()) {
+                stackTrace += el.toString() +"\n";
+            }
+            LOGGER.info(stackTrace);
+            result = new WMSServerInfo();
+            failed = true;
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("GetCapabilities " + uri + ": " + result);
+        }
+        return new CacheEntry(result, fetchTime, context.getConfig(), failed);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream result = new ByteArrayOutputStream((int) file.length());
+            FileUtilities.copyStream(in, result);
+            return result.toByteArray();
+        } finally {
+            in.close();
+        }
     }
 
-    private static WMSServerInfo requestInfo(URI baseUrl, RenderingContext context) throws IOException, URISyntaxException, ParserConfigurationException, SAXException {
+    /**
+     * Written in a temporary file first, so that a concurrent reader never
+     * sees a partial document.
+     */
+    private static void writeFile(File file, byte[] data) {
+        final File tmpFile = new File(file.getParentFile(), file.getName() + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        try {
+            final File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+                throw new IOException("Cannot create directory " + parent.getAbsolutePath());
+            }
+            final OutputStream out = new FileOutputStream(tmpFile);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot replace " + file.getAbsolutePath());
+            }
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot store the capabilities in the cache: " + e.getMessage());
+            tmpFile.delete();
+        }
+    }
+
+    static URL getCapabilitiesUrl(URI baseUrl) throws URISyntaxException, IOException {
         Map<String, List<String>> queryParams = new HashMap<String, List<String>>();
         URIUtils.addParamOverride(queryParams, "SERVICE", "WMS");
         URIUtils.addParamOverride(queryParams, "REQUEST", "GetCapabilities");
         URIUtils.addParamOverride(queryParams, "VERSION", "1.1.1");
-        URL url = URIUtils.addParams(baseUrl, queryParams, HTTPMapReader.OVERRIDE_ALL).toURL();
+        return URIUtils.addParams(baseUrl, queryParams, HTTPMapReader.OVERRIDE_ALL).toURL();
+    }
+
+    private static byte[] requestCapabilities(URI baseUrl, RenderingContext context) throws IOException, URISyntaxException {
+        URL url = getCapabilitiesUrl(baseUrl);
 
         GetMethod method = null;
         try {
@@ -144,13 +335,13 @@ public class WMSServerInfo {
                 }
                 stream = method.getResponseBodyAsStream();
             }
-            final WMSServerInfo result;
             try {
-                result = parseCapabilities(stream);
+                final ByteArrayOutputStream result = new ByteArrayOutputStream();
+                FileUtilities.copyStream(stream, result);
+                return result.toByteArray();
             } finally {
                 stream.close();
             }
-            return result;
         } finally {
             if (method != null) {
                 method.releaseConnection();
@@ -159,7 +350,11 @@ public class WMSServerInfo {
     }
 
     protected static WMSServerInfo parseCapabilities(InputStream stream) throws ParserConfigurationException, SAXException, IOException {
-        DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        final DocumentBuilder documentBuilder;
+        //the factory is not thread safe and the capabilities are read in parallel
+        synchronized (documentBuilderFactory) {
+            documentBuilder = documentBuilderFactory.newDocumentBuilder();
+        }
 
         //we don't want the DTD to be checked and it's the only way I found
         documentBuilder.setEntityResolver(new EntityResolver() {
@@ -209,6 +404,59 @@ public class WMSServerInfo {
         return tileCacheLayers != null ? tileCacheLayers.get(layerName) : null;
     }
 
+    /**
+     * The capabilities of a server and how long they can be used.
+     */
+    private static class CacheEntry {
+        private final WMSServerInfo info;
+        private final boolean failed;
+
+        /**
+         * Identifier of the configuration that loaded the entry.
+         */
+        private final String owner;
+
+        /**
+         * When the entry must not be used anymore (System.currentTimeMillis()).
+         */
+        private final long expires;
+
+        /**
+         * When the entry must be read again in the background.
+         */
+        private final long refreshAt;
+
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        /**
+         * When the entry was created.
+         */
+        private final long loadTime = System.currentTimeMillis();
+
+        /**
+         * @param config Its capabilitiesCache settings, null to keep the entry until the cache is cleared.
+         */
+        public CacheEntry(WMSServerInfo info, long fetchTime, Config config, boolean failed) {
+            final CapabilitiesCacheConfig settings = config.getCapabilitiesCache();
+            this.info = info;
+            this.failed = failed;
+            this.owner = config.getId();
+            if (settings == null) {
+                expires = Long.MAX_VALUE;
+                refreshAt = Long.MAX_VALUE;
+            } else if (failed) {
+                expires = fetchTime + settings.getErrorTtl();
+                refreshAt = Long.MAX_VALUE;
+            } else if (settings.getTtl() == 0) {
+                expires = Long.MAX_VALUE;
+                refreshAt = Long.MAX_VALUE;
+            } else {
+                expires = fetchTime + settings.getTtl();
+                refreshAt = expires - settings.getRefreshAhead();
+            }
+        }
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
@@ -21,12 +21,14 @@ package org.mapfish.print.map.renderers;
 
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URI;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.mapfish.print.ImageResampler;
 import org.mapfish.print.PDFUtils;
 import org.mapfish.print.RenderingContext;
 import org.mapfish.print.Transformer;
@@ -45,8 +47,25 @@ public class BitmapTileRenderer extends TileRenderer {
     private static final Log LOGGER = LogFactory.getLog(BitmapTileRenderer.class);
 
     public void render(Transformer transformer, List<URI> uris, ParallelMapTileLoader parallelMapTileLoader, final RenderingContext context, final float opacity, int nbTilesHorizontal, float offsetX, float offsetY, final long bitmapTileW, final long bitmapTileH) throws IOException {
+        render(transformer, uris, parallelMapTileLoader, context, opacity, nbTilesHorizontal, offsetX, offsetY, bitmapTileW, bitmapTileH, 0L);
+    }
+
+    @Override
+    public void render(Transformer transformer, List<URI> uris, ParallelMapTileLoader parallelMapTileLoader, final RenderingContext context, final float opacity, int nbTilesHorizontal, float offsetX, float offsetY, final long bitmapTileW, final long bitmapTileH, final long cacheTtl) throws IOException {
+        render(transformer, uris, parallelMapTileLoader, context, opacity, nbTilesHorizontal, offsetX, offsetY, bitmapTileW, bitmapTileH, cacheTtl, 0);
+    }
+
+    /**
+     * Same as the other render methods, but the images have a border of
+     * buffer pixels around the tiles that is cropped.
+     */
+    public void render(Transformer transformer, List<URI> uris, ParallelMapTileLoader parallelMapTileLoader, final RenderingContext context, final float opacity, int nbTilesHorizontal, float offsetX, float offsetY, final long bitmapTileW, final long bitmapTileH, final long cacheTtl, final int buffer) throws IOException {
+        final long imageW = bitmapTileW + 2 * buffer;
+        final long imageH = bitmapTileH + 2 * buffer;
         final AffineTransform bitmapTransformer = transformer.getBitmapTransform();
         final double rotation = transformer.getRotation();
+        final ImageResampler.Quality resampling = context.getConfig().getImageResampling();
+        final TileMosaic mosaic = createMosaic(context, transformer, resampling);
 
         for (int i = 0; i < uris.size(); i++) {
             final URI uri = uris.get(i);
@@ -66,16 +85,49 @@ public class BitmapTileRenderer extends TileRenderer {
                 continue;
             }
 
-            parallelMapTileLoader.addTileToLoad(new MapTileTask() {
+            if (mosaic != null) {
+                parallelMapTileLoader.addTileToLoad(new MapTileTask.Download(context, uri, cacheTtl) {
+                    public BufferedImage tile;
+
+                    protected void readTile() throws IOException {
+                        tile = PDFUtils.loadBufferedImage(context, uri, cacheTtl);
+                        if (tile != null && resampling != null) {
+                            tile = ImageResampler.resample(tile, imageW, imageH, resampling);
+                        }
+                        if (tile != null && buffer > 0) {
+                            final int cropX = (int) Math.round((double) buffer * tile.getWidth() / imageW);
+                            final int cropY = (int) Math.round((double) buffer * tile.getHeight() / imageH);
+                            tile = tile.getSubimage(cropX, cropY, tile.getWidth() - 2 * cropX, tile.getHeight() - 2 * cropY);
+                        }
+                    }
+
+                    protected void renderOnPdf(PdfContentByte dc) {
+                        //called in the order of the tiles, after the previous ones
+                        if (tile != null) {
+                            mosaic.draw(tile, posX, posY, bitmapTileW, bitmapTileH);
+                            tile = null;
+                        }
+                    }
+                });
+                continue;
+            }
+
+            parallelMapTileLoader.addTileToLoad(new MapTileTask.Download(context, uri, cacheTtl) {
                 public Image map;
 
                 protected void readTile() throws IOException, DocumentException {
-                    map = PDFUtils.getImage(context, uri, bitmapTileW, bitmapTileH);
-                    map.setAbsolutePosition(posX, posY);
+                    //a tile doesn't need more pixels than its size in the bitmap units of the map
+                    map = PDFUtils.getImage(context, uri, imageW, imageH, 0f, cacheTtl, imageW, imageH);
+                    map.setAbsolutePosition(posX - buffer, posY - buffer);
                 }
 
                 protected void renderOnPdf(PdfContentByte dc) throws DocumentException {
                     dc.transform(bitmapTransformer);
+                    if (buffer > 0) {
+                        dc.rectangle(posX, posY, bitmapTileW, bitmapTileH);
+                        dc.clip();
+                        dc.newPath();
+                    }
                     if (opacity < 1.0) {
                         PdfGState gs = new PdfGState();
                         gs.setFillOpacity(opacity);
@@ -86,6 +138,40 @@ public class BitmapTileRenderer extends TileRenderer {
                 }
             });
         }
+
+        if (mosaic != null) {
+            //rendered once all the tiles have been drawn in the mosaic
+            parallelMapTileLoader.addTileToLoad(new MapTileTask.RenderOnly() {
+                protected void renderOnPdf(PdfContentByte dc) throws DocumentException {
+                    if (opacity < 1.0) {
+                        PdfGState gs = new PdfGState();
+                        gs.setFillOpacity(opacity);
+                        gs.setStrokeOpacity(opacity);
+                        dc.setGState(gs);
+                    }
+                    try {
+                        dc.addImage(mosaic.toPdfImage());
+                    } catch (IOException e) {
+                        throw new DocumentException(e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return Null if the tiles must be drawn one by one.
+     */
+    private TileMosaic createMosaic(RenderingContext context, Transformer transformer, ImageResampler.Quality resampling) throws IOException {
+        if (!context.getConfig().isTileMosaic()) {
+            return null;
+        }
+        if (!TileMosaic.fits(transformer)) {
+            LOGGER.info("Map too big for a mosaic (" + Math.round(transformer.getStraightBitmapW()) + "x" +
+                    Math.round(transformer.getStraightBitmapH()) + " pixels), drawing the tiles one by one");
+            return null;
+        }
+        return new TileMosaic(transformer, resampling);
     }
 
     private boolean isTileVisible(float x, float y, long w, long h, AffineTransform bitmapTransformer, Transformer transformer) {
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.map.renderers;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import org.mapfish.print.ImageResampler;
+import org.mapfish.print.Transformer;
+
+import com.lowagie.text.BadElementException;
+import com.lowagie.text.Image;
+
+/**
+ * A single raster covering the map on the paper, in which the tiles of a
+ * layer are drawn. The tiles are already rotated and clipped to the map, so
+ * the whole layer is added to the PDF as one image.
+ * <p/>
+ * Not thread safe, the tiles must be drawn one after the other.
+ */
+public class TileMosaic {
+    /**
+     * Above that many pixels, the layer is drawn tile by tile instead: the
+     * raster would need too much memory.
+     */
+    public static final long MAX_PIXELS = 40L * 1000L * 1000L;
+
+    /**
+     * The ARGB raster and the copy of its pixels done by iText (RGB plus the
+     * alpha mask).
+     */
+    private static final int BYTES_PER_PIXEL = 8;
+
+    private final Transformer transformer;
+    private BufferedImage raster;
+    private Graphics2D graphics;
+
+    /**
+     * Goes from the coordinates used to position the tiles (the same as when
+     * they are added to the PDF one by one) to the pixels of the raster.
+     */
+    private final AffineTransform tileTransform;
+
+    /**
+     * @return True if the map is small enough to be drawn in a mosaic.
+     */
+    public static boolean fits(Transformer transformer) {
+        final long width = Math.round(transformer.getStraightBitmapW());
+        final long height = Math.round(transformer.getStraightBitmapH());
+        return width > 0 && height > 0 && width * height <= MAX_PIXELS;
+    }
+
+    /**
+     * @return The memory in bytes needed by the mosaic of one layer covering
+     *         the given number of pixels, 0 if it's too big for a mosaic.
+     */
+    public static long getMemory(double pixels) {
+        return pixels > MAX_PIXELS ? 0L : (long) (pixels * BYTES_PER_PIXEL);
+    }
+
+    /**
+     * @param resampling How the tiles are scaled (may be null).
+     */
+    public TileMosaic(Transformer transformer, ImageResampler.Quality resampling) throws IOException {
+        this.transformer = transformer;
+        final long width = Math.round(transformer.getStraightBitmapW());
+        final long height = Math.round(transformer.getStraightBitmapH());
+        if (width <= 0 || height <= 0 || width * height > MAX_PIXELS) {
+            throw new IOException("Cannot create a mosaic of " + width + "x" + height + " pixels");
+        }
+        raster = new BufferedImage((int) width, (int) height, BufferedImage.TYPE_INT_ARGB);
+        graphics = raster.createGraphics();
+        final boolean interpolate = transformer.getRotation() != 0.0 ||
+                (resampling != null && resampling != ImageResampler.Quality.NEAREST);
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolate ?
+                RenderingHints.VALUE_INTERPOLATION_BILINEAR : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+
+        //paper (origin at the bottom) to raster (origin at the top)
+        final double scaleX = width / transformer.getPaperW();
+        final double scaleY = height / transformer.getPaperH();
+        tileTransform = new AffineTransform(scaleX, 0, 0, -scaleY,
+                -transformer.getPaperPosX() * scaleX, (transformer.getPaperPosY() + transformer.getPaperH()) * scaleY);
+        tileTransform.concatenate(transformer.getBitmapTransform());
+    }
+
+    /**
+     * Draw a tile at the given position (bottom left corner, in the units
+     * given to {@link BitmapTileRenderer}).
+     */
+    public void draw(BufferedImage tile, float posX, float posY, float tileW, float tileH) {
+        final AffineTransform transform = new AffineTransform(tileTransform);
+        transform.translate(posX, posY + tileH);
+        transform.scale(tileW / tile.getWidth(), -tileH / tile.getHeight());
+        graphics.drawImage(tile, transform, null);
+    }
+
+    BufferedImage getRaster() {
+        return raster;
+    }
+
+    /**
+     * Create the image to add to the PDF. It is already scaled and
+     * positioned on the map. No tile can be drawn afterwards and the raster
+     * is released, iText having its own copy of the pixels.
+     */
+    public Image toPdfImage() throws BadElementException, IOException {
+        if (graphics != null) {
+            graphics.dispose();
+            graphics = null;
+        }
+        final Image result = Image.getInstance(raster, null);
+        raster = null;
+        result.scaleAbsolute(transformer.getPaperW(), transformer.getPaperH());
+        result.setAbsolutePosition(transformer.getPaperPosX(), transformer.getPaperPosY());
+        return result;
+    }
+}
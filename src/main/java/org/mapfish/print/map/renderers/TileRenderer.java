@@ -49,6 +49,16 @@ public abstract class TileRenderer {
     public abstract void render(Transformer transformer, List<URI> urls, ParallelMapTileLoader parallelMapTileLoader, RenderingContext context,
                                 float opacity, int nbTilesHorizontal, float offsetX, float offsetY, long bitmapTileW, long bitmapTileH) throws IOException;
 
+    /**
+     * Same as the other render method, but the tiles can be taken from or
+     * stored in the tile cache for cacheTtl milliseconds. Formats that don't
+     * support the cache simply ignore it.
+     */
+    public void render(Transformer transformer, List<URI> urls, ParallelMapTileLoader parallelMapTileLoader, RenderingContext context,
+                       float opacity, int nbTilesHorizontal, float offsetX, float offsetY, long bitmapTileW, long bitmapTileH, long cacheTtl) throws IOException {
+        render(transformer, urls, parallelMapTileLoader, context, opacity, nbTilesHorizontal, offsetX, offsetY, bitmapTileW, bitmapTileH);
+    }
+
     public enum Format {
         BITMAP,
         PDF,
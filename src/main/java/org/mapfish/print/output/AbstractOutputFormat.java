@@ -26,6 +26,9 @@ public abstract class AbstractOutputFormat implements OutputFormat {
             writer.setCompressionLevel(PdfStream.BEST_COMPRESSION);
         }
         RenderingContext context = new RenderingContext(doc, writer, params.config, params.jsonSpec, params.configDir.getPath(), layout, params.headers);
+        if (params.progress != null) {
+            context.setProgress(params.progress);
+        }
 
         layout.render(params.jsonSpec, context);
 
@@ -5,6 +5,7 @@ import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.util.Map;
 
+import org.mapfish.print.PrintProgress;
 import org.mapfish.print.config.Config;
 import org.mapfish.print.utils.PJsonObject;
 
@@ -14,14 +15,21 @@ public class PrintParams {
     public PJsonObject jsonSpec;
     public OutputStream outputStream;
     public Map<String, String> headers;
+    public PrintProgress progress;
 
     public PrintParams(Config config, File configDir, PJsonObject jsonSpec,
             OutputStream outputStream, Map<String, String> headers) {
+        this(config, configDir, jsonSpec, outputStream, headers, new PrintProgress());
+    }
+
+    public PrintParams(Config config, File configDir, PJsonObject jsonSpec,
+            OutputStream outputStream, Map<String, String> headers, PrintProgress progress) {
         this.config = config;
         this.configDir = configDir;
         this.jsonSpec = jsonSpec;
         this.outputStream = outputStream;
         this.headers = headers;
+        this.progress = progress;
     }
 
     /**
@@ -30,6 +38,6 @@ public class PrintParams {
      * @return
      */
     public PrintParams withOutput(FileOutputStream newOut) {
-        return new PrintParams(config, configDir, jsonSpec, newOut, headers);
+        return new PrintParams(config, configDir, jsonSpec, newOut, headers, progress);
     }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.servlet;
+
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.mapfish.print.Constants;
+import org.mapfish.print.PrintProgress;
+import org.mapfish.print.config.Config;
+import org.mapfish.print.config.layout.Layout;
+import org.mapfish.print.map.renderers.TileMosaic;
+import org.mapfish.print.utils.PJsonArray;
+import org.mapfish.print.utils.PJsonObject;
+
+import com.lowagie.text.Rectangle;
+
+/**
+ * Limits the number of prints running at the same time and the memory they
+ * are estimated to use. Prints that cannot run right away wait their turn,
+ * unless too many are already waiting. A waiting print goes only once no
+ * print with a bigger priority weight is waiting.
+ */
+public class AdmissionController {
+    public static final Logger LOGGER = Logger.getLogger(AdmissionController.class);
+
+    /**
+     * Bytes per pixel of a decoded RGBA bitmap.
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final int maxRunning;
+    private final int maxWaiting;
+    private final long memoryBudget;
+
+    /**
+     * Number of prints currently running. Protected by this.
+     */
+    private int nbRunning = 0;
+
+    /**
+     * Number of prints waiting for their turn. Protected by this.
+     */
+    private int nbWaiting = 0;
+
+    /**
+     * Number of prints waiting for their turn, by priority weight. Protected by this.
+     */
+    private final TreeMap<Integer, Integer> waitingByPriority = new TreeMap<Integer, Integer>();
+
+    /**
+     * Sum of the estimated memory of the running prints. Protected by this.
+     */
+    private long usedMemory = 0L;
+
+    /**
+     * @param maxRunning   The maximum number of prints running at the same time.
+     * @param maxWaiting   The maximum number of prints waiting for their turn.
+     * @param memoryBudget The maximum sum of estimated memory for the running prints (in bytes).
+     */
+    public AdmissionController(int maxRunning, int maxWaiting, long memoryBudget) {
+        this.maxRunning = maxRunning;
+        this.maxWaiting = maxWaiting;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Wait for the print to be allowed to run. If too many prints are
+     * already waiting, returns false right away.
+     *
+     * @return true if the print can run, false if it was rejected. If true,
+     *         {@link #leave(long)} must be called once the print is finished.
+     */
+    public boolean tryEnter(long memory) throws InterruptedException {
+        return tryEnter(memory, 1);
+    }
+
+    /**
+     * Same as {@link #tryEnter(long)} for a print with the given priority
+     * weight.
+     */
+    public synchronized boolean tryEnter(long memory, int priority) throws InterruptedException {
+        if (!canRun(memory, priority) && nbWaiting >= maxWaiting) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Print rejected: running=" + nbRunning + " waiting=" + nbWaiting + " memory=" + usedMemory);
+            }
+            return false;
+        }
+        waitTurn(memory, priority, null);
+        return true;
+    }
+
+    /**
+     * Wait for the print to be allowed to run, whatever the number of prints
+     * waiting. Used by prints already counted by another queue.
+     * {@link #leave(long)} must be called once the print is finished.
+     */
+    public void enter(long memory) throws InterruptedException {
+        enter(memory, 1);
+    }
+
+    /**
+     * Same as {@link #enter(long)} for a print with the given priority
+     * weight.
+     */
+    public void enter(long memory, int priority) throws InterruptedException {
+        enter(memory, priority, null);
+    }
+
+    /**
+     * Same as {@link #enter(long, int)}, but stops waiting if the print is
+     * cancelled.
+     *
+     * @param progress The progress of the print (may be null).
+     * @return False if the print was cancelled before being allowed to run,
+     *         in which case {@link #leave(long)} must not be called.
+     */
+    public boolean enter(long memory, int priority, PrintProgress progress) throws InterruptedException {
+        if (progress == null) {
+            return waitTurn(memory, priority, null);
+        }
+        final Runnable wakeUp = new Runnable() {
+            public void run() {
+                synchronized (AdmissionController.this) {
+                    AdmissionController.this.notifyAll();
+                }
+            }
+        };
+        if (!progress.addCancelListener(wakeUp)) {
+            return false;
+        }
+        try {
+            return waitTurn(memory, priority, progress);
+        } finally {
+            progress.removeCancelListener(wakeUp);
+        }
+    }
+
+    private synchronized boolean waitTurn(long memory, int priority, PrintProgress progress) throws InterruptedException {
+        if (!canRun(memory, priority)) {
+            nbWaiting++;
+            addWaiting(priority, 1);
+            try {
+                while (!canRun(memory, priority)) {
+                    if (progress != null && progress.isCancelled()) {
+                        return false;
+                    }
+                    wait();
+                }
+            } finally {
+                nbWaiting--;
+                addWaiting(priority, -1);
+                //the prints with a smaller priority may be allowed now
+                notifyAll();
+            }
+        }
+        nbRunning++;
+        usedMemory += memory;
+        return true;
+    }
+
+    /**
+     * To be called when a print that entered is finished.
+     */
+    public synchronized void leave(long memory) {
+        nbRunning--;
+        usedMemory -= memory;
+        notifyAll();
+    }
+
+    private void addWaiting(int priority, int delta) {
+        final Integer nb = waitingByPriority.get(priority);
+        final int newNb = (nb != null ? nb : 0) + delta;
+        if (newNb > 0) {
+            waitingByPriority.put(priority, newNb);
+        } else {
+            waitingByPriority.remove(priority);
+        }
+    }
+
+    /**
+     * A print bigger than the budget is allowed when nothing else is running,
+     * otherwise it would never run.
+     */
+    private boolean canRun(long memory, int priority) {
+        if (!waitingByPriority.isEmpty() && waitingByPriority.lastKey() > priority) {
+            return false;
+        }
+        if (nbRunning >= maxRunning) {
+            return false;
+        }
+        return nbRunning == 0 || usedMemory + memory <= memoryBudget;
+    }
+
+    public synchronized int getNbRunning() {
+        return nbRunning;
+    }
+
+    public synchronized int getNbWaiting() {
+        return nbWaiting;
+    }
+
+    public synchronized long getUsedMemory() {
+        return usedMemory;
+    }
+
+    /**
+     * Rough estimation of the memory needed by a print: the size of one
+     * bitmap covering the biggest page at the highest DPI, for each layer,
+     * plus the mosaic of each layer in "tileMosaic" mode.
+     */
+    public static long estimateMemory(Config config, PJsonObject spec) {
+        float width = 595;
+        float height = 842;  //A4
+        try {
+            final Layout layout = config.getLayout(spec.getString(Constants.JSON_LAYOUT_KEY));
+            if (layout != null) {
+                final Rectangle size = layout.getFirstPageSize(null, spec);
+                width = size.getWidth();
+                height = size.getHeight();
+            }
+        } catch (RuntimeException e) {
+            LOGGER.debug("Cannot get the page size, using A4 to estimate the print's memory", e);
+        }
+
+        int dpi = spec.optInt("dpi", 0);
+        final PJsonArray pages = spec.optJSONArray("pages");
+        if (pages != null) {
+            for (int i = 0; i < pages.size(); i++) {
+                dpi = Math.max(dpi, pages.getJSONObject(i).optInt("dpi", 0));
+            }
+        }
+        if (dpi <= 0) {
+            dpi = config.getDpis() != null && !config.getDpis().isEmpty() ? config.getDpis().last() : 72;
+        }
+
+        final PJsonArray layers = spec.optJSONArray("layers");
+        final int nbLayers = Math.max(1, layers != null ? layers.size() : 0);
+
+        final double pixels = (width * dpi / 72.0) * (height * dpi / 72.0);
+        long result = (long) (pixels * BYTES_PER_PIXEL * nbLayers);
+        if (config.isTileMosaic()) {
+            //the mosaics of all the layers are kept until the page is written
+            result += TileMosaic.getMemory(pixels) * nbLayers;
+        }
+        return result;
+    }
+}
@@ -20,8 +20,17 @@ package org.mapfish.print.servlet;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -29,6 +38,7 @@ import javax.servlet.http.HttpServlet;
 import org.apache.log4j.Logger;
 import org.mapfish.print.MapPrinter;
 import org.mapfish.print.ShellMapPrinter;
+import org.pvalsecc.concurrent.VirtualThreadFactory;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
@@ -43,10 +53,29 @@ public abstract class BaseMapServlet extends HttpServlet {
 
     public static final Logger LOGGER = Logger.getLogger(BaseMapServlet.class);
 
-    private Map<String, MapPrinter> printers = null;
-    private long lastModified = 0L;
-    private long defaultLastModified = 0L;
-    private Map<String, Long> lastModifieds = null;
+    /**
+     * Default number of seconds between two checks of the configuration
+     * files.
+     */
+    private static final int DEFAULT_CONFIG_CHECK_INTERVAL = 5;
+
+    /**
+     * Key of the default configuration (no app) in {@link #printers}.
+     */
+    private static final String DEFAULT_APP = "";
+
+    /**
+     * The printers of the apps, loaded only once, even when many requests
+     * ask for the same app at the same time. The map holds one reference
+     * on each of them.
+     */
+    private final ConcurrentMap<String, Future<PrinterEntry>> printers = new ConcurrentHashMap<String, Future<PrinterEntry>>();
+
+    /**
+     * Checks periodically if the configuration files of the apps have
+     * changed (null until the first app is loaded).
+     */
+    private ScheduledExecutorService configWatcher = null;
 
     private volatile ApplicationContext context;
 
@@ -61,38 +90,59 @@ public abstract class BaseMapServlet extends HttpServlet {
      * <p/>
      * If the location is a relative path, it's taken from the servlet's root
      * directory.
+     * <p/>
+     * The printers are kept and shared by the requests. Their configuration
+     * files are checked in the background (every "configCheckInterval"
+     * seconds) and a modified file is loaded in a new printer that replaces
+     * the old one for the next requests. The old printer is stopped only
+     * once the prints using it are finished.
+     * <p/>
+     * The caller must call {@link MapPrinter#release()} once done with the
+     * returned printer.
      *
      * @param servletContext
      */
-    protected synchronized MapPrinter getMapPrinter(String app) throws ServletException {
+    protected MapPrinter getMapPrinter(String app) throws ServletException {
         String configPath = getInitParameter("config");
         if (configPath == null) {
             throw new ServletException("Missing configuration in web.xml 'web-app/servlet/init-param[param-name=config]' or 'web-app/context-param[param-name=config]'");
         }
-        //String debugPath = "";
-
-        MapPrinter printer = null;
-        File configFile = null;
-        if (app != null) {
-            if (lastModifieds == null) {
-                lastModifieds = new HashMap<String, Long>();
-                //debugPath += "new HashMap\n";
+        final String key = app != null ? app : DEFAULT_APP;
+
+        while (true) {
+            Future<PrinterEntry> future = printers.get(key);
+            if (future == null) {
+                final File configFile = getConfigFile(configPath, app);
+                final FutureTask<PrinterEntry> task = new FutureTask<PrinterEntry>(new Callable<PrinterEntry>() {
+                    public PrinterEntry call() throws Exception {
+                        return loadPrinter(configFile);
+                    }
+                });
+                future = printers.putIfAbsent(key, task);
+                if (future == null) {
+                    future = task;
+                    task.run();
+                    startConfigWatcher();
+                }
             }
-            if (printers instanceof HashMap && printers.containsKey(app)) {
-                printer = printers.get(app);
-                //debugPath += "get printer from hashmap\n";
-            } else {
-                printer = null;
-                //debugPath += "printer = null 1\n";
+
+            PrinterEntry entry = getEntry(key, future);
+            if (entry.printer.getConfig().getReloadConfig()) {
+                final PrinterEntry reloaded = loadPrinter(entry.configFile);
+                replacePrinter(key, future, entry, reloaded);
+                entry = reloaded;
             }
-            configFile = new File(app);
-        } else {
-            configFile = new File(configPath);
-            //debugPath += "configFile = new ..., 1\n";
+            if (entry.printer.retain()) {
+                return entry.printer;
+            }
+            //replaced and stopped in the mean time, the map has its successor
         }
+    }
+
+    private File getConfigFile(String configPath, String app) {
+        File configFile = new File(app != null ? app : configPath);
         if (!configFile.isAbsolute()) {
             if (app != null) {
-                //debugPath += "config is absolute app = "+app+"\n";
                 if (app.toLowerCase().endsWith(".yaml")) {
                     configFile = new File(getServletContext().getRealPath(app));
                 } else {
@@ -104,71 +154,154 @@ public abstract class BaseMapServlet extends HttpServlet {
                 } else {
                     configFile = new File(getServletContext().getRealPath(configPath + ".yaml"));
                 }
-                //debugPath += "config is absolute app DEFAULT\n";
             }
         }
-        if (app != null) {
-            if (lastModifieds instanceof HashMap && lastModifieds.containsKey(app)) {
-                lastModified = lastModifieds.get(app);
-                //debugPath += "app = "+app+" lastModifieds has key and gotten: "+ lastModified +"\n";
-            } else {
-                lastModified = 0L;
-                //debugPath += "app = "+app+" lastModifieds has NOT key and gotten: "+ lastModified +" (0L)\n";
+        return configFile;
+    }
+
+    private PrinterEntry loadPrinter(File configFile) throws ServletException {
+        try {
+            LOGGER.info("Loading configuration file: " + configFile.getAbsolutePath());
+            return new PrinterEntry(configFile, getApplicationContext().getBean(MapPrinter.class).setYamlConfigFile(configFile));
+        } catch (FileNotFoundException e) {
+            throw new ServletException("Cannot read configuration file: " + configFile, e);
+        } catch (Throwable e) {
+            LOGGER.error("Error occurred while reading configuration file", e);
+            throw new ServletException("Error occurred while reading configuration file '" + configFile + "': " + e);
+        }
+    }
+
+    /**
+     * Wait for the printer of the app to be loaded. If the load failed, it
+     * is forgotten, so that the next request tries again.
+     */
+    private PrinterEntry getEntry(String app, Future<PrinterEntry> future) throws ServletException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted while loading the configuration of " + app, e);
+        } catch (ExecutionException e) {
+            printers.remove(app, future);
+            if (e.getCause() instanceof ServletException) {
+                throw (ServletException) e.getCause();
             }
+            throw new ServletException("Error occurred while loading the configuration of " + app, e.getCause());
+        }
+    }
+
+    /**
+     * Make the new printer the one used by the next requests. The old one is
+     * stopped when the last print using it releases it.
+     */
+    private void replacePrinter(String app, Future<PrinterEntry> oldFuture, PrinterEntry oldEntry, PrinterEntry newEntry) {
+        final FutureTask<PrinterEntry> task = new FutureTask<PrinterEntry>(new Runnable() {
+            public void run() {
+            }
+        }, newEntry);
+        task.run();
+        if (printers.replace(app, oldFuture, task)) {
+            oldEntry.printer.release();
         } else {
-            lastModified = defaultLastModified; // this is a fix for when configuration files have changed
-            //debugPath += "app = NULL lastModifieds from defaultLastModified: "+ lastModified +"\n";
+            //somebody else replaced or removed it in the mean time
+            newEntry.printer.release();
         }
+    }
 
-        boolean forceReload = false;
-        if (printer != null && printer.getConfig().getReloadConfig()) {
-            forceReload = true;
+    private synchronized void startConfigWatcher() {
+        if (configWatcher != null) {
+            return;
         }
+        int interval = DEFAULT_CONFIG_CHECK_INTERVAL;
+        final String value = getInitParameter("configCheckInterval");
+        if (value != null) {
+            try {
+                interval = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid value for the init parameter configCheckInterval: " + value);
+            }
+        }
+        if (interval <= 0) {
+            return;
+        }
+        configWatcher = Executors.newSingleThreadScheduledExecutor(new VirtualThreadFactory("configWatcher"));
+        configWatcher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    checkConfigFiles();
+                } catch (Throwable e) {
+                    LOGGER.error("Error while checking the configuration files", e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
 
-        if (forceReload || (printer != null && configFile.lastModified() != lastModified)) {
-            //file modified, reload it
-            if (!forceReload) {
-                LOGGER.info("Configuration file modified. Reloading...");
+    /**
+     * Reload the printers whose configuration file has been modified. If the
+     * new file cannot be loaded, the old printer is kept.
+     */
+    void checkConfigFiles() {
+        for (Map.Entry<String, Future<PrinterEntry>> cur : printers.entrySet()) {
+            final Future<PrinterEntry> future = cur.getValue();
+            if (!future.isDone()) {
+                continue;
             }
+            final PrinterEntry entry;
             try {
-                printer.stop();
-
-                //debugPath += "printer stopped, setting NULL\n";
-            } catch (NullPointerException npe) {
-                LOGGER.info("BaseMapServlet.java: printer was not stopped. This happens when a switch between applications happens.\n" + npe);
+                entry = future.get();
+            } catch (Exception e) {
+                continue;
             }
-
-            printer = null;
-            if (app != null) {
-                LOGGER.info("Printer for " + app + " stopped");
-                printers.put(app, null);
+            final long lastModified = entry.configFile.lastModified();
+            if (lastModified == entry.printer.getConfigLastModified() || lastModified == entry.failedLastModified) {
+                continue;
+            }
+            LOGGER.info("Configuration file of " + cur.getKey() + " modified. Reloading...");
+            try {
+                replacePrinter(cur.getKey(), future, entry, loadPrinter(entry.configFile));
+            } catch (ServletException e) {
+                LOGGER.warn("Keeping the previous configuration of " + cur.getKey());
+                entry.failedLastModified = lastModified;
             }
         }
+    }
 
-        if (printer == null) {
-            lastModified = configFile.lastModified();
-            //debugPath += "printer == null, lastModified from configFile = "+lastModified+"\n";
-            try {
-                LOGGER.info("Loading configuration file: " + configFile.getAbsolutePath());
-                printer = getApplicationContext().getBean(MapPrinter.class).setYamlConfigFile(configFile);
-                if (app != null) {
-                    if (printers == null) {
-                        printers = new HashMap<String, MapPrinter>();
-                    }
-                    printers.put(app, printer);
-                    lastModifieds.put(app, lastModified);
-                } else {
-                    defaultLastModified = lastModified; // need this for default application
+    public void destroy() {
+        synchronized (this) {
+            if (configWatcher != null) {
+                configWatcher.shutdownNow();
+                configWatcher = null;
+            }
+        }
+        for (Iterator<Future<PrinterEntry>> it = printers.values().iterator(); it.hasNext(); ) {
+            final Future<PrinterEntry> future = it.next();
+            it.remove();
+            if (future.isDone()) {
+                try {
+                    //the prints still running keep it alive until they are finished
+                    future.get().printer.release();
+                } catch (Exception e) {
+                    //was not loaded
                 }
-            } catch (FileNotFoundException e) {
-                throw new ServletException("Cannot read configuration file: " + configPath, e);
-            } catch (Throwable e) {
-                LOGGER.error("Error occurred while reading configuration file", e);
-                throw new ServletException("Error occurred while reading configuration file '" + configFile + "': " + e);
             }
         }
+        super.destroy();
+    }
 
-        return printer;
+    private static class PrinterEntry {
+        private final File configFile;
+        private final MapPrinter printer;
+
+        /**
+         * Modification time of the last version of the file that could not
+         * be loaded, to not try again every time.
+         */
+        private volatile long failedLastModified = -1L;
+
+        public PrinterEntry(File configFile, MapPrinter printer) {
+            this.configFile = configFile;
+            this.printer = printer;
+        }
     }
 
     private ApplicationContext getApplicationContext() {
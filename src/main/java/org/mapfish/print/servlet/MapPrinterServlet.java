@@ -29,13 +29,24 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -48,6 +59,8 @@ import org.json.JSONObject;
 import org.json.JSONWriter;
 import org.mapfish.print.Constants;
 import org.mapfish.print.MapPrinter;
+import org.mapfish.print.PrintProgress;
+import org.mapfish.print.RenderingContext;
 import org.mapfish.print.output.OutputFormat;
 import org.mapfish.print.output.PdfOutputFactory;
 import org.mapfish.print.utils.PJsonArray;
@@ -66,6 +79,9 @@ public class MapPrinterServlet extends BaseMapServlet {
     private static final String INFO_URL = "/info.json";
     private static final String PRINT_URL = "/print.pdf";
     private static final String CREATE_URL = "/create.json";
+    private static final String STATUS_URL = "/status/";
+    private static final String CANCEL_URL = "/cancel/";
+    private static final String STATUS_SUFFIX = ".json";
     protected static final String TEMP_FILE_PREFIX = "mapfish-print";
     private static final String TEMP_FILE_SUFFIX = ".printout";
 
@@ -73,6 +89,14 @@ public class MapPrinterServlet extends BaseMapServlet {
 
     private static final int TEMP_FILE_PURGE_SECONDS = 10 * 60;
 
+    private static final int DEFAULT_PRINT_THREADS = 5;
+    private static final int DEFAULT_MAX_QUEUED_JOBS = 100;
+    private static final int DEFAULT_RETRY_AFTER_SECONDS = 30;
+    private static final int JOB_RETRY_AFTER_SECONDS = 2;
+    private static final int DEFAULT_PRINT_CACHE_TTL_SECONDS = 60 * 60;
+    private static final String DEFAULT_PRINT_CACHE_IGNORED_KEYS = "outputFilename,priority";
+    private static final String PRINT_CACHE_DIR = "printCache";
+
     private File tempDir = null;
     
     private Boolean cluster = null;
@@ -84,6 +108,28 @@ public class MapPrinterServlet extends BaseMapServlet {
      * Map of temporary files.
      */
     private final Map<String, TempFile> tempFiles = new HashMap<String, TempFile>();
+    /**
+     * Map of the jobs queued by /create.json (when the async mode is enabled).
+     */
+    private final Map<String, PrintJob> jobs = new HashMap<String, PrintJob>();
+    /**
+     * The threads doing the prints queued by /create.json.
+     */
+    private ThreadPoolExecutor jobExecutor = null;
+    private Boolean async = null;
+    /**
+     * Limits the number of prints running in parallel and their estimated memory.
+     */
+    private AdmissionController admissionController = null;
+    private int retryAfter = DEFAULT_RETRY_AFTER_SECONDS;
+    /**
+     * If true, /print.pdf sends the print to the client while it is generated.
+     */
+    private boolean streamPrint = false;
+    /**
+     * Keeps the prints of the cacheable layouts (null if disabled).
+     */
+    private PrintResultCache printResultCache = null;
 
     protected void doGet(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws ServletException, IOException {
         //do the routing in function of the actual URL
@@ -92,6 +138,8 @@ public class MapPrinterServlet extends BaseMapServlet {
             createAndGetPDF(httpServletRequest, httpServletResponse);
         } else if (additionalPath.equals(INFO_URL)) {
             getInfo(httpServletRequest, httpServletResponse, getBaseUrl(httpServletRequest));
+        } else if (additionalPath.startsWith(STATUS_URL) && additionalPath.endsWith(STATUS_SUFFIX)) {
+            getStatus(httpServletResponse, additionalPath.substring(STATUS_URL.length(), additionalPath.length() - STATUS_SUFFIX.length()));
         } else if (additionalPath.startsWith("/") && additionalPath.endsWith(TEMP_FILE_SUFFIX)) {
             getFile(httpServletRequest, httpServletResponse, additionalPath.substring(1, additionalPath.length() - TEMP_FILE_SUFFIX.length()));
         } else {
@@ -105,6 +153,8 @@ public class MapPrinterServlet extends BaseMapServlet {
             createAndGetPDF(httpServletRequest, httpServletResponse);
         } else if (additionalPath.equals(CREATE_URL)) {
             createPDF(httpServletRequest, httpServletResponse, getBaseUrl(httpServletRequest));
+        } else if (additionalPath.startsWith(CANCEL_URL) && additionalPath.endsWith(STATUS_SUFFIX)) {
+            cancelJob(httpServletResponse, additionalPath.substring(CANCEL_URL.length(), additionalPath.length() - STATUS_SUFFIX.length()));
         } else {
             error(httpServletResponse, "Unknown method: " + additionalPath, 404);
         }
@@ -113,13 +163,63 @@ public class MapPrinterServlet extends BaseMapServlet {
     public void init() throws ServletException {
         //get rid of the temporary files that were present before the servlet was started.
         File dir = getTempDir();
+        final File printCacheDir = new File(dir, PRINT_CACHE_DIR);
         File[] files = dir.listFiles();
         for (File file : files) {
-            deleteFile(file);
+            if (!file.equals(printCacheDir)) {
+                deleteFile(file);
+            }
+        }
+
+        final int nbThreads = getIntInitParameter("printThreads", DEFAULT_PRINT_THREADS);
+        final int maxQueued = getIntInitParameter("maxQueuedJobs", DEFAULT_MAX_QUEUED_JOBS);
+        final int maxRunning = getIntInitParameter("maxRunningJobs", nbThreads);
+        final long memoryBudget = getIntInitParameter("memoryBudget", (int) (Runtime.getRuntime().maxMemory() / 2 / (1024 * 1024))) * 1024L * 1024L;
+        admissionController = new AdmissionController(maxRunning, maxQueued, memoryBudget);
+        retryAfter = getIntInitParameter("retryAfter", DEFAULT_RETRY_AFTER_SECONDS);
+        streamPrint = Boolean.parseBoolean(getInitParameter("streamPrint"));
+
+        final int printCacheSize = getIntInitParameter("printCache", 0);
+        if (printCacheSize > 0) {
+            final String ignoredKeys = getInitParameter("printCacheIgnoredKeys");
+            final Set<String> ignored = new HashSet<String>();
+            for (String key : (ignoredKeys != null ? ignoredKeys : DEFAULT_PRINT_CACHE_IGNORED_KEYS).split(",")) {
+                if (key.trim().length() > 0) {
+                    ignored.add(key.trim());
+                }
+            }
+            printResultCache = new PrintResultCache(printCacheDir, printCacheSize * 1024L * 1024L,
+                    getIntInitParameter("printCacheTtl", DEFAULT_PRINT_CACHE_TTL_SECONDS) * 1000L, ignored);
+        }
+
+        if (isAsync()) {
+            jobExecutor = new ThreadPoolExecutor(nbThreads, nbThreads, 0L, TimeUnit.MILLISECONDS,
+                    new JobQueue(maxQueued), new ThreadFactory() {
+                        private final AtomicInteger counter = new AtomicInteger(0);
+
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "printJob" + counter.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
         }
     }
 
     public void destroy() {
+        if (jobExecutor != null) {
+            jobExecutor.shutdownNow();
+            jobExecutor = null;
+        }
+        synchronized (jobs) {
+            for (PrintJob job : jobs.values()) {
+                deleteTempFile(job.getTempFile());
+            }
+            jobs.clear();
+        }
+        if (printResultCache != null) {
+            printResultCache.clear();
+        }
         synchronized (tempFiles) {
             for (File file : tempFiles.values()) {
                 deleteTempFile(file);
@@ -167,9 +267,16 @@ public class MapPrinterServlet extends BaseMapServlet {
             return;
         }
 
+        if (streamPrint) {
+            streamPDF(spec, httpServletRequest, httpServletResponse);
+            return;
+        }
+
         try {
             tempFile = doCreatePDFFile(spec, httpServletRequest);
             sendPdfFile(httpServletResponse, tempFile, Boolean.parseBoolean(httpServletRequest.getParameter("inline")));
+        } catch (PrintRejectedException e) {
+            reject(httpServletResponse);
         } catch (Throwable e) {
             error(httpServletResponse, e);
         } finally {
@@ -181,6 +288,10 @@ public class MapPrinterServlet extends BaseMapServlet {
      * Create the PDF and returns to the client (in JSON) the URL to get the PDF.
      */
     protected void createPDF(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, String basePath) throws ServletException {
+        if (jobExecutor != null) {
+            queuePDF(httpServletRequest, httpServletResponse, basePath);
+            return;
+        }
         TempFile tempFile = null;
         try {
             purgeOldTemporaryFiles();
@@ -195,6 +306,9 @@ public class MapPrinterServlet extends BaseMapServlet {
             if(isCluster()) {
                 doCreateSharedSpec(spec, tempFile);
             }
+        } catch (PrintRejectedException e) {
+            reject(httpServletResponse);
+            return;
         } catch (Throwable e) {
             deleteTempFile(tempFile);
             error(httpServletResponse, e);
@@ -226,7 +340,128 @@ public class MapPrinterServlet extends BaseMapServlet {
         addTempFile(tempFile, id);
     }
 
-    
+    /**
+     * Queue the print and returns to the client (in JSON) the id of the job,
+     * the URL to poll its status and the URL to get the PDF once finished.
+     */
+    protected void queuePDF(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, String basePath) throws ServletException {
+        final PrintJob job;
+        try {
+            purgeOldTemporaryFiles();
+
+            String spec = getSpecFromPostBody(httpServletRequest);
+            PJsonObject specJson = getSpecJson(spec);
+            final String jobApp = app;
+            Map<String, String> headers = getHeaders(specJson, httpServletRequest);
+            MapPrinter mapPrinter = getMapPrinter(jobApp);
+            //released by the job once it is queued
+            MapPrinter toRelease = mapPrinter;
+            try {
+                final int priority = getPriority(mapPrinter, specJson, httpServletRequest);
+                TempFile tempFile = createTempFile(mapPrinter, specJson);
+                final long memory = AdmissionController.estimateMemory(mapPrinter.getConfig(), specJson);
+                job = new PrintJob(generateId(tempFile), tempFile, specJson, headers, mapPrinter, true,
+                        admissionController, memory, printResultCache, getResultCacheKey(jobApp, mapPrinter, specJson, headers), priority);
+                synchronized (jobs) {
+                    jobs.put(job.getId(), job);
+                }
+                try {
+                    jobExecutor.execute(job);
+                    toRelease = null;
+                } catch (RejectedExecutionException e) {
+                    synchronized (jobs) {
+                        jobs.remove(job.getId());
+                    }
+                    deleteTempFile(tempFile);
+                    reject(httpServletResponse);
+                    return;
+                }
+            } finally {
+                if (toRelease != null) {
+                    toRelease.release();
+                }
+            }
+        } catch (Throwable e) {
+            error(httpServletResponse, e);
+            return;
+        }
+
+        httpServletResponse.setContentType("application/json; charset=utf-8");
+        PrintWriter writer = null;
+        try {
+            writer = httpServletResponse.getWriter();
+            JSONWriter json = new JSONWriter(writer);
+            json.object();
+            {
+                json.key("id").value(job.getId());
+                json.key("statusURL").value(basePath + STATUS_URL + job.getId() + STATUS_SUFFIX);
+                json.key("cancelURL").value(basePath + CANCEL_URL + job.getId() + STATUS_SUFFIX);
+                json.key("getURL").value(basePath + "/" + job.getId() + TEMP_FILE_SUFFIX);
+            }
+            json.endObject();
+        } catch (JSONException e) {
+            throw new ServletException(e);
+        } catch (IOException e) {
+            throw new ServletException(e);
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+
+    /**
+     * To get (in JSON) the status of a job queued by /create.json.
+     */
+    protected void getStatus(HttpServletResponse httpServletResponse, String id) throws ServletException, IOException {
+        PrintJob job;
+        synchronized (jobs) {
+            job = jobs.get(id);
+        }
+        if (job == null) {
+            error(httpServletResponse, "Job with id=" + id + " unknown", 404);
+            return;
+        }
+
+        httpServletResponse.setContentType("application/json; charset=utf-8");
+        httpServletResponse.setHeader("Cache-Control", "no-cache");
+        final PrintWriter writer = httpServletResponse.getWriter();
+        try {
+            JSONWriter json = new JSONWriter(writer);
+            json.object();
+            job.printStatus(json);
+            json.endObject();
+        } catch (JSONException e) {
+            throw new ServletException(e);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * To cancel a job queued by /create.json. Answers with its status, like
+     * /status/{id}.json.
+     */
+    protected void cancelJob(HttpServletResponse httpServletResponse, String id) throws ServletException, IOException {
+        PrintJob job;
+        synchronized (jobs) {
+            job = jobs.get(id);
+        }
+        if (job == null) {
+            error(httpServletResponse, "Job with id=" + id + " unknown", 404);
+            return;
+        }
+
+        if (job.cancel()) {
+            LOGGER.info("Cancelling the print job " + id);
+            final ThreadPoolExecutor executor = jobExecutor;
+            if (executor != null && executor.remove(job)) {
+                //never started, finish it right away to release its resources
+                job.run();
+            }
+        }
+        getStatus(httpServletResponse, id);
+    }
 
     protected void doCreateSharedSpec(String spec, TempFile tempFile) throws IOException {
         BufferedWriter out = null;
@@ -283,7 +518,11 @@ public class MapPrinterServlet extends BaseMapServlet {
                 if(specFile.exists()) {
                     jsonSpec = getSpecJson(FileUtilities.readWholeTextFile(specFile));
                     MapPrinter mapPrinter = getMapPrinter(app);
-                    outputFormat = mapPrinter.getOutputFormat(jsonSpec);
+                    try {
+                        outputFormat = mapPrinter.getOutputFormat(jsonSpec);
+                    } finally {
+                        mapPrinter.release();
+                    }
                 } else {
                     jsonSpec = new PJsonObject(new JSONObject(), "tempFile");
                     outputFormat = new PdfOutputFactory();
@@ -296,6 +535,29 @@ public class MapPrinterServlet extends BaseMapServlet {
             }
             
         } else {
+            PrintJob job;
+            synchronized (jobs) {
+                job = jobs.get(id);
+            }
+            if (job != null) {
+                final PrintJob.Status status = job.getStatus();
+                if (status == PrintJob.Status.QUEUED || status == PrintJob.Status.RUNNING) {
+                    //clients may ask for the file before the job is finished,
+                    //don't keep a container thread for the whole print
+                    notFinished(httpServletResponse, id);
+                    return;
+                }
+                if (status == PrintJob.Status.CANCELLED) {
+                    error(httpServletResponse, "Job with id=" + id + " was cancelled", 404);
+                    return;
+                }
+                if (status != PrintJob.Status.DONE) {
+                    error(httpServletResponse, job.getError());
+                    return;
+                }
+                sendPdfFile(req, httpServletResponse, job.getTempFile(), Boolean.parseBoolean(req.getParameter("inline")));
+                return;
+            }
             synchronized (tempFiles) {
                 file = tempFiles.get(id);
             }
@@ -305,7 +567,7 @@ public class MapPrinterServlet extends BaseMapServlet {
             }
         }
         
-        sendPdfFile(httpServletResponse, file, Boolean.parseBoolean(req.getParameter("inline")));
+        sendPdfFile(req, httpServletResponse, file, Boolean.parseBoolean(req.getParameter("inline")));
     }
 
     /**
@@ -316,8 +578,14 @@ public class MapPrinterServlet extends BaseMapServlet {
         //System.out.println("app = "+app);
 
         MapPrinter printer = getMapPrinter(app);
-        resp.setContentType("application/json; charset=utf-8");
-        final PrintWriter writer = resp.getWriter();
+        final PrintWriter writer;
+        try {
+            resp.setContentType("application/json; charset=utf-8");
+            writer = resp.getWriter();
+        } catch (IOException e) {
+            printer.release();
+            throw e;
+        }
 
         try {
             final String var = req.getParameter("var");
@@ -345,9 +613,7 @@ public class MapPrinterServlet extends BaseMapServlet {
             }
         } finally {
             writer.close();
-            if(app == null && printer != null) {
-                printer.stop();
-            }
+            printer.release();
         }
     }
 
@@ -363,35 +629,41 @@ public class MapPrinterServlet extends BaseMapServlet {
 
         PJsonObject specJson = getSpecJson(spec);
 
-        Map<String, String> headers = new HashMap<String, String>();
-        if (httpServletRequest.getHeader("Referer") != null) {
-            headers.put("Referer", httpServletRequest.getHeader("Referer"));
-        }
-        if (httpServletRequest.getHeader("Cookie") != null) {
-            headers.put("Cookie", httpServletRequest.getHeader("Cookie"));
-        }
-        PJsonArray forwarded = specJson.optJSONArray("forwardHeaders");
-        if(forwarded != null) {
-            for(int count = 0; count < forwarded.size(); count++) {
-                String header = forwarded.getString(count);
-                if(header != null && httpServletRequest.getHeader(header) != null) {
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("Forwarding header: " + header);
-                    }
-                    headers.put(header, httpServletRequest.getHeader(header));
+        Map<String, String> headers = getHeaders(specJson, httpServletRequest);
+        MapPrinter mapPrinter = getMapPrinter(app);
+        final String cacheKey;
+        final long memory;
+        boolean admitted = false;
+        try {
+            cacheKey = getResultCacheKey(app, mapPrinter, specJson, headers);
+            if (cacheKey != null) {
+                final TempFile cached = getCachedPrint(mapPrinter, specJson, cacheKey);
+                if (cached != null) {
+                    return cached;
                 }
             }
+            memory = AdmissionController.estimateMemory(mapPrinter.getConfig(), specJson);
+            admitted = admissionController.tryEnter(memory, getPriority(mapPrinter, specJson, httpServletRequest));
+            if (!admitted) {
+                throw new PrintRejectedException();
+            }
+        } finally {
+            if (!admitted) {
+                mapPrinter.release();
+            }
         }
-        MapPrinter mapPrinter = getMapPrinter(app);
-        final OutputFormat outputFormat = mapPrinter.getOutputFormat(specJson);
-        //create a temporary file that will contain the PDF
-        final File tempJavaFile = File.createTempFile(TEMP_FILE_PREFIX, "."+outputFormat.getFileSuffix()+TEMP_FILE_SUFFIX, getTempDir());
-        TempFile tempFile = new TempFile(tempJavaFile, specJson, outputFormat);
+        TempFile tempFile = null;
 
         FileOutputStream out = null;
         try {
+            tempFile = createTempFile(mapPrinter, specJson);
             out = new FileOutputStream(tempFile);
-            mapPrinter.print(specJson, out, headers);
+            final RenderingContext context = mapPrinter.print(specJson, out, headers);
+            out.close();
+            out = null;
+            if (cacheKey != null && PrintResultCache.canStore(context)) {
+                printResultCache.put(cacheKey, tempFile);
+            }
 
             return tempFile;
         } catch (IOException e) {
@@ -404,12 +676,242 @@ public class MapPrinterServlet extends BaseMapServlet {
             deleteTempFile(tempFile);
             throw e;
         } finally {
-            if (out != null)
-                out.close();
-            if(app == null && mapPrinter != null) {
-                mapPrinter.stop();
+            admissionController.leave(memory);
+            try {
+                if (out != null)
+                    out.close();
+            } finally {
+                mapPrinter.release();
+            }
+        }
+    }
+
+    /**
+     * @return The key of the print in the result cache or null if it must
+     *         not be cached.
+     */
+    protected String getResultCacheKey(String app, MapPrinter mapPrinter, PJsonObject specJson, Map<String, String> headers) {
+        if (printResultCache == null || !PrintResultCache.isCacheable(mapPrinter, specJson)) {
+            return null;
+        }
+        return printResultCache.getKey(app, mapPrinter, specJson, headers);
+    }
+
+    /**
+     * @return A temporary file with a copy of the cached print or null if it
+     *         is not in the cache.
+     */
+    protected TempFile getCachedPrint(MapPrinter mapPrinter, PJsonObject specJson, String cacheKey) {
+        TempFile tempFile = null;
+        try {
+            tempFile = createTempFile(mapPrinter, specJson);
+            if (printResultCache.copyTo(cacheKey, tempFile)) {
+                return tempFile;
             }
+        } catch (IOException e) {
+            LOGGER.warn("Cannot get the print from the cache", e);
         }
+        deleteTempFile(tempFile);
+        return null;
+    }
+
+    /**
+     * Do the print directly in the response, without temporary file.
+     * <p/>
+     * If an error happens before the response is committed, the usual error
+     * page is sent. After that, the error can only be logged and the client
+     * receives a truncated file.
+     */
+    protected void streamPDF(String spec, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Streaming PDF for spec=" + spec);
+        }
+
+        MapPrinter mapPrinter = null;
+        long memory = 0L;
+        boolean admitted = false;
+        ResponseOutputStream out = null;
+        FileInputStream cached = null;
+        final PrintProgress progress = new PrintProgress();
+        try {
+            PJsonObject specJson = getSpecJson(spec);
+            Map<String, String> headers = getHeaders(specJson, httpServletRequest);
+            mapPrinter = getMapPrinter(app);
+            final String cacheKey = getResultCacheKey(app, mapPrinter, specJson, headers);
+            if (cacheKey != null) {
+                cached = printResultCache.open(cacheKey);
+            }
+            if (cached == null) {
+                memory = AdmissionController.estimateMemory(mapPrinter.getConfig(), specJson);
+                if (!admissionController.tryEnter(memory, getPriority(mapPrinter, specJson, httpServletRequest))) {
+                    reject(httpServletResponse);
+                    return;
+                }
+                admitted = true;
+            }
+
+            final OutputFormat outputFormat = mapPrinter.getOutputFormat(specJson);
+            httpServletResponse.setContentType(outputFormat.getContentType());
+            if (!Boolean.parseBoolean(httpServletRequest.getParameter("inline"))) {
+                final String fileName = TempFile.getOutputFileName(mapPrinter, specJson, outputFormat, TEMP_FILE_PREFIX);
+                httpServletResponse.setHeader("Content-disposition", "attachment; filename=" + fileName);
+            }
+
+            out = new ResponseOutputStream(httpServletResponse, progress);
+            if (cached != null) {
+                FileUtilities.copyStream(cached, out);
+            } else {
+                //the prints streamed to the client are not stored in the cache
+                mapPrinter.print(specJson, out, headers, progress);
+            }
+            out.close();
+        } catch (Throwable e) {
+            if (progress.isCancelled()) {
+                LOGGER.info("The client went away, the streamed print was cancelled");
+            } else if (out == null || !httpServletResponse.isCommitted()) {
+                try {
+                    if (out != null && out.isOpened()) {
+                        httpServletResponse.reset();
+                    }
+                    error(httpServletResponse, e);
+                } catch (IllegalStateException ex) {
+                    LOGGER.error("Error while streaming the print, cannot send the error to the client", e);
+                }
+            } else {
+                LOGGER.error("Error while streaming the print, the response sent to the client is truncated", e);
+            }
+        } finally {
+            if (cached != null) {
+                try {
+                    cached.close();
+                } catch (IOException e) {
+                    LOGGER.warn("Cannot close the cached print", e);
+                }
+            }
+            if (admitted) {
+                admissionController.leave(memory);
+            }
+            if (mapPrinter != null) {
+                mapPrinter.release();
+            }
+        }
+    }
+
+    /**
+     * Gets the response's output stream only when the first byte is written.
+     * That way, the response can still be used to send an error page if the
+     * print fails before writing anything.
+     * <p/>
+     * A failed write means the client went away: the print is cancelled.
+     */
+    private static class ResponseOutputStream extends OutputStream {
+        private final HttpServletResponse response;
+        private final PrintProgress progress;
+        private OutputStream out = null;
+
+        public ResponseOutputStream(HttpServletResponse response, PrintProgress progress) {
+            this.response = response;
+            this.progress = progress;
+        }
+
+        public boolean isOpened() {
+            return out != null;
+        }
+
+        private OutputStream getOut() throws IOException {
+            if (out == null) {
+                out = response.getOutputStream();
+            }
+            return out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                getOut().write(b);
+            } catch (IOException e) {
+                progress.cancel();
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                getOut().write(b, off, len);
+            } catch (IOException e) {
+                progress.cancel();
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    progress.cancel();
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            getOut().close();
+        }
+    }
+
+    protected TempFile createTempFile(MapPrinter mapPrinter, PJsonObject specJson) throws IOException {
+        final OutputFormat outputFormat = mapPrinter.getOutputFormat(specJson);
+        final File tempJavaFile = File.createTempFile(TEMP_FILE_PREFIX, "."+outputFormat.getFileSuffix()+TEMP_FILE_SUFFIX, getTempDir());
+        return new TempFile(tempJavaFile, specJson, outputFormat);
+    }
+
+    /**
+     * Get the weight of the print's priority class. The "priority" parameter
+     * of the request, if any, replaces the one of the spec.
+     *
+     * @throws org.mapfish.print.InvalidValueException If the class is not
+     *         one of the configuration.
+     */
+    protected int getPriority(MapPrinter mapPrinter, PJsonObject specJson, HttpServletRequest httpServletRequest) {
+        final String parameter = httpServletRequest.getParameter(Constants.JSON_PRIORITY_KEY);
+        if (parameter != null) {
+            try {
+                specJson.getInternalObj().put(Constants.JSON_PRIORITY_KEY, parameter);
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return mapPrinter.getConfig().getPriorityWeight(specJson.optString(Constants.JSON_PRIORITY_KEY));
+    }
+
+    /**
+     * Get the headers of the client request that have to be forwarded to the map servers.
+     */
+    protected Map<String, String> getHeaders(PJsonObject specJson, HttpServletRequest httpServletRequest) {
+        Map<String, String> headers = new HashMap<String, String>();
+        if (httpServletRequest.getHeader("Referer") != null) {
+            headers.put("Referer", httpServletRequest.getHeader("Referer"));
+        }
+        if (httpServletRequest.getHeader("Cookie") != null) {
+            headers.put("Cookie", httpServletRequest.getHeader("Cookie"));
+        }
+        PJsonArray forwarded = specJson.optJSONArray("forwardHeaders");
+        if(forwarded != null) {
+            for(int count = 0; count < forwarded.size(); count++) {
+                String header = forwarded.getString(count);
+                if(header != null && httpServletRequest.getHeader(header) != null) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("Forwarding header: " + header);
+                    }
+                    headers.put(header, httpServletRequest.getHeader(header));
+                }
+            }
+        }
+        return headers;
     }
 
     protected PJsonObject getSpecJson(String spec) {
@@ -427,29 +929,149 @@ public class MapPrinterServlet extends BaseMapServlet {
      * copy the PDF into the output stream
      */
     protected void sendPdfFile(HttpServletResponse httpServletResponse, TempFile tempFile, boolean inline) throws IOException, ServletException {
+        sendPdfFile(null, httpServletResponse, tempFile, inline);
+    }
+
+    /**
+     * Send the file to the client. Supports a single byte range (Range
+     * header), so that big downloads can be resumed.
+     *
+     * @param httpServletRequest The request, used for the Range header. May be null.
+     */
+    protected void sendPdfFile(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, TempFile tempFile, boolean inline) throws IOException, ServletException {
         FileInputStream pdf = new FileInputStream(tempFile);
-        final OutputStream response = httpServletResponse.getOutputStream();
+        OutputStream response = null;
         MapPrinter mapPrinter = getMapPrinter(app);
         try {
-            httpServletResponse.setContentType(tempFile.contentType());
+            final FileChannel channel = pdf.getChannel();
+            final long length = channel.size();
+            long start = 0;
+            long count = length;
+            final long[] range = httpServletRequest != null ? parseRange(httpServletRequest.getHeader("Range"), length) : null;
+            if (range != null && range.length == 0) {
+                httpServletResponse.setHeader("Content-Range", "bytes */" + length);
+                error(httpServletResponse, "Requested range not satisfiable", 416);
+                return;
+            }
 
+            httpServletResponse.setContentType(tempFile.contentType());
+            httpServletResponse.setHeader("Accept-Ranges", "bytes");
             if (!inline) {
                 final String fileName = tempFile.getOutputFileName(mapPrinter);
                 httpServletResponse.setHeader("Content-disposition", "attachment; filename=" + fileName);
             }
-            FileUtilities.copyStream(pdf, response);
+            if (range != null) {
+                start = range[0];
+                count = range[1] - range[0] + 1;
+                httpServletResponse.setStatus(206);
+                httpServletResponse.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+            }
+            if (count <= Integer.MAX_VALUE) {
+                httpServletResponse.setContentLength((int) count);
+            } else {
+                httpServletResponse.setHeader("Content-Length", Long.toString(count));
+            }
+
+            response = httpServletResponse.getOutputStream();
+            //the servlet API doesn't give access to the socket: the target is a
+            //channel wrapping the servlet's stream, so the JDK still copies the
+            //bytes through a buffer, there is no zero copy
+            final WritableByteChannel target = Channels.newChannel(response);
+            long position = start;
+            final long end = start + count;
+            while (position < end) {
+                final long nb = channel.transferTo(position, end - position, target);
+                if (nb <= 0) {
+                    throw new IOException("Cannot read " + tempFile.getAbsolutePath() + " after " + position + " bytes");
+                }
+                position += nb;
+            }
         } finally {
             try {
                 pdf.close();
             } finally{
-                response.close();
+                try {
+                    if (response != null) {
+                        response.close();
+                    }
+                } finally {
+                    mapPrinter.release();
+                }
             }
-            if(app == null && mapPrinter != null) {
-                mapPrinter.stop();
+        }
+    }
+
+    /**
+     * Parse the value of a Range header. Only single byte ranges are
+     * supported, the whole file is sent for the other forms.
+     *
+     * @return The first and last (inclusive) positions, null to send the whole
+     *         file or an empty array if the range cannot be satisfied.
+     */
+    static long[] parseRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = header.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            final String first = spec.substring(0, dash).trim();
+            final String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.length() == 0) {
+                //suffix range: the last N bytes
+                if (last.length() == 0) {
+                    return null;
+                }
+                final long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.length() == 0 ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (end < start) {
+                    return start >= length ? new long[0] : null;
+                }
+            }
+            if (start >= length) {
+                return new long[0];
             }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Tell the client the print is not finished yet.
+     */
+    protected void notFinished(HttpServletResponse httpServletResponse, String id) throws IOException {
+        httpServletResponse.setHeader("Retry-After", Integer.toString(JOB_RETRY_AFTER_SECONDS));
+        httpServletResponse.setContentType("text/plain");
+        httpServletResponse.setStatus(202);
+        final PrintWriter out = httpServletResponse.getWriter();
+        try {
+            out.println("Job with id=" + id + " is not finished yet");
+        } finally {
+            out.close();
         }
     }
 
+    /**
+     * Tell the client the server is too busy to accept the print.
+     */
+    protected void reject(HttpServletResponse httpServletResponse) {
+        httpServletResponse.setHeader("Retry-After", Integer.toString(retryAfter));
+        error(httpServletResponse, "Too many prints in progress, try again later", 503);
+    }
+
     /**
      * Send an error XXX to the client with an exception
      */
@@ -532,6 +1154,33 @@ public class MapPrinterServlet extends BaseMapServlet {
         return cluster;
     }
 
+    /**
+     * Tells if /create.json queues the prints (opt-in, the getURL of a queued
+     * print is not usable before the print is finished) or does them in the
+     * request's thread (the default). Always disabled in cluster mode since
+     * the jobs are known only by the node that created them.
+     */
+    protected boolean isAsync() {
+        if (async == null) {
+            String asyncValue = getInitParameter("asyncCreate");
+            async = asyncValue != null && Boolean.parseBoolean(asyncValue.trim()) && !isCluster();
+        }
+        return async;
+    }
+
+    private int getIntInitParameter(String name, int defaultValue) {
+        final String value = getInitParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid value for the init parameter " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
     /**
      * If the file is defined, delete it.
      */
@@ -582,10 +1231,58 @@ public class MapPrinterServlet extends BaseMapServlet {
                     }
                 }
             }
+            synchronized (jobs) {
+                Iterator<Map.Entry<String, PrintJob>> it = jobs.entrySet().iterator();
+                while (it.hasNext()) {
+                    PrintJob job = it.next().getValue();
+                    if (job.isFinished() && job.getEndTime() < minTime) {
+                        deleteTempFile(job.getTempFile());
+                        it.remove();
+                    }
+                }
+            }
             purging.set(false);
         }
     }
 
+    /**
+     * Thrown when the admission controller refuses a print.
+     */
+    protected static class PrintRejectedException extends ServletException {
+        private static final long serialVersionUID = -2093125416306829815L;
+
+        public PrintRejectedException() {
+            super("Too many prints in progress");
+        }
+    }
+
+    /**
+     * The queue of the jobs waiting for a thread, by priority, with a
+     * maximum size.
+     */
+    private static class JobQueue extends PriorityBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        public JobQueue(int capacity) {
+            super(11, PrintJob.QUEUE_ORDER);
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized boolean offer(Runnable runnable) {
+            if (size() >= capacity) {
+                return false;
+            }
+            return super.offer(runnable);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Math.max(0, capacity - size());
+        }
+    }
+
     static class TempFile extends File {
         private static final long serialVersionUID = 455104129549002361L;
         private final long creationTime;
@@ -612,6 +1309,20 @@ public class MapPrinterServlet extends BaseMapServlet {
             }
         }
 
+        /**
+         * Same as {@link #getOutputFileName(MapPrinter)}, for when there is no temporary file.
+         */
+        public static String getOutputFileName(MapPrinter mapPrinter, PJsonObject jsonSpec, OutputFormat format, String defaultName) {
+            final String outputFileName = jsonSpec.optString(Constants.OUTPUT_FILENAME_KEY);
+            final String name;
+            if (outputFileName != null) {
+                name = outputFileName;
+            } else {
+                name = mapPrinter.getOutputFilename(jsonSpec.optString(Constants.JSON_LAYOUT_KEY, null), defaultName);
+            }
+            return formatFileName(format.getFileSuffix(), name, new Date());
+        }
+
 
         public static String formatFileName(String suffix, String startingName, Date date) {
             Matcher matcher = Pattern.compile("\\$\\{(.+?)\\}").matcher(startingName);
@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.servlet;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONWriter;
+import org.mapfish.print.MapPrinter;
+import org.mapfish.print.PrintProgress;
+import org.mapfish.print.RenderingContext;
+import org.mapfish.print.TimeLogger;
+import org.mapfish.print.utils.PJsonObject;
+
+/**
+ * A print queued by the /create.json command. Runs in one of the threads of
+ * the servlet's job executor and keeps its status so that it can be polled
+ * through /status/{id}.json and cancelled through /cancel/{id}.json.
+ */
+public class PrintJob implements Runnable {
+    public static final Logger LOGGER = Logger.getLogger(PrintJob.class);
+
+    public static enum Status {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /**
+     * Orders the queued jobs: the biggest priority weight first, then in the
+     * order they were created.
+     */
+    public static final Comparator<Runnable> QUEUE_ORDER = new Comparator<Runnable>() {
+        public int compare(Runnable o1, Runnable o2) {
+            final PrintJob job1 = (PrintJob) o1;
+            final PrintJob job2 = (PrintJob) o2;
+            if (job1.priority != job2.priority) {
+                return job1.priority > job2.priority ? -1 : 1;
+            }
+            return job1.sequenceNumber < job2.sequenceNumber ? -1 : (job1.sequenceNumber == job2.sequenceNumber ? 0 : 1);
+        }
+    };
+
+    private static final AtomicLong SEQUENCE = new AtomicLong(0L);
+
+    private final String id;
+    private final MapPrinterServlet.TempFile tempFile;
+    private final PJsonObject specJson;
+    private final Map<String, String> headers;
+    private final MapPrinter mapPrinter;
+
+    /**
+     * If true, the job owns a reference on the printer and releases it once
+     * finished.
+     */
+    private final boolean releasePrinter;
+
+    /**
+     * Decides when the job can start (may be null).
+     */
+    private final AdmissionController admissionController;
+    private final long estimatedMemory;
+
+    /**
+     * Where to look for an identical print and store the result (may be null).
+     */
+    private final PrintResultCache resultCache;
+    private final String cacheKey;
+
+    /**
+     * The weight of the print's priority class.
+     */
+    private final int priority;
+    private final long sequenceNumber = SEQUENCE.getAndIncrement();
+
+    private final PrintProgress progress = new PrintProgress();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final long creationTime = System.currentTimeMillis();
+
+    private volatile Status status = Status.QUEUED;
+    private volatile Throwable error = null;
+    private volatile long endTime = 0L;
+
+    public PrintJob(String id, MapPrinterServlet.TempFile tempFile, PJsonObject specJson, Map<String, String> headers,
+                    MapPrinter mapPrinter, boolean releasePrinter, AdmissionController admissionController, long estimatedMemory) {
+        this(id, tempFile, specJson, headers, mapPrinter, releasePrinter, admissionController, estimatedMemory, null, null, 1);
+    }
+
+    /**
+     * @param resultCache The cache of the prints (may be null).
+     * @param cacheKey    The key of this print in the cache or null if it must not be cached.
+     * @param priority    The weight of the print's priority class.
+     */
+    public PrintJob(String id, MapPrinterServlet.TempFile tempFile, PJsonObject specJson, Map<String, String> headers,
+                    MapPrinter mapPrinter, boolean releasePrinter, AdmissionController admissionController, long estimatedMemory,
+                    PrintResultCache resultCache, String cacheKey, int priority) {
+        this.id = id;
+        this.tempFile = tempFile;
+        this.specJson = specJson;
+        this.headers = headers;
+        this.mapPrinter = mapPrinter;
+        this.releasePrinter = releasePrinter;
+        this.admissionController = admissionController;
+        this.estimatedMemory = estimatedMemory;
+        this.resultCache = resultCache;
+        this.cacheKey = resultCache != null ? cacheKey : null;
+        this.priority = priority;
+    }
+
+    public void run() {
+        boolean admitted = false;
+        TimeLogger timeLog = null;
+        FileOutputStream out = null;
+        try {
+            if (progress.isCancelled()) {
+                status = Status.CANCELLED;
+                return;
+            }
+            if (cacheKey != null && getFromCache()) {
+                status = Status.DONE;
+                return;
+            }
+            if (admissionController != null) {
+                admitted = admissionController.enter(estimatedMemory, priority, progress);
+                if (!admitted || progress.isCancelled()) {
+                    //cancelled while waiting for its turn
+                    status = Status.CANCELLED;
+                    return;
+                }
+            }
+            status = Status.RUNNING;
+            timeLog = TimeLogger.info(LOGGER, "Print job " + id);
+            out = new FileOutputStream(tempFile);
+            final RenderingContext context = mapPrinter.print(specJson, out, headers, progress);
+            out.close();
+            out = null;
+            if (progress.isCancelled()) {
+                //some tiles may be missing
+                LOGGER.info("Print job " + id + " cancelled");
+                status = Status.CANCELLED;
+                return;
+            }
+            if (cacheKey != null && PrintResultCache.canStore(context)) {
+                resultCache.put(cacheKey, tempFile);
+            }
+            status = Status.DONE;
+        } catch (Throwable e) {
+            if (progress.isCancelled()) {
+                LOGGER.info("Print job " + id + " cancelled");
+                status = Status.CANCELLED;
+            } else {
+                LOGGER.error("Error while generating the print job " + id, e);
+                error = e;
+                status = Status.FAILED;
+            }
+        } finally {
+            if (admitted) {
+                admissionController.leave(estimatedMemory);
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    LOGGER.warn("Cannot close the output of the print job " + id, e);
+                }
+            }
+            if ((status == Status.FAILED || status == Status.CANCELLED) && tempFile.exists() && !tempFile.delete()) {
+                LOGGER.warn("Cannot delete file:" + tempFile.getAbsolutePath());
+            }
+            if (releasePrinter) {
+                mapPrinter.release();
+            }
+            endTime = System.currentTimeMillis();
+            if (timeLog != null) {
+                timeLog.done();
+            }
+            finished.countDown();
+        }
+    }
+
+    private boolean getFromCache() {
+        try {
+            return resultCache.copyTo(cacheKey, tempFile);
+        } catch (IOException e) {
+            LOGGER.warn("Cannot get the print job " + id + " from the cache", e);
+            return false;
+        }
+    }
+
+    /**
+     * Block until the job is finished (successfully or not).
+     */
+    public void waitForCompletion() throws InterruptedException {
+        finished.await();
+    }
+
+    /**
+     * Ask the job to stop. A queued job won't start, a job waiting for the
+     * admission controller stops waiting and a running one stops rendering
+     * and aborts its outstanding tile requests. Its file is deleted.
+     * <p/>
+     * A queued job removed from its executor must still be run, to release
+     * its resources.
+     *
+     * @return False if the job was already finished.
+     */
+    public boolean cancel() {
+        if (isFinished()) {
+            return false;
+        }
+        progress.cancel();
+        return true;
+    }
+
+    public boolean isFinished() {
+        return finished.getCount() == 0;
+    }
+
+    /**
+     * Write the status of the job as the members of a JSON object.
+     */
+    public void printStatus(JSONWriter json) throws JSONException {
+        json.key("id").value(id);
+        json.key("status").value(status.name().toLowerCase());
+        json.key("done").value(isFinished());
+        json.key("pages").value(progress.getNbPages());
+        json.key("pagesDone").value(progress.getNbPagesDone());
+        json.key("progress").value(status == Status.DONE ? 1.0 : progress.getRatio());
+        json.key("elapsedTime").value((isFinished() ? endTime : System.currentTimeMillis()) - creationTime);
+        if (error != null) {
+            json.key("error").value(error.toString());
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    public MapPrinterServlet.TempFile getTempFile() {
+        return tempFile;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    /**
+     * @return The time the job finished or 0 if it's still queued or running.
+     */
+    public long getEndTime() {
+        return endTime;
+    }
+}
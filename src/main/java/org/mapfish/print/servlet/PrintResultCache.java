@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mapfish.print.servlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mapfish.print.Constants;
+import org.mapfish.print.MapPrinter;
+import org.mapfish.print.RenderingContext;
+import org.mapfish.print.config.layout.Layout;
+import org.mapfish.print.utils.PJsonObject;
+
+/**
+ * Keeps the prints done with the layouts having "cacheable: true", so that
+ * the same spec printed again with the same configuration file is served
+ * without being rendered again.
+ * <p/>
+ * The key is a hash of the canonical form of the spec (sorted keys, without
+ * the ignored keys), of the headers forwarded to the map servers, of the app
+ * and of the modification time of its configuration file. The least recently
+ * used prints are removed when the cache grows bigger than its max size.
+ */
+public class PrintResultCache {
+    public static final Logger LOGGER = Logger.getLogger(PrintResultCache.class);
+
+    private static final String SUFFIX = ".print";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxSize;
+    private final long ttl;
+
+    /**
+     * Top level keys of the spec that have no effect on the output.
+     */
+    private final Set<String> ignoredKeys;
+
+    /**
+     * The cached prints, the least recently used first. Protected by this.
+     */
+    private final LinkedHashMap<String, Entry> index = new LinkedHashMap<String, Entry>(100, 0.75f, true);
+
+    /**
+     * Sum of the size of the files in the index. Protected by this.
+     */
+    private long totalSize = 0L;
+
+    /**
+     * @param directory   Where to store the prints. Its content is deleted.
+     * @param maxSize     The max size of the cache in bytes.
+     * @param ttl         The time to live of the prints in milliseconds.
+     * @param ignoredKeys Top level keys of the spec that are not part of the key.
+     */
+    public PrintResultCache(File directory, long maxSize, long ttl, Set<String> ignoredKeys) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.ignoredKeys = ignoredKeys;
+
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteFile(file);
+            }
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.warn("Cannot create directory " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return True if the prints of the given spec can be cached.
+     */
+    public static boolean isCacheable(MapPrinter mapPrinter, PJsonObject spec) {
+        final Layout layout = mapPrinter.getConfig().getLayout(spec.optString(Constants.JSON_LAYOUT_KEY));
+        return layout != null && layout.isCacheable();
+    }
+
+    /**
+     * @return True if the result of the given print can be stored (doesn't
+     *         depend on the time of the print).
+     */
+    public static boolean canStore(RenderingContext context) {
+        return context != null && !context.isTimeDependent();
+    }
+
+    public String getKey(String app, MapPrinter mapPrinter, PJsonObject spec, Map<String, String> headers) {
+        final StringBuilder text = new StringBuilder();
+        text.append(app).append('\n');
+        text.append(mapPrinter.getConfigLastModified()).append('\n');
+        try {
+            appendCanonical(text, spec.getInternalObj(), ignoredKeys);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+        text.append('\n');
+        for (Map.Entry<String, String> header : new TreeMap<String, String>(headers).entrySet()) {
+            text.append(header.getKey()).append(':').append(header.getValue()).append('\n');
+        }
+        return hash(text.toString());
+    }
+
+    /**
+     * Open the print stored for the given key.
+     *
+     * @return The content of the print or null if it's not in the cache or expired.
+     */
+    public synchronized FileInputStream open(String key) {
+        final Entry entry = index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.created > ttl) {
+            remove(key);
+            return null;
+        }
+        try {
+            //on most systems, the file can still be read even if it's evicted afterwards
+            return new FileInputStream(getFile(key));
+        } catch (FileNotFoundException e) {
+            LOGGER.warn("Cached print disappeared: " + getFile(key).getAbsolutePath());
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Copy the print stored for the given key into the given file.
+     *
+     * @return False if the print is not in the cache.
+     */
+    public boolean copyTo(String key, File target) throws IOException {
+        final FileInputStream in = open(key);
+        if (in == null) {
+            return false;
+        }
+        try {
+            copy(in, target);
+        } finally {
+            in.close();
+        }
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Print served from the cache: " + key);
+        }
+        return true;
+    }
+
+    /**
+     * Store a copy of the given print.
+     */
+    public void put(String key, File print) {
+        final File file = getFile(key);
+        final File tmpFile = new File(directory, key + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        final long size;
+        try {
+            final FileInputStream in = new FileInputStream(print);
+            try {
+                copy(in, tmpFile);
+            } finally {
+                in.close();
+            }
+            size = tmpFile.length();
+        } catch (IOException e) {
+            LOGGER.warn("Cannot store print in the cache: " + e.getMessage());
+            deleteFile(tmpFile);
+            return;
+        }
+
+        synchronized (this) {
+            remove(key);
+            if (!tmpFile.renameTo(file)) {
+                LOGGER.warn("Cannot rename " + tmpFile.getAbsolutePath() + " to " + file.getAbsolutePath());
+                deleteFile(tmpFile);
+                return;
+            }
+            index.put(key, new Entry(size));
+            totalSize += size;
+            evict();
+        }
+    }
+
+    public synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Delete the cached prints.
+     */
+    public synchronized void clear() {
+        final List<String> keys = new ArrayList<String>(index.keySet());
+        for (String key : keys) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Must be called with the lock.
+     */
+    private void remove(String key) {
+        final Entry entry = index.remove(key);
+        if (entry != null) {
+            totalSize -= entry.size;
+            deleteFile(getFile(key));
+        }
+    }
+
+    /**
+     * Remove the least recently used prints until the cache fits in maxSize.
+     * Must be called with the lock.
+     */
+    private void evict() {
+        final Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            final Map.Entry<String, Entry> entry = it.next();
+            it.remove();
+            totalSize -= entry.getValue().size;
+            deleteFile(getFile(entry.getKey()));
+        }
+    }
+
+    private File getFile(String key) {
+        return new File(directory, key + SUFFIX);
+    }
+
+    /**
+     * Write the given JSON value with the keys of the objects sorted.
+     */
+    static void appendCanonical(StringBuilder result, Object value, Set<String> ignoredKeys) throws JSONException {
+        if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            final List<String> keys = new ArrayList<String>();
+            final Iterator<?> it = object.keys();
+            while (it.hasNext()) {
+                final String key = it.next().toString();
+                if (ignoredKeys == null || !ignoredKeys.contains(key)) {
+                    keys.add(key);
+                }
+            }
+            Collections.sort(keys);
+            result.append('{');
+            for (int i = 0; i < keys.size(); ++i) {
+                if (i > 0) {
+                    result.append(',');
+                }
+                final String key = keys.get(i);
+                result.append(JSONObject.quote(key)).append(':');
+                //the ignored keys apply only to the top level
+                appendCanonical(result, object.get(key), null);
+            }
+            result.append('}');
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            result.append('[');
+            for (int i = 0; i < array.length(); ++i) {
+                if (i > 0) {
+                    result.append(',');
+                }
+                appendCanonical(result, array.get(i), null);
+            }
+            result.append(']');
+        } else if (value instanceof Number) {
+            result.append(JSONObject.numberToString((Number) value));
+        } else if (value instanceof String) {
+            result.append(JSONObject.quote((String) value));
+        } else {
+            result.append(String.valueOf(value));
+        }
+    }
+
+    private static String hash(String text) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(text.getBytes("UTF-8"));
+            final StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16));
+                result.append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void copy(FileInputStream in, File target) throws IOException {
+        final FileOutputStream out = new FileOutputStream(target);
+        try {
+            final FileChannel source = in.getChannel();
+            final FileChannel destination = out.getChannel();
+            final long size = source.size();
+            long position = 0;
+            while (position < size) {
+                final long nb = source.transferTo(position, size - position, destination);
+                if (nb <= 0) {
+                    throw new IOException("Cannot copy to " + target.getAbsolutePath() + " after " + position + " bytes");
+                }
+                position += nb;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn("Cannot delete file:" + file.getAbsolutePath());
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long created = System.currentTimeMillis();
+
+        public Entry(long size) {
+            this.size = size;
+        }
+    }
+}
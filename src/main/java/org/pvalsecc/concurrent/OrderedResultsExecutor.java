@@ -3,8 +3,16 @@ package org.pvalsecc.concurrent;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.util.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Take tasks and execute them in //. Each task generates a result and the
@@ -19,6 +27,21 @@ import java.util.concurrent.atomic.AtomicLong;
  * is called only one result at a time for a given instance of {@link org.pvalsecc.concurrent.OrderedResultsExecutor.ResultCollector}.
  * No // call of this method for a given object.
  * </ul>
+ *
+ * The tasks are numbered per resultCollector and their results are reordered
+ * per resultCollector, so that unrelated collectors never wait on each other.
+ * The threads take the tasks from the collectors in a round robin fashion:
+ * a collector with a lot of tasks doesn't delay the ones with few tasks.
+ * A collector can be given a weight: it then takes that many tasks in a row
+ * each time its turn comes (weighted round robin), to favor the important
+ * work over the long running background one.
+ *
+ * The tasks implementing {@link org.pvalsecc.concurrent.OrderedResultsExecutor.AsyncTask}
+ * don't keep a thread while they wait for I/O: they give their result later
+ * through their {@link org.pvalsecc.concurrent.OrderedResultsExecutor.Continuation}.
+ *
+ * Instead of a fixed number of threads, the executor can start a thread per
+ * task (for example a virtual thread, see {@link VirtualThreadFactory}).
  */
 public class OrderedResultsExecutor<RESULT> {
     public static Log LOGGER = LogFactory.getLog(OrderedResultsExecutor.class);
@@ -29,40 +52,61 @@ public class OrderedResultsExecutor<RESULT> {
     private final String name;
 
     /**
-     * The executor threads.
+     * The executor threads (only one, dispatching the tasks, if
+     * {@link #taskThreads} is not null).
      */
     private final Thread[] threads;
 
     /**
-     * The sequence used to attribute the order of the tasks.
+     * When not null, each task runs in its own thread created by this
+     * factory.
      */
-    private AtomicLong nextSequenceNumber = new AtomicLong(0L);
+    private final ThreadFactory taskThreads;
 
     /**
-     * Queue of tasks to do. Protected by itself.
+     * Limits the number of tasks running at the same time when
+     * {@link #taskThreads} is used.
      */
-    private final Queue<InternalTask<RESULT>> queue;
+    private final Semaphore taskPermits;
 
     /**
-     * Ordered structure used to store the results the time they are in order.
+     * The collectors having tasks to do, in the order they will be served.
+     * A collector is put back at the end each time it took as many tasks as
+     * its weight. The code resumed by the asynchronous tasks is queued here
+     * as well.
      */
-    private final SortedSet<InternalTask<RESULT>> output = Collections.synchronizedSortedSet(new TreeSet<InternalTask<RESULT>>());
+    private final BlockingDeque<Runnable> ready = new LinkedBlockingDeque<Runnable>();
 
     /**
-     * number of the next task to be sent out. Protected by {@link  #nextOutputLock}
+     * Put in {@link #ready} to tell an executor thread to stop.
      */
-    private long nextOutput = 1L;
+    private final Runnable stopSignal = new Runnable() {
+        public void run() {
+        }
+    };
 
     /**
-     * The lock to protect {@link #nextOutput}.
+     * The ordering state of each resultCollector having tasks not yet handled.
+     * A collector is removed as soon as all its tasks are handled.
      */
-    private final Object nextOutputLock = new Object();
+    private final ConcurrentMap<ResultCollector<RESULT>, CollectorState> collectors =
+            new ConcurrentHashMap<ResultCollector<RESULT>, CollectorState>();
 
 
     public OrderedResultsExecutor(int nbThreads, String name) {
+        this(nbThreads, name, null);
+    }
+
+    /**
+     * @param nbThreads   The number of threads, or the max number of tasks
+     *                    running at the same time if taskThreads is not null.
+     * @param taskThreads If not null, used to create a thread for each task.
+     */
+    public OrderedResultsExecutor(int nbThreads, String name, ThreadFactory taskThreads) {
         this.name = name;
-        this.threads = new Thread[nbThreads];
-        queue = new LinkedList<InternalTask<RESULT>>();
+        this.taskThreads = taskThreads;
+        this.threads = new Thread[taskThreads == null ? nbThreads : 1];
+        this.taskPermits = taskThreads == null ? null : new Semaphore(nbThreads);
     }
 
     /**
@@ -71,7 +115,7 @@ public class OrderedResultsExecutor<RESULT> {
     public void start() {
         for (int i = 0; i < threads.length; i++) {
             if(threads[i]==null) {
-                Thread thread = threads[i] = new Thread(new Runner(), name+i);
+                Thread thread = threads[i] = new Thread(taskThreads == null ? new Runner() : new Dispatcher(), name+i);
                 thread.setDaemon(true);
                 thread.start();
             }
@@ -82,12 +126,8 @@ public class OrderedResultsExecutor<RESULT> {
      * Stop the executor threads.
      */
     public void stop() {
-        synchronized (queue) {
-            for (int i = 0; i < threads.length; ++i) {
-                  //null task means "die!"
-                queue.add(new InternalTask<RESULT>(null, null, 0));
-            }
-            queue.notifyAll();
+        for (int i = 0; i < threads.length; ++i) {
+            ready.add(stopSignal);
         }
 
         for (int i = 0; i < threads.length; i++) {
@@ -108,44 +148,167 @@ public class OrderedResultsExecutor<RESULT> {
      * Adds a task whose result will be sent to the given resultCollector.
      */
     public void addTask(Task<RESULT> command, ResultCollector<RESULT> resultCollector) {
-        synchronized (queue) {
-            queue.add(new InternalTask<RESULT>(command, resultCollector, nextSequenceNumber.incrementAndGet()));
-            queue.notify();
-        }
+        addTask(command, resultCollector, 1);
     }
 
-    private void addOutput(InternalTask<RESULT> task) {
-        output.add(task);
+    /**
+     * Adds a task whose result will be sent to the given resultCollector.
+     *
+     * @param weight The number of tasks the resultCollector takes in a row
+     *               when its turn comes. Only the one given with the first
+     *               pending task of a resultCollector is taken into account.
+     */
+    public void addTask(Task<RESULT> command, ResultCollector<RESULT> resultCollector, int weight) {
         while (true) {
-            InternalTask<RESULT> first;
-            synchronized (nextOutputLock) {
-                if(output.isEmpty()) {
-                    //next one not yet available
-                    return;
-                }
-                first = output.first();
-                if (first.sequenceNumber != nextOutput) {
-                    //next one not yet available
-                    return;
+            CollectorState state = collectors.get(resultCollector);
+            if (state == null) {
+                final CollectorState newState = new CollectorState(resultCollector, weight);
+                state = collectors.putIfAbsent(resultCollector, newState);
+                if (state == null) {
+                    state = newState;
                 }
+            }
+            if (!state.addTask(command)) {
+                //the state was just retired because all its tasks were handled, take a new one
+                continue;
+            }
+            return;
+        }
+    }
+
+    /**
+     * The ordering state of a resultCollector. The results are kept here
+     * until all the results before them are handled. Only one thread at a
+     * time sends the results to the resultCollector; the other threads just
+     * leave their result and go back to work.
+     */
+    private class CollectorState implements Runnable {
+        private final ResultCollector<RESULT> resultCollector;
+
+        /**
+         * Number of tasks taken in a row.
+         */
+        private final int weight;
+
+        /**
+         * Number of tasks that can still be taken before going back at the
+         * end of {@link #ready}. Protected by this.
+         */
+        private int credit;
+
+        /**
+         * The results waiting for their turn, by sequence number. Protected by this.
+         */
+        private final Map<Long, InternalTask> waiting = new HashMap<Long, InternalTask>();
+
+        /**
+         * The tasks not yet started. Protected by this.
+         */
+        private final Queue<InternalTask> tasks = new LinkedList<InternalTask>();
+
+        /**
+         * True when this is in {@link #ready}. Protected by this.
+         */
+        private boolean scheduled = false;
+
+        /**
+         * Sequence number of the next task added. Protected by this.
+         */
+        private long nextSequenceNumber = 0L;
+
+        /**
+         * Sequence number of the next result to be sent out. Protected by this.
+         */
+        private long nextOutput = 0L;
+
+        /**
+         * True when a thread is sending the results out. Protected by this.
+         */
+        private boolean handling = false;
+
+        /**
+         * True once removed from {@link #collectors}. Protected by this.
+         */
+        private boolean retired = false;
+
+        public CollectorState(ResultCollector<RESULT> resultCollector, int weight) {
+            this.resultCollector = resultCollector;
+            this.weight = Math.max(1, weight);
+        }
+
+        /**
+         * @return False if the state is retired.
+         */
+        public synchronized boolean addTask(Task<RESULT> command) {
+            if (retired) {
+                return false;
+            }
+            tasks.add(new InternalTask(command, this, nextSequenceNumber++));
+            if (!scheduled) {
+                scheduled = true;
+                credit = weight;
+                ready.add(this);
+            }
+            return true;
+        }
 
-                //it wouldn't be a good idea to take the resultCollector lock here.
-                //That would serialize the calls between resultCollectors
+        /**
+         * Take the next task to do. If there are more, keep the head of the
+         * {@link #ready} queue until the weight is used, then go back at the
+         * end.
+         */
+        public synchronized InternalTask takeTask() {
+            final InternalTask task = tasks.poll();
+            if (tasks.isEmpty()) {
+                scheduled = false;
+            } else if (--credit > 0) {
+                ready.addFirst(this);
+            } else {
+                credit = weight;
+                ready.add(this);
             }
+            return task;
+        }
 
-            //"the dangerous point"
+        /**
+         * Start the next task to do.
+         */
+        public void run() {
+            takeTask().start();
+        }
+
+        public void addOutput(InternalTask task) {
+            synchronized (this) {
+                waiting.put(task.sequenceNumber, task);
+                if (handling) {
+                    //the thread handling the results will take care of this one
+                    return;
+                }
+                handling = true;
+            }
 
-            synchronized (first.resultCollector) {
-                synchronized (nextOutputLock) {
-                    if(first.sequenceNumber !=nextOutput) {
-                        //Another thread took over us during "the dangerous point" with the same nextOutputValue
-                        continue;
+            while (true) {
+                final InternalTask next;
+                synchronized (this) {
+                    next = waiting.remove(nextOutput);
+                    if (next == null) {
+                        //next one not yet available
+                        handling = false;
+                        if (nextOutput == nextSequenceNumber) {
+                            //everything was handled
+                            retired = true;
+                            collectors.remove(resultCollector, this);
+                        }
+                        return;
                     }
-                    //now we are sure we can output "first"
                     ++nextOutput;
-                    output.remove(first);
                 }
-                first.resultCollector.handle(first.result);
+
+                try {
+                    resultCollector.handle(next.result);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Error while handling a result", e);
+                }
             }
         }
     }
@@ -158,57 +321,103 @@ public class OrderedResultsExecutor<RESULT> {
             if (LOGGER.isDebugEnabled())
                 LOGGER.debug("Runner ["+name+"] started");
             while (true) {
-                //gets a task to be executed
-                InternalTask<RESULT> cur;
-                synchronized (queue) {
-                    while ((cur = queue.poll()) == null) {
-                        try {
-                            queue.wait();
-                        } catch (InterruptedException e) {
-                            //ignored
-                        }
-                    }
+                //gets a task to be executed or some code to resume
+                Runnable work;
+                try {
+                    work = ready.take();
+                } catch (InterruptedException e) {
+                    //ignored
+                    continue;
                 }
 
-                if (cur.task == null) {
+                if (work == stopSignal) {
                     if (LOGGER.isDebugEnabled())
                         LOGGER.debug("Runner ["+name+"] stopped");
                     return;  //received the signal to stop
                 }
+                work.run();
+            }
+        }
+    }
+
+    /**
+     * The thread starting a thread for each task, when {@link #taskThreads}
+     * is used.
+     */
+    private class Dispatcher implements Runnable {
+        public void run() {
+            if (LOGGER.isDebugEnabled())
+                LOGGER.debug("Dispatcher ["+name+"] started");
+            while (true) {
+                final Runnable work;
+                try {
+                    work = ready.take();
+                } catch (InterruptedException e) {
+                    //ignored
+                    continue;
+                }
 
-                //runs it and schedule its result
-                cur.setResult(cur.task.process());
-                addOutput(cur);
+                if (work == stopSignal) {
+                    if (LOGGER.isDebugEnabled())
+                        LOGGER.debug("Dispatcher ["+name+"] stopped");
+                    return;
+                }
+                taskPermits.acquireUninterruptibly();
+                taskThreads.newThread(new Runnable() {
+                    public void run() {
+                        try {
+                            work.run();
+                        } finally {
+                            taskPermits.release();
+                        }
+                    }
+                }).start();
             }
         }
     }
 
     /**
      * Internal structure which represents a task and it's related information.
-     * @param <RESULT>
      */
-    private static class InternalTask<RESULT> implements Comparable<InternalTask<RESULT>> {
+    private class InternalTask implements Continuation<RESULT> {
         private final Task<RESULT> task;
-        private final ResultCollector<RESULT> resultCollector;
+        private final CollectorState state;
         private final long sequenceNumber;
         private RESULT result = null;
 
-        public InternalTask(Task<RESULT> task, ResultCollector<RESULT> resultCollector, long sequenceNumber) {
+        public InternalTask(Task<RESULT> task, CollectorState state, long sequenceNumber) {
             this.task = task;
-            this.resultCollector = resultCollector;
+            this.state = state;
             this.sequenceNumber = sequenceNumber;
         }
 
+        /**
+         * Runs the task. The synchronous ones have their result scheduled
+         * right away.
+         */
+        public void start() {
+            if (task instanceof AsyncTask) {
+                ((AsyncTask<RESULT>) task).start(this);
+            } else {
+                done(task.process());
+            }
+        }
+
+        public void resume(Runnable code) {
+            ready.add(code);
+        }
+
+        public void done(RESULT result) {
+            setResult(result);
+            state.addOutput(this);
+        }
+
         public void setResult(RESULT result) {
             if (this.result != null) {
                 throw new RuntimeException("Synchronization bug");
             }
             this.result = result;
         }
-
-        public int compareTo(InternalTask<RESULT> o) {
-            return (sequenceNumber < o.sequenceNumber ? -1 : (sequenceNumber == o.sequenceNumber ? 0 : 1));
-        }
     }
 
     /**
@@ -223,6 +432,38 @@ public class OrderedResultsExecutor<RESULT> {
         RESULT process();
     }
 
+    /**
+     * A task that waits for I/O without blocking an executor thread. Its
+     * {@link #process()} method is not called by the executor.
+     */
+    public static interface AsyncTask<RESULT> extends Task<RESULT> {
+        /**
+         * Called in an executor thread to start the processing. Must not
+         * block, and must end by calling once
+         * {@link org.pvalsecc.concurrent.OrderedResultsExecutor.Continuation#done(Object)},
+         * from any thread.
+         */
+        void start(Continuation<RESULT> continuation);
+    }
+
+    /**
+     * Given to the {@link org.pvalsecc.concurrent.OrderedResultsExecutor.AsyncTask}s
+     * to continue their work.
+     */
+    public static interface Continuation<RESULT> {
+        /**
+         * Run the given code in one of the executor threads. To be used for
+         * the CPU bound processing that follows the I/O (typically called
+         * from the I/O thread).
+         */
+        void resume(Runnable code);
+
+        /**
+         * Give the result of the task.
+         */
+        void done(RESULT result);
+    }
+
     /**
      * Definition of a result collector.
      */
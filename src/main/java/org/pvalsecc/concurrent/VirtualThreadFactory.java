@@ -0,0 +1,78 @@
+package org.pvalsecc.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Creates virtual threads when the JVM supports them (Java 21+), so that
+ * having one thread per task is cheap. They are created by reflection since
+ * the code is compiled for older JVMs.
+ * <p/>
+ * On older JVMs, daemon threads with a small stack are created instead.
+ */
+public class VirtualThreadFactory implements ThreadFactory {
+    public static Log LOGGER = LogFactory.getLog(VirtualThreadFactory.class);
+
+    /**
+     * Stack size of the fallback threads.
+     */
+    private static final long STACK_SIZE = 256 * 1024;
+
+    /**
+     * Thread.ofVirtual(), null if not supported.
+     */
+    private static final Method OF_VIRTUAL;
+
+    /**
+     * Thread.Builder.unstarted(Runnable)
+     */
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            ofVirtual = null;
+            unstarted = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private final String name;
+    private final AtomicInteger counter = new AtomicInteger(0);
+
+    public VirtualThreadFactory(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return True if the threads created are really virtual threads.
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    public Thread newThread(Runnable runnable) {
+        final String threadName = name + "-" + counter.incrementAndGet();
+        if (OF_VIRTUAL != null) {
+            try {
+                final Thread thread = (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), runnable);
+                thread.setName(threadName);
+                return thread;
+            } catch (Exception e) {
+                LOGGER.warn("Cannot create a virtual thread, using a normal one", e);
+            }
+        }
+        final Thread thread = new Thread(null, runnable, threadName, STACK_SIZE);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
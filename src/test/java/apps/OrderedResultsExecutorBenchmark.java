@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package apps;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.pvalsecc.concurrent.OrderedResultsExecutor;
+
+/**
+ * Measures the throughput of {@link OrderedResultsExecutor} with tiny tasks
+ * and compares it with the one of {@link BaselineOrderedResultsExecutor} (the
+ * implementation before the per collector queues) under the same load.
+ * <p/>
+ * Usage: OrderedResultsExecutorBenchmark [nbThreads [nbTasks [nbCollectors]]]
+ * (defaults to 16 threads, 1000 tasks per collector and 1, 4 and 16 collectors).
+ */
+public class OrderedResultsExecutorBenchmark {
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int ROUNDS = 50;
+
+    public static void main(String[] args) throws InterruptedException {
+        final int nbThreads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int nbTasks = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        final int[] nbCollectors = args.length > 2 ? new int[]{Integer.parseInt(args[2])} : new int[]{1, 4, 16};
+
+        final OrderedResultsExecutor<Integer> executor = new OrderedResultsExecutor<Integer>(nbThreads, "bench");
+        final BaselineOrderedResultsExecutor<Integer> baseline = new BaselineOrderedResultsExecutor<Integer>(nbThreads, "baseline");
+        final Submitter current = new Submitter() {
+            public void addTask(OrderedResultsExecutor.Task<Integer> task, Collector collector) {
+                executor.addTask(task, collector);
+            }
+        };
+        final Submitter old = new Submitter() {
+            public void addTask(OrderedResultsExecutor.Task<Integer> task, Collector collector) {
+                baseline.addTask(task, collector);
+            }
+        };
+        executor.start();
+        baseline.start();
+        try {
+            for (int collectors : nbCollectors) {
+                final double oldRate = measure(old, collectors, nbTasks);
+                final double currentRate = measure(current, collectors, nbTasks);
+                System.out.println(String.format("threads=%d collectors=%d tasks/collector=%d: baseline %.0f tasks/s, current %.0f tasks/s (x%.2f)",
+                        nbThreads, collectors, nbTasks, oldRate, currentRate, currentRate / oldRate));
+            }
+        } finally {
+            executor.stop();
+            baseline.stop();
+        }
+    }
+
+    /**
+     * @return The number of tasks per second.
+     */
+    private static double measure(Submitter executor, int collectors, int nbTasks) throws InterruptedException {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(executor, collectors, nbTasks);
+        }
+        long total = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            total += round(executor, collectors, nbTasks);
+        }
+        return (double) ROUNDS * collectors * nbTasks / (total / 1e9);
+    }
+
+    /**
+     * @return The time taken in ns.
+     */
+    private static long round(final Submitter executor, int nbCollectors, final int nbTasks)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(nbCollectors);
+        final Thread[] producers = new Thread[nbCollectors];
+        final long start = System.nanoTime();
+        for (int i = 0; i < nbCollectors; i++) {
+            final Collector collector = new Collector(nbTasks, done);
+            producers[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < nbTasks; j++) {
+                        final int value = j;
+                        executor.addTask(new OrderedResultsExecutor.Task<Integer>() {
+                            public Integer process() {
+                                return value;
+                            }
+                        }, collector);
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        done.await();
+        final long time = System.nanoTime() - start;
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        return time;
+    }
+
+    /**
+     * Gives the tasks to one of the implementations.
+     */
+    private static interface Submitter {
+        void addTask(OrderedResultsExecutor.Task<Integer> task, Collector collector);
+    }
+
+    private static class Collector implements OrderedResultsExecutor.ResultCollector<Integer> {
+        private final int nbTasks;
+        private final CountDownLatch done;
+        private int expected = 0;
+
+        public Collector(int nbTasks, CountDownLatch done) {
+            this.nbTasks = nbTasks;
+            this.done = done;
+        }
+
+        public void handle(Integer result) {
+            if (result != expected) {
+                throw new RuntimeException("Out of order result: " + result + " instead of " + expected);
+            }
+            if (++expected == nbTasks) {
+                done.countDown();
+            }
+        }
+    }
+}
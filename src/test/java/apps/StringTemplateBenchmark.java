@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013  Camptocamp
+ *
+ * This file is part of MapFish Print
+ *
+ * MapFish Print is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MapFish Print is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MapFish Print.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package apps;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mapfish.print.StringTemplate;
+import org.mapfish.print.utils.PJsonObject;
+
+/**
+ * Measures the evaluation of the strings of a typical layout (margins,
+ * sizes, URLs and texts), parsed for each evaluation or parsed once with
+ * {@link StringTemplate#get}.
+ * <p/>
+ * Usage: StringTemplateBenchmark [nbPages] (defaults to 100000).
+ */
+public class StringTemplateBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    private static final String[] LAYOUT = {
+            "40", "40", "20", "20", "A4", "440", "483", "0", "${mapTitle}", "${comment}",
+            "Scale: 1:${scaleTxt}", "${configDir}/logo.png", "Page ${pageNum}", "${format %d rotation}",
+            "http://example.com/legend?layer=${layer}&style=${style}", "${now dd.MM.yyyy}"
+    };
+
+    public static void main(String[] args) throws JSONException {
+        final int nbPages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final PJsonObject params = new PJsonObject(new JSONObject("{mapTitle: 'Title', comment: 'Comment', " +
+                "scaleTxt: '25000', layer: 'roads', style: 'default', pageNum: '1', rotation: '0', " +
+                "configDir: '/etc/print', 'format %d rotation': '0', 'now dd.MM.yyyy': 'today'}"), "spec");
+
+        for (boolean cached : new boolean[]{false, true}) {
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                round(params, nbPages, cached);
+            }
+            long total = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                total += round(params, nbPages, cached);
+            }
+            System.out.println(String.format("%s: %.1f ns/string", cached ? "parsed once" : "parsed each time",
+                    (double) total / ROUNDS / nbPages / LAYOUT.length));
+        }
+    }
+
+    /**
+     * @return The time taken in ns.
+     */
+    private static long round(PJsonObject params, int nbPages, boolean cached) {
+        int length = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < nbPages; i++) {
+            for (String value : LAYOUT) {
+                final StringTemplate template = cached ? StringTemplate.get(value) : new StringTemplate(value);
+                length += template.evaluate(null, params).length();
+            }
+        }
+        final long time = System.nanoTime() - start;
+        if (length == 0) {
+            throw new RuntimeException("Nothing evaluated");
+        }
+        return time;
+    }
+}
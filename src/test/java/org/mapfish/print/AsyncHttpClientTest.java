@@ -0,0 +1,234 @@
+package org.mapfish.print;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncHttpClientTest {
+    private static final int DELAY = 300;
+
+    private ServerSocket serverSocket;
+    private final AtomicInteger running = new AtomicInteger(0);
+    private final AtomicInteger maxRunning = new AtomicInteger(0);
+    private AsyncHttpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0);
+        final Thread acceptor = new Thread("slowHttpd") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = serverSocket.accept();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                answer(socket);
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                    //closed
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        client = new AsyncHttpClient(100, 100, 5000, 5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.stop();
+        serverSocket.close();
+    }
+
+    /**
+     * A slow server answering "/len" with a Content-Length, "/short" with a
+     * body shorter than its Content-Length, "/close" with the end of the
+     * connection as the end of the body and 404 for the rest.
+     */
+    private void answer(Socket socket) {
+        final int nb = running.incrementAndGet();
+        synchronized (maxRunning) {
+            maxRunning.set(Math.max(maxRunning.get(), nb));
+        }
+        boolean counted = true;
+        try {
+            final BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            final String path = input.readLine().split(" ")[1];
+            String line;
+            while ((line = input.readLine()) != null && line.length() > 0) {
+                //skip the headers
+            }
+            Thread.sleep(DELAY);
+            //the client may start its next request as soon as it has the answer
+            running.decrementAndGet();
+            counted = false;
+            final OutputStream output = socket.getOutputStream();
+            if (path.equals("/len")) {
+                output.write("HTTP/1.0 200 OK\r\nContent-Type: image/png\r\nContent-Length: 5\r\n\r\nhello".getBytes("ISO-8859-1"));
+            } else if (path.equals("/short")) {
+                output.write("HTTP/1.0 200 OK\r\nContent-Type: image/png\r\nContent-Length: 10\r\n\r\nabc".getBytes("ISO-8859-1"));
+            } else if (path.equals("/close")) {
+                output.write("HTTP/1.0 200 OK\r\nContent-Type: image/png\r\n\r\nbye".getBytes("ISO-8859-1"));
+            } else {
+                output.write("HTTP/1.0 404 Not found\r\n\r\n".getBytes("ISO-8859-1"));
+            }
+            output.flush();
+            socket.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (counted) {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void testManyInFlight() throws Exception {
+        final int nbRequests = 50;
+        final Listener listener = new Listener(nbRequests);
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < nbRequests; i++) {
+            client.execute(new URI("http://localhost:" + serverSocket.getLocalPort() + (i % 2 == 0 ? "/len" : "/close")),
+                    Collections.<String, String>emptyMap(), listener);
+        }
+        assertTrue(listener.done.await(30, TimeUnit.SECONDS));
+        final long duration = System.currentTimeMillis() - start;
+
+        assertEquals(0, listener.nbErrors.get());
+        assertEquals(nbRequests / 2, listener.count("200 hello"));
+        assertEquals(nbRequests / 2, listener.count("200 bye"));
+        //done in parallel, with one client thread
+        assertTrue("max in parallel: " + maxRunning.get(), maxRunning.get() > 10);
+        assertTrue("took " + duration + "ms", duration < nbRequests * DELAY / 2);
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        final Listener listener = new Listener(2);
+        client.execute(new URI("http://localhost:" + serverSocket.getLocalPort() + "/unknown"),
+                Collections.<String, String>emptyMap(), listener);
+
+        final ServerSocket closed = new ServerSocket(0);
+        closed.close();
+        client.execute(new URI("http://localhost:" + closed.getLocalPort() + "/len"),
+                Collections.<String, String>emptyMap(), listener);
+
+        assertTrue(listener.done.await(30, TimeUnit.SECONDS));
+        assertEquals(1, listener.count("404 "));
+        assertEquals(1, listener.nbErrors.get());
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        final Listener listener = new Listener(1);
+        client.execute(new URI("http://localhost:" + serverSocket.getLocalPort() + "/short"),
+                Collections.<String, String>emptyMap(), listener);
+        assertTrue(listener.done.await(30, TimeUnit.SECONDS));
+        assertEquals(1, listener.nbErrors.get());
+        assertEquals(0, listener.count("200 abc"));
+    }
+
+    @Test
+    public void testUnknownHost() throws Exception {
+        final Listener failing = new Listener(1);
+        client.execute(new URI("http://no-such-host.invalid/len"), Collections.<String, String>emptyMap(), failing);
+        assertTrue(failing.done.await(30, TimeUnit.SECONDS));
+        assertEquals(1, failing.nbErrors.get());
+
+        //the client is still usable
+        final Listener listener = new Listener(1);
+        client.execute(new URI("http://localhost:" + serverSocket.getLocalPort() + "/len"),
+                Collections.<String, String>emptyMap(), listener);
+        assertTrue(listener.done.await(30, TimeUnit.SECONDS));
+        assertEquals(1, listener.count("200 hello"));
+    }
+
+    @Test
+    public void testPerHostLimit() throws Exception {
+        client.stop();
+        client = new AsyncHttpClient(100, 2, 5000, 5000);
+        final Listener listener = new Listener(6);
+        for (int i = 0; i < 6; i++) {
+            client.execute(new URI("http://localhost:" + serverSocket.getLocalPort() + "/len"),
+                    Collections.<String, String>emptyMap(), listener);
+        }
+        assertTrue(listener.done.await(30, TimeUnit.SECONDS));
+        assertEquals(6, listener.count("200 hello"));
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        client.stop();
+        client = new AsyncHttpClient(100, 1, 5000, 5000);
+        final Listener listener = new Listener(2);
+        final long start = System.currentTimeMillis();
+        //the first one is running, the second one is waiting for a connection
+        final AsyncHttpClient.Request running = client.execute(new URI("http://localhost:" + serverSocket.getLocalPort() + "/len"),
+                Collections.<String, String>emptyMap(), listener);
+        final AsyncHttpClient.Request waiting = client.execute(new URI("http://localhost:" + serverSocket.getLocalPort() + "/len"),
+                Collections.<String, String>emptyMap(), listener);
+        running.abort();
+        waiting.abort();
+
+        assertTrue(listener.done.await(30, TimeUnit.SECONDS));
+        final long duration = System.currentTimeMillis() - start;
+        assertEquals(2, listener.nbErrors.get());
+        assertTrue("took " + duration + "ms", duration < DELAY);
+    }
+
+    private static class Listener implements AsyncHttpClient.Listener {
+        private final CountDownLatch done;
+        private final Map<String, AtomicInteger> results = new ConcurrentHashMap<String, AtomicInteger>();
+        private final AtomicInteger nbErrors = new AtomicInteger(0);
+
+        public Listener(int nbRequests) {
+            done = new CountDownLatch(nbRequests);
+        }
+
+        public void completed(int statusCode, String statusText, Map<String, String> headers, byte[] body) {
+            assertNotNull(headers);
+            final String key = statusCode + " " + new String(body);
+            synchronized (results) {
+                if (!results.containsKey(key)) {
+                    results.put(key, new AtomicInteger(0));
+                }
+            }
+            results.get(key).incrementAndGet();
+            done.countDown();
+        }
+
+        public void failed(IOException e) {
+            nbErrors.incrementAndGet();
+            done.countDown();
+        }
+
+        public int count(String key) {
+            final AtomicInteger nb = results.get(key);
+            return nb == null ? 0 : nb.get();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.mapfish.print;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class HostLimiterTest {
+
+    @Test
+    public void testLimit() throws Exception {
+        final HostLimiter limiter = new HostLimiter(2);
+        final AtomicInteger running = new AtomicInteger(0);
+        final AtomicInteger maxRunning = new AtomicInteger(0);
+        final AtomicInteger maxOther = new AtomicInteger(0);
+        final URI uri = new URI("http://server.example.com/wms?LAYERS=a");
+        final URI other = new URI("http://other.example.com/tiles/1/2/3.png");
+        final AtomicInteger runningOther = new AtomicInteger(0);
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 10; i++) {
+            final boolean first = i % 2 == 0;
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    final URI target = first ? uri : other;
+                    final AtomicInteger counter = first ? running : runningOther;
+                    final AtomicInteger max = first ? maxRunning : maxOther;
+                    try {
+                        limiter.acquire(target);
+                        try {
+                            final int nb = counter.incrementAndGet();
+                            synchronized (max) {
+                                max.set(Math.max(max.get(), nb));
+                            }
+                            Thread.sleep(50);
+                            counter.decrementAndGet();
+                        } finally {
+                            limiter.release(target, 50, false);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(2, maxRunning.get());
+        assertEquals(2, maxOther.get());
+    }
+
+    @Test
+    public void testPerHost() throws Exception {
+        final Map<String, Integer> hosts = new HashMap<String, Integer>();
+        hosts.put("cdn.example.com", 20);
+        final HostLimiter limiter = new HostLimiter(2, hosts, false, 1, 0L);
+        assertEquals(20, limiter.getLimit(new URI("http://CDN.example.com/tile.png")));
+        assertEquals(2, limiter.getLimit(new URI("http://wms.example.com/wms")));
+    }
+
+    @Test
+    public void testAdaptive() throws Exception {
+        final HostLimiter limiter = new HostLimiter(8, Collections.<String, Integer>emptyMap(), true, 1, 100L);
+        final URI uri = new URI("http://wms.example.com/wms");
+
+        // a server error halves the limit
+        limiter.acquire(uri);
+        limiter.release(uri, 10, true);
+        assertEquals(4, limiter.getLimit(uri));
+
+        // the requests sent with the old limit don't reduce it again right away
+        limiter.acquire(uri);
+        limiter.release(uri, 500, false);
+        assertEquals(4, limiter.getLimit(uri));
+
+        // +1 every "limit" fast responses, up to the max
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire(uri);
+            limiter.release(uri, 10, false);
+        }
+        assertEquals(5, limiter.getLimit(uri));
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(uri);
+            limiter.release(uri, 10, false);
+        }
+        assertEquals(8, limiter.getLimit(uri));
+    }
+
+    @Test
+    public void testLatencyPercentile() throws Exception {
+        final HostLimiter limiter = new HostLimiter(2);
+        final URI uri = new URI("http://wms.example.com/wms");
+        for (int i = 1; i <= 19; i++) {
+            limiter.acquire(uri);
+            limiter.release(uri, i * 10, false);
+        }
+        // not enough samples
+        assertEquals(-1L, limiter.getLatencyPercentile(uri, 95));
+
+        limiter.acquire(uri);
+        limiter.release(uri, 200, false);
+        // the failures don't count
+        limiter.acquire(uri);
+        limiter.release(uri, 100000, true);
+        assertEquals(200L, limiter.getLatencyPercentile(uri, 95));
+        assertEquals(110L, limiter.getLatencyPercentile(uri, 50));
+    }
+
+    @Test
+    public void testRecord() throws Exception {
+        final HostLimiter limiter = new HostLimiter(1);
+        final URI uri = new URI("http://wms.example.com/wms");
+        for (int i = 1; i <= 20; i++) {
+            limiter.record(uri, i * 10, false);
+        }
+        assertEquals(200L, limiter.getLatencyPercentile(uri, 95));
+
+        // doesn't take or free a slot
+        limiter.acquire(uri);
+        limiter.record(uri, 10, false);
+        final Thread waiting = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire(uri);
+                } catch (Exception e) {
+                    // interrupted
+                }
+            }
+        };
+        waiting.start();
+        waiting.join(200);
+        assertTrue(waiting.isAlive());
+        limiter.release(uri, 10, false);
+        waiting.join(5000);
+        assertFalse(waiting.isAlive());
+    }
+}
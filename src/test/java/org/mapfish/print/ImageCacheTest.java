@@ -0,0 +1,86 @@
+package org.mapfish.print;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mapfish.print.config.Config;
+
+public class ImageCacheTest {
+
+    @Test
+    public void testEviction() {
+        ImageCache cache = new ImageCache(100);
+        cache.put("a", new ImageCache.Entry(new byte[40], null, null, 60000));
+        cache.put("b", new ImageCache.Entry(new byte[40], null, null, 60000));
+        assertNotNull(cache.get("a"));  // b becomes the least recently used
+        cache.put("c", new ImageCache.Entry(new byte[40], null, null, 60000));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(80L, cache.getTotalSize());
+
+        cache.put("big", new ImageCache.Entry(new byte[101], null, null, 60000));
+        assertNull("bigger than the cache", cache.get("big"));
+
+        cache.setMaxSize(50);
+        assertEquals(40L, cache.getTotalSize());
+    }
+
+    @Test
+    public void testRequestMaxSize() {
+        ImageCache cache = new ImageCache(100);
+        cache.put("a", new ImageCache.Entry(new byte[40], null, null, 60000));
+        cache.put("b", new ImageCache.Entry(new byte[40], null, null, 60000));
+        cache.requestMaxSize(200);
+        cache.requestMaxSize(50);
+        assertEquals("the biggest size asked is kept", 80L, cache.getTotalSize());
+    }
+
+    @Test
+    public void testFreshness() throws Exception {
+        ImageCache.Entry entry = new ImageCache.Entry(new byte[1], "\"abc\"", null, 0);
+        Thread.sleep(2);
+        assertFalse(entry.isFresh());
+        assertTrue(entry.hasValidators());
+        entry.refresh(60000);
+        assertTrue(entry.isFresh());
+
+        assertFalse(new ImageCache.Entry(new byte[1], null, null, 60000).hasValidators());
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        final URI uri = new URI("http://example.com/legend.png");
+        Map<String, String> headers = new HashMap<String, String>();
+        assertEquals(ImageCache.getKey(null, uri, null), ImageCache.getKey(null, uri, headers));
+        headers.put("Cookie", "session=1");
+        assertFalse(ImageCache.getKey(null, uri, null).equals(ImageCache.getKey(null, uri, headers)));
+    }
+
+    @Test
+    public void testKeyScope() throws Exception {
+        final URI uri = new URI("http://example.com/legend.png");
+        final Config plain1 = new Config();
+        final Config plain2 = new Config();
+        assertEquals(ImageCache.getKey(plain1.getAccessScope(uri), uri, null),
+                ImageCache.getKey(plain2.getAccessScope(uri), uri, null));
+
+        final Config forwarding = new Config();
+        final HashMap<String, Object> localHostForward = new HashMap<String, Object>();
+        localHostForward.put("from", Arrays.asList("example.com"));
+        forwarding.setLocalHostForward(localHostForward);
+        assertFalse("not shared with the other configurations",
+                ImageCache.getKey(plain1.getAccessScope(uri), uri, null).equals(
+                        ImageCache.getKey(forwarding.getAccessScope(uri), uri, null)));
+    }
+}
@@ -0,0 +1,279 @@
+package org.mapfish.print;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.config.AsyncHttpConfig;
+import org.mapfish.print.config.Config;
+import org.mapfish.print.config.TileRequestsConfig;
+
+public class ImageFetcherTest {
+    private static final int PORT = 8182;
+
+    private final AtomicInteger nbRequests = new AtomicInteger(0);
+    private FakeHttpd httpd;
+    private Config config;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, FakeHttpd.HttpAnswerer> routings = new HashMap<String, FakeHttpd.HttpAnswerer>();
+        routings.put("/slow", new FakeHttpd.HttpAnswerer(200, "OK", "image/png", "fake") {
+            @Override
+            protected boolean answer(PrintStream output) {
+                nbRequests.incrementAndGet();
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+                return super.answer(output);
+            }
+        });
+        routings.put("/flaky", new FakeHttpd.HttpAnswerer(200, "OK", "image/png", "fake") {
+            @Override
+            protected boolean answer(PrintStream output) {
+                if (nbRequests.incrementAndGet() <= 2) {
+                    output.println("HTTP/1.0 503 Service Unavailable");
+                    output.println("Content-Type: text/plain");
+                    output.println("");
+                    output.println("busy");
+                    return false;
+                }
+                return super.answer(output);
+            }
+        });
+        routings.put("/moved", new FakeHttpd.HttpAnswerer(302, "Found", "text/plain", "moved") {
+            @Override
+            protected boolean answer(PrintStream output) {
+                output.println("HTTP/1.0 302 Found");
+                output.println("Location: http://localhost:" + PORT + "/slow");
+                output.println("Content-Type: text/plain");
+                output.println("");
+                output.println("moved");
+                return false;
+            }
+        });
+        httpd = new FakeHttpd(PORT, routings);
+        httpd.start();
+        config = new Config();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpd.shutdown();
+        config.close();
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        final RenderingContext context = mock(RenderingContext.class);
+        when(context.getConfig()).thenReturn(config);
+        when(context.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+        final URI uri = new URI("http://localhost:" + PORT + "/slow");
+
+        final List<ImageFetcher.Response> responses = Collections.synchronizedList(new ArrayList<ImageFetcher.Response>());
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 5; i++) {
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        responses.add(ImageFetcher.fetch(context, uri, null));
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(5, responses.size());
+        assertEquals(1, nbRequests.get());
+        for (ImageFetcher.Response response : responses) {
+            assertEquals(200, response.getStatusCode());
+            assertEquals("image/png", response.getContentType());
+            assertNull(response.getEtag());
+        }
+
+        // not in flight anymore => new request
+        ImageFetcher.fetch(context, uri, null);
+        assertEquals(2, nbRequests.get());
+    }
+
+    @Test
+    public void testNoCoalescingBetweenConfigs() throws Exception {
+        final Config otherConfig = new Config();
+        final URI uri = new URI("http://localhost:" + PORT + "/slow");
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (final Config cur : new Config[]{config, otherConfig}) {
+            final RenderingContext context = mock(RenderingContext.class);
+            when(context.getConfig()).thenReturn(cur);
+            when(context.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ImageFetcher.fetch(context, uri, null);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        otherConfig.close();
+
+        // a config doesn't get what was fetched with the settings of another one
+        assertEquals(2, nbRequests.get());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        config.setAsyncHttp(new AsyncHttpConfig());
+        final RenderingContext context = mock(RenderingContext.class);
+        when(context.getConfig()).thenReturn(config);
+        when(context.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+        final URI uri = new URI("http://localhost:" + PORT + "/slow");
+
+        final CountDownLatch fetched = new CountDownLatch(1);
+        final ImageFetcher.Prefetch prefetch = ImageFetcher.prefetch(context, uri, new ImageFetcher.PrefetchListener() {
+            public void fetched(ImageFetcher.Prefetch prefetch) {
+                fetched.countDown();
+            }
+        });
+        assertNotNull(prefetch);
+        assertTrue(fetched.await(10, TimeUnit.SECONDS));
+        assertEquals(1, nbRequests.get());
+
+        // the prefetched response is used until released
+        final ImageFetcher.Response response = ImageFetcher.fetch(context, uri, null);
+        assertEquals(200, response.getStatusCode());
+        assertEquals("image/png", response.getContentType());
+        assertEquals(1, nbRequests.get());
+
+        prefetch.release();
+        ImageFetcher.fetch(context, uri, null);
+        assertEquals(2, nbRequests.get());
+
+        // not supported by the asynchronous client
+        assertNull(ImageFetcher.prefetch(context, new URI("https://localhost:" + PORT + "/slow"), null));
+    }
+
+    @Test
+    public void testPrefetchRedirected() throws Exception {
+        config.setAsyncHttp(new AsyncHttpConfig());
+        final RenderingContext context = mock(RenderingContext.class);
+        when(context.getConfig()).thenReturn(config);
+        when(context.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+        final URI uri = new URI("http://localhost:" + PORT + "/moved");
+
+        final CountDownLatch fetched = new CountDownLatch(1);
+        final ImageFetcher.Prefetch prefetch = ImageFetcher.prefetch(context, uri, new ImageFetcher.PrefetchListener() {
+            public void fetched(ImageFetcher.Prefetch prefetch) {
+                fetched.countDown();
+            }
+        });
+        assertNotNull(prefetch);
+        assertTrue(fetched.await(10, TimeUnit.SECONDS));
+        assertEquals(0, nbRequests.get());
+
+        // the redirection is followed by the blocking client
+        final ImageFetcher.Response response = ImageFetcher.fetch(context, uri, null);
+        assertEquals(200, response.getStatusCode());
+        assertEquals("image/png", response.getContentType());
+        assertEquals(1, nbRequests.get());
+        prefetch.release();
+    }
+
+    @Test
+    public void testRetries() throws Exception {
+        final TileRequestsConfig policy = new TileRequestsConfig();
+        policy.setRetries(2);
+        policy.setRetryDelay(10);
+        config.setTileRequests(policy);
+        final RenderingContext context = mock(RenderingContext.class);
+        when(context.getConfig()).thenReturn(config);
+        when(context.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+
+        final ImageFetcher.Response response = ImageFetcher.fetch(context, new URI("http://localhost:" + PORT + "/flaky"), null);
+        assertEquals(200, response.getStatusCode());
+        assertEquals(3, nbRequests.get());
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        final TileRequestsConfig policy = new TileRequestsConfig();
+        policy.setRetries(5);
+        config.setTileRequests(policy);
+        final RenderingContext context = mock(RenderingContext.class);
+        when(context.getConfig()).thenReturn(config);
+        when(context.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+        when(context.getDeadline()).thenReturn(System.currentTimeMillis() + 200);
+
+        final long start = System.currentTimeMillis();
+        try {
+            ImageFetcher.fetch(context, new URI("http://localhost:" + PORT + "/slow"), null);
+            fail("the deadline should have been exceeded");
+        } catch (DeadlineExceededException e) {
+            // expected
+        }
+        final long duration = System.currentTimeMillis() - start;
+        assertTrue("took " + duration + "ms", duration < 450);
+    }
+
+    @Test
+    public void testDeadlineOfAnotherPrint() throws Exception {
+        final URI uri = new URI("http://localhost:" + PORT + "/slow");
+        final RenderingContext hurried = mock(RenderingContext.class);
+        when(hurried.getConfig()).thenReturn(config);
+        when(hurried.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+        when(hurried.getDeadline()).thenReturn(System.currentTimeMillis() + 200);
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ImageFetcher.fetch(hurried, uri, null);
+                } catch (Exception e) {
+                    // expected
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(50);
+
+        // waits for the same request, but must not fail with the deadline of the other print
+        final RenderingContext patient = mock(RenderingContext.class);
+        when(patient.getConfig()).thenReturn(config);
+        when(patient.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+        final ImageFetcher.Response response = ImageFetcher.fetch(patient, uri, null);
+        thread.join();
+        assertEquals(200, response.getStatusCode());
+    }
+}
@@ -0,0 +1,64 @@
+package org.mapfish.print;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+public class ImageResamplerTest {
+
+    @Test
+    public void testNotTooBig() throws Exception {
+        BufferedImage image = createImage(100, 50);
+        assertSame(image, ImageResampler.resample(image, 100, 50, ImageResampler.Quality.BILINEAR));
+        assertSame(image, ImageResampler.resample(image, 0, 0, ImageResampler.Quality.BILINEAR));
+
+        byte[] data = encode(image, "png");
+        assertSame(data, ImageResampler.resample(data, 200, 200, ImageResampler.Quality.AREA));
+    }
+
+    @Test
+    public void testDownsample() throws Exception {
+        BufferedImage image = createImage(400, 200);
+        for (ImageResampler.Quality quality : ImageResampler.Quality.values()) {
+            BufferedImage result = ImageResampler.resample(image, 100, 100, quality);
+            assertEquals(quality.name(), 100, result.getWidth());
+            assertEquals(quality.name(), 50, result.getHeight());
+            assertEquals(quality.name(), Color.RED.getRGB(), result.getRGB(10, 25));
+        }
+    }
+
+    @Test
+    public void testDownsampleEncoded() throws Exception {
+        BufferedImage image = createImage(400, 200);
+        for (String format : new String[]{"png", "jpeg"}) {
+            byte[] data = ImageResampler.resample(encode(image, format), 200, 200, ImageResampler.Quality.AREA);
+            BufferedImage result = ImageIO.read(new ByteArrayInputStream(data));
+            assertEquals(format, 200, result.getWidth());
+            assertEquals(format, 100, result.getHeight());
+        }
+    }
+
+    private BufferedImage createImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return image;
+    }
+
+    private byte[] encode(BufferedImage image, String format) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,50 @@
+package org.mapfish.print;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.mapfish.print.utils.PJsonObject;
+
+public class StringTemplateTest {
+
+    @Test
+    public void testConstant() throws Exception {
+        StringTemplate template = new StringTemplate("40");
+        assertTrue(template.isConstant());
+        assertEquals("40", template.evaluate(null, createParams()));
+        assertSame(template.evaluate(null, null), template.evaluate(null, null));
+        assertSame(StringTemplate.get("40"), StringTemplate.get("40"));
+    }
+
+    @Test
+    public void testVariables() throws Exception {
+        StringTemplate template = new StringTemplate("${title} - ${count}${count}.");
+        assertFalse(template.isConstant());
+        assertEquals("Test - 77.", template.evaluate(null, createParams()));
+        assertEquals("Test", new StringTemplate("${title}").evaluate(null, createParams()));
+        assertEquals("Test", PDFUtils.evalString(null, createParams(), "${title}"));
+    }
+
+    @Test
+    public void testContext() throws Exception {
+        RenderingContext context = mock(RenderingContext.class);
+        when(context.getGlobalParams()).thenReturn(new PJsonObject(new JSONObject("{title: 'Global'}"), "global"));
+        when(context.getConfigDir()).thenReturn("c:\\config");
+
+        assertEquals("Global 007 c:/config", new StringTemplate("${title} ${format %03d count} ${configDir}").evaluate(context, createParams()));
+
+        new StringTemplate("${now yyyy}").evaluate(context, createParams());
+        verify(context).setTimeDependent();
+    }
+
+    private PJsonObject createParams() throws Exception {
+        return new PJsonObject(new JSONObject("{title: 'Test', count: 7}"), "spec");
+    }
+}
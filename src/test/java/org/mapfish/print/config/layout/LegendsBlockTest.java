@@ -1,11 +1,13 @@
 package org.mapfish.print.config.layout;
 
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 import com.lowagie.text.DocumentException;
 import com.lowagie.text.Element;
 import com.lowagie.text.pdf.PdfContentByte;
+import com.lowagie.text.pdf.PdfPTable;
 import com.lowagie.text.pdf.PdfTemplate;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -20,7 +22,9 @@ import org.mapfish.print.config.Config;
 import org.mapfish.print.utils.PJsonObject;
 
 import java.io.IOException;
+import java.net.URI;
 import java.net.URL;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -131,4 +135,70 @@ public class LegendsBlockTest {
         config.setBrokenUrlPlaceholder(placeholder.toExternalForm());
         legendBlock.render(params, target, context);
     }
+
+    @Test
+    public void testColumns() throws DocumentException, JSONException {
+        StringBuilder classes = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            classes.append(i > 0 ? "," : "").append("{\"name\": \"class ").append(i).append("\"}");
+        }
+        PJsonObject globalParams = new PJsonObject(new JSONObject("{\"legends\": [{\"name\": \"layer\", \"classes\": [" +
+                classes + "]}]}"), "global");
+
+        LegendsBlock legendBlock = new LegendsBlock();
+        legendBlock.setMaxColumns(10);
+        legendBlock.setMaxWidth(500);
+        legendBlock.setMaxHeight(100);
+
+        RenderingContext context = mock(RenderingContext.class);
+        when(context.getGlobalParams()).thenReturn(globalParams);
+        when(context.getConfig()).thenReturn(new Config());
+        when(context.getPdfLock()).thenReturn(new Object());
+
+        final PdfPTable[] result = new PdfPTable[1];
+        legendBlock.render(globalParams, new Block.PdfElement() {
+            public void add(Element element) throws DocumentException {
+                result[0] = (PdfPTable) element;
+            }
+        }, context);
+
+        //31 lines of about 15 points do not fit in one column of 100 points
+        final int nbColumns = result[0].getNumberOfColumns();
+        assertTrue("nbColumns=" + nbColumns, nbColumns >= 4 && nbColumns <= 10);
+        assertTrue(result[0].getTotalHeight() <= 100 + 20);
+    }
+
+    @Test
+    public void testPrefetchIcons() throws Exception {
+        PJsonObject globalParams = new PJsonObject(new JSONObject("{\"legends\": [{\"name\": \"layer\", \"classes\": [" +
+                "{\"name\": \"a\", \"icons\": [\"http://localhost:1/a.png\"]}," +
+                "{\"name\": \"b\", \"icon\": \"http://localhost:1/b.png\"}]}]}"), "global");
+
+        Config config = new Config();
+        config.setBrokenUrlPlaceholder(Constants.ImagePlaceHolderConstants.DEFAULT);
+        Map<URI, PdfTemplate> templateCache = Collections.synchronizedMap(new HashMap<URI, PdfTemplate>());
+        PdfContentByte dc = mock(PdfContentByte.class);
+        when(dc.createTemplate(anyFloat(), anyFloat())).thenReturn(mock(PdfTemplate.class));
+
+        RenderingContext context = mock(RenderingContext.class);
+        when(context.getGlobalParams()).thenReturn(globalParams);
+        when(context.getConfig()).thenReturn(config);
+        when(context.getPdfLock()).thenReturn(new Object());
+        when(context.getDirectContent()).thenReturn(dc);
+        when(context.getTemplateCache()).thenReturn(templateCache);
+
+        try {
+            new LegendsBlock().render(globalParams, new Block.PdfElement() {
+                public void add(Element element) throws DocumentException {
+                }
+            }, context);
+        } finally {
+            config.close();
+        }
+
+        //both icons were scheduled on the tile executor
+        verify(context, times(2)).getPriority();
+        assertTrue(templateCache.containsKey(new URI("http://localhost:1/a.png")));
+        assertTrue(templateCache.containsKey(new URI("http://localhost:1/b.png")));
+    }
 }
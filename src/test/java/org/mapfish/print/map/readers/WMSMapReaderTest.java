@@ -13,8 +13,12 @@ import java.util.Map;
 import org.json.JSONException;
 import org.mapfish.print.MapPrinter;
 import org.mapfish.print.MapTestBasic;
+import org.mapfish.print.RenderingContext;
 import org.mapfish.print.ShellMapPrinter;
 import org.mapfish.print.Transformer;
+import org.mapfish.print.config.RequestTilingConfig;
+import org.mapfish.print.map.ParallelMapTileLoader;
+import org.mapfish.print.map.renderers.BitmapTileRenderer;
 import org.mapfish.print.map.renderers.TestTileRenderer;
 import org.mapfish.print.utils.DistanceUnit;
 import org.mapfish.print.utils.PJsonObject;
@@ -146,6 +150,48 @@ public class WMSMapReaderTest extends MapTestBasic {
         assertEquals(2, cqlFilter.split(";").length);        
     }
 
+    public void testRequestTiling() throws Exception {
+        RequestTilingConfig requestTiling = new RequestTilingConfig();
+        requestTiling.setMaxSize(50);
+        requestTiling.setBuffer(5);
+        context.getConfig().setRequestTiling(requestTiling);
+        try {
+            WMSMapReader reader = getMapReader(new PJsonObject(wmsSpec4.getInternalObj(), ""));
+            //133x133 pixels
+            Transformer straight = new Transformer(0.0f, 0.0f, 100.0f, 100.0f, 1000, 96, DistanceUnit.M, 0.0, null, false);
+            CapturingRenderer renderer = new CapturingRenderer();
+            reader.renderTiles(renderer, straight, new URI("http://localhost/wms?"), null);
+
+            //4x4 tiles of 34 pixels (133/4, at most 50 - 2x5 of buffer) + 2x5 of buffer
+            assertEquals(16, renderer.uris.size());
+            assertEquals(4, renderer.nbTilesHorizontal);
+            assertEquals(34, renderer.bitmapTileW);
+            assertEquals(34, renderer.bitmapTileH);
+            assertEquals(5, renderer.buffer);
+            assertEquals("44", getQueryParam(renderer.uris.get(0).getRawQuery(), "WIDTH"));
+            assertEquals("44", getQueryParam(renderer.uris.get(15).getRawQuery(), "HEIGHT"));
+        } finally {
+            context.getConfig().setRequestTiling(null);
+        }
+    }
+
+    private static class CapturingRenderer extends BitmapTileRenderer {
+        List<URI> uris;
+        int nbTilesHorizontal;
+        long bitmapTileW;
+        long bitmapTileH;
+        int buffer;
+
+        @Override
+        public void render(Transformer transformer, List<URI> uris, ParallelMapTileLoader parallelMapTileLoader, RenderingContext context, float opacity, int nbTilesHorizontal, float offsetX, float offsetY, long bitmapTileW, long bitmapTileH, long cacheTtl, int buffer) {
+            this.uris = uris;
+            this.nbTilesHorizontal = nbTilesHorizontal;
+            this.bitmapTileW = bitmapTileW;
+            this.bitmapTileH = bitmapTileH;
+            this.buffer = buffer;
+        }
+    }
+
 	private String getQueryParam(String queryString, String key) {
 		for(String keyValuePair : queryString.split("&")) {
 			String[] keyValue = keyValuePair.split("=");
@@ -19,14 +19,28 @@
 
 package org.mapfish.print.map.readers;
 
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.URI;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.mapfish.print.FakeHttpd;
 import org.mapfish.print.PrintTestCase;
+import org.mapfish.print.RenderingContext;
+import org.mapfish.print.config.CapabilitiesCacheConfig;
+import org.mapfish.print.config.Config;
 import org.xml.sax.SAXException;
 
 public class WMSServerInfoTest extends PrintTestCase {
@@ -756,4 +770,128 @@ public class WMSServerInfoTest extends PrintTestCase {
         WMSServerInfo info = WMSServerInfo.parseCapabilities(stream);
         assertEquals(false, info.isTileCache());
     }
+
+    public void testCache() throws Exception {
+        final int port = 8183;
+        final AtomicInteger nbRequests = new AtomicInteger(0);
+        final URI wms = new URI("http://localhost:" + port + "/wms");
+        final URI broken = new URI("http://localhost:" + port + "/broken");
+        Map<String, FakeHttpd.HttpAnswerer> routings = new HashMap<String, FakeHttpd.HttpAnswerer>();
+        routings.put(WMSServerInfo.getCapabilitiesUrl(wms).getFile(), new FakeHttpd.HttpAnswerer(200, "OK", "application/vnd.ogc.wms_xml",
+                "<WMT_MS_Capabilities version=\"1.1.1\"><Capability/></WMT_MS_Capabilities>") {
+            @Override
+            protected boolean answer(PrintStream output) {
+                nbRequests.incrementAndGet();
+                return super.answer(output);
+            }
+        });
+        routings.put(WMSServerInfo.getCapabilitiesUrl(broken).getFile(), new FakeHttpd.HttpAnswerer(500, "Error", "text/plain", "boom") {
+            @Override
+            protected boolean answer(PrintStream output) {
+                nbRequests.incrementAndGet();
+                return super.answer(output);
+            }
+        });
+        final FakeHttpd httpd = new FakeHttpd(port, routings);
+        httpd.start();
+
+        final File directory = File.createTempFile("capabilities", "");
+        directory.delete();
+        final CapabilitiesCacheConfig settings = new CapabilitiesCacheConfig();
+        settings.setDirectory(directory.getAbsolutePath());
+        final Config config = new Config();
+        config.setCapabilitiesCache(settings);
+        final RenderingContext context = mock(RenderingContext.class);
+        when(context.getConfig()).thenReturn(config);
+        when(context.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+        try {
+            WMSServerInfo.clearCache();
+            assertEquals(false, WMSServerInfo.getInfo(wms, context).isTileCache());
+            WMSServerInfo.getInfo(wms, context);
+            assertEquals(1, nbRequests.get());
+
+            //after a restart, read from the disk
+            WMSServerInfo.clearCache();
+            WMSServerInfo.getInfo(wms, context);
+            assertEquals(1, nbRequests.get());
+
+            //close to the expiration, read again in the background
+            settings.setTtl(60);
+            settings.setRefreshAhead(60);
+            WMSServerInfo.clearCache();
+            WMSServerInfo.getInfo(wms, context);
+            for (int i = 0; i < 100 && nbRequests.get() < 2; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(2, nbRequests.get());
+
+            //the failures are kept for errorTtl
+            nbRequests.set(0);
+            assertEquals(false, WMSServerInfo.getInfo(broken, context).isTileCache());
+            WMSServerInfo.getInfo(broken, context);
+            assertEquals(1, nbRequests.get());
+            settings.setErrorTtl(0);
+            WMSServerInfo.clearCache();
+            WMSServerInfo.getInfo(broken, context);
+            WMSServerInfo.getInfo(broken, context);
+            assertEquals(3, nbRequests.get());
+        } finally {
+            WMSServerInfo.clearCache();
+            httpd.shutdown();
+            config.close();
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    public void testClearCacheOfConfig() throws Exception {
+        final int port = 8184;
+        final AtomicInteger nbRequests = new AtomicInteger(0);
+        final URI wms1 = new URI("http://localhost:" + port + "/wms1");
+        final URI wms2 = new URI("http://localhost:" + port + "/wms2");
+        Map<String, FakeHttpd.HttpAnswerer> routings = new HashMap<String, FakeHttpd.HttpAnswerer>();
+        for (URI wms : new URI[]{wms1, wms2}) {
+            routings.put(WMSServerInfo.getCapabilitiesUrl(wms).getFile(), new FakeHttpd.HttpAnswerer(200, "OK", "application/vnd.ogc.wms_xml",
+                    "<WMT_MS_Capabilities version=\"1.1.1\"><Capability/></WMT_MS_Capabilities>") {
+                @Override
+                protected boolean answer(PrintStream output) {
+                    nbRequests.incrementAndGet();
+                    return super.answer(output);
+                }
+            });
+        }
+        final FakeHttpd httpd = new FakeHttpd(port, routings);
+        httpd.start();
+
+        final Config config1 = new Config();
+        final RenderingContext context1 = mock(RenderingContext.class);
+        when(context1.getConfig()).thenReturn(config1);
+        when(context1.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+        final Config config2 = new Config();
+        final RenderingContext context2 = mock(RenderingContext.class);
+        when(context2.getConfig()).thenReturn(config2);
+        when(context2.getHeaders()).thenReturn(Collections.<String, String>emptyMap());
+        try {
+            WMSServerInfo.clearCache();
+            WMSServerInfo.getInfo(wms1, context1);
+            WMSServerInfo.getInfo(wms2, context2);
+            assertEquals(2, nbRequests.get());
+
+            //closing a config forgets only what it loaded
+            config1.close();
+            WMSServerInfo.getInfo(wms2, context2);
+            assertEquals(2, nbRequests.get());
+            WMSServerInfo.getInfo(wms1, context2);
+            assertEquals(3, nbRequests.get());
+        } finally {
+            WMSServerInfo.clearCache();
+            httpd.shutdown();
+            config2.close();
+        }
+    }
 }
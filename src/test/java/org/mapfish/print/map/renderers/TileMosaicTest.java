@@ -0,0 +1,69 @@
+package org.mapfish.print.map.renderers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+import org.mapfish.print.Transformer;
+import org.mapfish.print.utils.DistanceUnit;
+
+import com.lowagie.text.Image;
+
+public class TileMosaicTest {
+
+    @Test
+    public void testDraw() throws Exception {
+        //at 72 DPI, one bitmap pixel per point
+        Transformer transformer = new Transformer(0, 0, 100, 50, 1000, 72, DistanceUnit.fromString("m"), 0, null, false);
+        transformer.setMapPos(20, 30);
+        TileMosaic mosaic = new TileMosaic(transformer, null);
+        assertEquals(100, mosaic.getRaster().getWidth());
+        assertEquals(50, mosaic.getRaster().getHeight());
+
+        mosaic.draw(createTile(Color.GREEN, Color.RED), 0, 0, 50, 50);
+        mosaic.draw(createTile(Color.BLUE, Color.BLUE), 50, 0, 50, 50);
+
+        BufferedImage raster = mosaic.getRaster();
+        assertEquals(Color.GREEN.getRGB(), raster.getRGB(10, 5));
+        assertEquals(Color.RED.getRGB(), raster.getRGB(10, 45));
+        assertEquals(Color.BLUE.getRGB(), raster.getRGB(60, 5));
+        assertEquals(Color.BLUE.getRGB(), raster.getRGB(90, 45));
+
+        Image image = mosaic.toPdfImage();
+        assertEquals(100, image.getScaledWidth(), 0.001);
+        assertEquals(50, image.getScaledHeight(), 0.001);
+        assertEquals(20, image.getAbsoluteX(), 0.001);
+        assertEquals(30, image.getAbsoluteY(), 0.001);
+    }
+
+    @Test
+    public void testTooBig() throws Exception {
+        //A0 at 300 DPI
+        Transformer big = new Transformer(0, 0, 2384, 3370, 1000, 300, DistanceUnit.fromString("m"), 0, null, false);
+        assertFalse(TileMosaic.fits(big));
+        assertEquals(0L, TileMosaic.getMemory(big.getStraightBitmapW() * big.getStraightBitmapH()));
+
+        Transformer small = new Transformer(0, 0, 100, 50, 1000, 72, DistanceUnit.fromString("m"), 0, null, false);
+        assertTrue(TileMosaic.fits(small));
+        assertEquals(100 * 50 * 8L, TileMosaic.getMemory(100 * 50));
+    }
+
+    /**
+     * @return A 10x10 tile with the given colors at the top and at the bottom.
+     */
+    private BufferedImage createTile(Color top, Color bottom) {
+        BufferedImage tile = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = tile.createGraphics();
+        graphics.setColor(top);
+        graphics.fillRect(0, 0, 10, 5);
+        graphics.setColor(bottom);
+        graphics.fillRect(0, 5, 10, 5);
+        graphics.dispose();
+        return tile;
+    }
+}
@@ -0,0 +1,129 @@
+package org.mapfish.print.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.mapfish.print.config.Config;
+import org.mapfish.print.utils.PJsonObject;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void testEstimateMemoryWithMosaic() throws Exception {
+        final PJsonObject spec = new PJsonObject(new JSONObject("{dpi: 72, layers: [{}, {}]}"), "spec");
+        final Config config = new Config();
+        //A4 at 72 DPI, 4 bytes per pixel and per layer
+        final long plain = AdmissionController.estimateMemory(config, spec);
+        assertEquals(595 * 842 * 4 * 2, plain);
+
+        //plus the mosaic and its copy in iText for each layer
+        config.setTileMosaic(true);
+        assertEquals(plain * 3, AdmissionController.estimateMemory(config, spec));
+        config.close();
+    }
+
+    @Test
+    public void testMaxRunning() throws Exception {
+        final AdmissionController controller = new AdmissionController(1, 0, 1000L);
+        assertTrue(controller.tryEnter(10));
+        assertFalse(controller.tryEnter(10));
+        controller.leave(10);
+        assertTrue(controller.tryEnter(10));
+        controller.leave(10);
+        assertEquals(0, controller.getNbRunning());
+        assertEquals(0L, controller.getUsedMemory());
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        final AdmissionController controller = new AdmissionController(10, 0, 100L);
+        assertTrue(controller.tryEnter(60));
+        assertFalse(controller.tryEnter(60));
+        assertTrue(controller.tryEnter(40));
+        controller.leave(60);
+        controller.leave(40);
+
+        // too big, but nothing else is running
+        assertTrue(controller.tryEnter(1000));
+        controller.leave(1000);
+    }
+
+    @Test
+    public void testWaiting() throws Exception {
+        final AdmissionController controller = new AdmissionController(1, 1, 1000L);
+        assertTrue(controller.tryEnter(10));
+
+        final CountDownLatch entered = new CountDownLatch(1);
+        final Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    if (controller.tryEnter(10)) {
+                        entered.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        };
+        waiter.start();
+        while (controller.getNbWaiting() == 0) {
+            Thread.sleep(10);
+        }
+        assertFalse("the waiting queue is full", controller.tryEnter(10));
+        assertEquals(1, entered.getCount());
+
+        controller.leave(10);
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+        assertEquals(1, controller.getNbRunning());
+        controller.leave(10);
+        waiter.join();
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        final AdmissionController controller = new AdmissionController(1, 10, 1000L);
+        assertTrue(controller.tryEnter(10));
+
+        final StringBuffer order = new StringBuffer();
+        final Thread batch = createWaiter(controller, 1, "batch ", order);
+        batch.start();
+        while (controller.getNbWaiting() < 1) {
+            Thread.sleep(10);
+        }
+        final Thread interactive = createWaiter(controller, 4, "interactive ", order);
+        interactive.start();
+        while (controller.getNbWaiting() < 2) {
+            Thread.sleep(10);
+        }
+
+        //the batch print was waiting first, but the interactive one goes first
+        controller.leave(10);
+        interactive.join(10000);
+        batch.join(10000);
+        assertEquals("interactive batch ", order.toString());
+        assertEquals(0, controller.getNbRunning());
+    }
+
+    private Thread createWaiter(final AdmissionController controller, final int priority, final String name, final StringBuffer order) {
+        return new Thread() {
+            @Override
+            public void run() {
+                try {
+                    controller.enter(10, priority);
+                    order.append(name);
+                    Thread.sleep(50);
+                    controller.leave(10);
+                } catch (InterruptedException e) {
+                    // ignored
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,119 @@
+package org.mapfish.print.servlet;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.MapPrinter;
+
+public class BaseMapServletTest {
+    private File configFile;
+    private BaseMapServlet servlet;
+
+    @Before
+    public void setUp() throws Exception {
+        configFile = File.createTempFile("mapfish-print", ".yaml");
+        copy(new File("samples/config.yaml"), configFile);
+
+        ServletContext servletContext = mock(ServletContext.class);
+        ServletConfig servletConfig = mock(ServletConfig.class);
+        when(servletConfig.getServletContext()).thenReturn(servletContext);
+        when(servletConfig.getInitParameter("config")).thenReturn(configFile.getAbsolutePath());
+        when(servletConfig.getInitParameter("configCheckInterval")).thenReturn("0");
+        servlet = new BaseMapServlet() {
+            private static final long serialVersionUID = 1L;
+        };
+        servlet.init(servletConfig);
+    }
+
+    @After
+    public void tearDown() {
+        servlet.destroy();
+        configFile.delete();
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        final String app = configFile.getAbsolutePath();
+        MapPrinter printer = servlet.getMapPrinter(app);
+        assertSame(printer, servlet.getMapPrinter(app));
+        printer.release();
+
+        servlet.checkConfigFiles();
+        assertSame(printer, servlet.getMapPrinter(app));
+        printer.release();
+
+        configFile.setLastModified(configFile.lastModified() - 10000);
+        servlet.checkConfigFiles();
+        MapPrinter reloaded = servlet.getMapPrinter(app);
+        assertNotSame(printer, reloaded);
+        assertSame(reloaded, servlet.getMapPrinter(app));
+        reloaded.release();
+        reloaded.release();
+
+        //still used by a print started before the reload
+        assertTrue(printer.retain());
+        printer.release();
+        printer.release();
+        assertFalse(printer.retain());
+    }
+
+    @Test
+    public void testDefault() throws Exception {
+        MapPrinter printer = servlet.getMapPrinter(null);
+        printer.release();
+        assertSame(printer, servlet.getMapPrinter(null));
+        printer.release();
+        assertTrue(printer.retain());
+        printer.release();
+    }
+
+    @Test
+    public void testBrokenReload() throws Exception {
+        final String app = configFile.getAbsolutePath();
+        MapPrinter printer = servlet.getMapPrinter(app);
+
+        OutputStream out = new FileOutputStream(configFile);
+        out.write("layouts: [".getBytes("UTF-8"));
+        out.close();
+        configFile.setLastModified(configFile.lastModified() - 10000);
+        servlet.checkConfigFiles();
+        assertSame(printer, servlet.getMapPrinter(app));
+        printer.release();
+        printer.release();
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                byte[] buffer = new byte[4096];
+                int len;
+                while ((len = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package org.mapfish.print.servlet;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mapfish.print.servlet.MapPrinterServlet.TempFile.cleanUpName;
 
 import java.text.DateFormat;
@@ -45,6 +47,21 @@ public class MapPrinterServletTest {
         assertExpectedFormat(date, "filename.tif.pdf", "filename.tif", ".pdf");
     }
 
+    @Test
+    public void parseRangeTest() {
+        assertNull(MapPrinterServlet.parseRange(null, 100));
+        assertNull(MapPrinterServlet.parseRange("bytes=0-1,5-6", 100));
+        assertNull(MapPrinterServlet.parseRange("lines=0-1", 100));
+        assertNull(MapPrinterServlet.parseRange("bytes=abc", 100));
+        assertArrayEquals(new long[]{0, 9}, MapPrinterServlet.parseRange("bytes=0-9", 100));
+        assertArrayEquals(new long[]{10, 99}, MapPrinterServlet.parseRange("bytes=10-", 100));
+        assertArrayEquals(new long[]{10, 99}, MapPrinterServlet.parseRange("bytes=10-1000", 100));
+        assertArrayEquals(new long[]{90, 99}, MapPrinterServlet.parseRange("bytes=-10", 100));
+        assertArrayEquals(new long[]{0, 99}, MapPrinterServlet.parseRange("bytes=-1000", 100));
+        assertEquals(0, MapPrinterServlet.parseRange("bytes=100-", 100).length);
+        assertEquals(0, MapPrinterServlet.parseRange("bytes=-0", 100).length);
+    }
+
     private void assertExpectedFormat(Date date, String expected, String fileName, String suffix) {
         assertEquals(expected, MapPrinterServlet.TempFile.formatFileName(suffix, fileName, date));
     }
@@ -0,0 +1,170 @@
+package org.mapfish.print.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.json.JSONWriter;
+import org.junit.Test;
+import org.mapfish.print.MapPrinter;
+import org.mapfish.print.PrintProgress;
+import org.mapfish.print.output.OutputFormat;
+import org.mapfish.print.utils.PJsonObject;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class PrintJobTest {
+
+    @Test
+    public void testSuccess() throws Exception {
+        MapPrinter printer = mock(MapPrinter.class);
+        PrintJob job = new PrintJob("1.pdf", createTempFile(), createSpec(), Collections.<String, String>emptyMap(), printer, true, null, 0L);
+        assertEquals(PrintJob.Status.QUEUED, job.getStatus());
+        assertFalse(job.isFinished());
+
+        job.run();
+        job.waitForCompletion();
+
+        assertEquals(PrintJob.Status.DONE, job.getStatus());
+        assertTrue(job.isFinished());
+        assertTrue(job.getTempFile().exists());
+        verify(printer).release();
+
+        JSONObject status = getStatus(job);
+        assertEquals("done", status.getString("status"));
+        assertEquals(1.0, status.getDouble("progress"), 0.0001);
+        assertFalse(status.has("error"));
+
+        job.getTempFile().delete();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFailure() throws Exception {
+        MapPrinter printer = mock(MapPrinter.class);
+        when(printer.print(any(PJsonObject.class), any(OutputStream.class), any(Map.class), any(PrintProgress.class)))
+                .thenThrow(new RuntimeException("boom"));
+        PrintJob job = new PrintJob("2.pdf", createTempFile(), createSpec(), Collections.<String, String>emptyMap(), printer, false, null, 0L);
+
+        job.run();
+
+        assertEquals(PrintJob.Status.FAILED, job.getStatus());
+        assertNotNull(job.getError());
+        assertFalse(job.getTempFile().exists());
+
+        JSONObject status = getStatus(job);
+        assertEquals("failed", status.getString("status"));
+        assertTrue(status.getBoolean("done"));
+        assertTrue(status.getString("error").contains("boom"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCancelQueued() throws Exception {
+        MapPrinter printer = mock(MapPrinter.class);
+        PrintJob job = new PrintJob("3.pdf", createTempFile(), createSpec(), Collections.<String, String>emptyMap(), printer, true, null, 0L);
+
+        assertTrue(job.cancel());
+        job.run();
+
+        assertEquals(PrintJob.Status.CANCELLED, job.getStatus());
+        assertTrue(job.isFinished());
+        assertFalse(job.getTempFile().exists());
+        verify(printer, never()).print(any(PJsonObject.class), any(OutputStream.class), any(Map.class), any(PrintProgress.class));
+        verify(printer).release();
+        assertFalse(job.cancel());
+
+        JSONObject status = getStatus(job);
+        assertEquals("cancelled", status.getString("status"));
+        assertTrue(status.getBoolean("done"));
+        assertFalse(status.has("error"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCancelWaitingForAdmission() throws Exception {
+        MapPrinter printer = mock(MapPrinter.class);
+        AdmissionController admissionController = new AdmissionController(1, 10, Long.MAX_VALUE);
+        //another print is running
+        admissionController.enter(0L);
+        final PrintJob job = new PrintJob("5.pdf", createTempFile(), createSpec(), Collections.<String, String>emptyMap(), printer, false, admissionController, 0L);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                job.run();
+            }
+        };
+        thread.start();
+        for (int i = 0; i < 100 && admissionController.getNbWaiting() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, admissionController.getNbWaiting());
+
+        assertTrue(job.cancel());
+        thread.join(5000);
+
+        assertTrue(job.isFinished());
+        assertEquals(PrintJob.Status.CANCELLED, job.getStatus());
+        assertFalse(job.getTempFile().exists());
+        assertEquals(0, admissionController.getNbWaiting());
+        assertEquals(1, admissionController.getNbRunning());
+        verify(printer, never()).print(any(PJsonObject.class), any(OutputStream.class), any(Map.class), any(PrintProgress.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCancelRunning() throws Exception {
+        MapPrinter printer = mock(MapPrinter.class);
+        when(printer.print(any(PJsonObject.class), any(OutputStream.class), any(Map.class), any(PrintProgress.class)))
+                .thenAnswer(new Answer<Object>() {
+                    public Object answer(InvocationOnMock invocation) throws Throwable {
+                        //cancelled in the middle of the print, what's left is skipped
+                        ((PrintProgress) invocation.getArguments()[3]).cancel();
+                        return null;
+                    }
+                });
+        PrintJob job = new PrintJob("4.pdf", createTempFile(), createSpec(), Collections.<String, String>emptyMap(), printer, false, null, 0L);
+
+        job.run();
+
+        assertEquals(PrintJob.Status.CANCELLED, job.getStatus());
+        assertFalse(job.getTempFile().exists());
+        assertEquals("cancelled", getStatus(job).getString("status"));
+    }
+
+    private JSONObject getStatus(PrintJob job) throws Exception {
+        StringWriter writer = new StringWriter();
+        JSONWriter json = new JSONWriter(writer);
+        json.object();
+        job.printStatus(json);
+        json.endObject();
+        return new JSONObject(writer.toString());
+    }
+
+    private PJsonObject createSpec() throws Exception {
+        return new PJsonObject(new JSONObject("{\"layout\": \"A4 portrait\"}"), "spec");
+    }
+
+    private MapPrinterServlet.TempFile createTempFile() throws Exception {
+        OutputFormat format = mock(OutputFormat.class);
+        when(format.getFileSuffix()).thenReturn("pdf");
+        when(format.getContentType()).thenReturn("application/pdf");
+        File file = File.createTempFile("mapfish-print", ".pdf.printout");
+        file.deleteOnExit();
+        return new MapPrinterServlet.TempFile(file, createSpec(), format);
+    }
+}
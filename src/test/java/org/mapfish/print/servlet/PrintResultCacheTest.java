@@ -0,0 +1,126 @@
+package org.mapfish.print.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapfish.print.MapPrinter;
+import org.mapfish.print.utils.PJsonObject;
+
+public class PrintResultCacheTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("printCache", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        PrintResultCache cache = new PrintResultCache(dir, 1024, 60000, Collections.singleton("outputFilename"));
+        MapPrinter printer = mock(MapPrinter.class);
+        when(printer.getConfigLastModified()).thenReturn(1000L);
+        Map<String, String> headers = new HashMap<String, String>();
+
+        String key = cache.getKey(null, printer, spec("{layout: 'A4', pages: [{a: 1, b: 2.0}], outputFilename: 'toto'}"), headers);
+        assertEquals(key, cache.getKey(null, printer, spec("{pages: [{b: 2, a: 1}], layout: 'A4'}"), headers));
+        assertFalse(key.equals(cache.getKey(null, printer, spec("{layout: 'A4', pages: [{a: 1, b: 3}]}"), headers)));
+        assertFalse(key.equals(cache.getKey("app", printer, spec("{layout: 'A4', pages: [{a: 1, b: 2}]}"), headers)));
+
+        headers.put("Cookie", "session=1");
+        assertFalse(key.equals(cache.getKey(null, printer, spec("{layout: 'A4', pages: [{a: 1, b: 2}]}"), headers)));
+        headers.clear();
+
+        when(printer.getConfigLastModified()).thenReturn(2000L);
+        assertFalse(key.equals(cache.getKey(null, printer, spec("{layout: 'A4', pages: [{a: 1, b: 2}]}"), headers)));
+    }
+
+    @Test
+    public void testPutAndCopy() throws Exception {
+        PrintResultCache cache = new PrintResultCache(dir, 1024, 60000, null);
+        File target = File.createTempFile("print", ".pdf");
+        try {
+            assertFalse(cache.copyTo("abc", target));
+
+            cache.put("abc", createFile(100));
+            assertEquals(1, cache.size());
+            assertEquals(100, cache.getTotalSize());
+            assertTrue(cache.copyTo("abc", target));
+            assertEquals(100, target.length());
+        } finally {
+            target.delete();
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        PrintResultCache cache = new PrintResultCache(dir, 250, 60000, null);
+        cache.put("a", createFile(100));
+        cache.put("b", createFile(100));
+        FileInputStream in = cache.open("a");  //a is now the most recently used
+        assertNotNull(in);
+        in.close();
+        cache.put("c", createFile(100));
+
+        assertEquals(2, cache.size());
+        assertEquals(200, cache.getTotalSize());
+        assertNull(cache.open("b"));
+        assertEquals(2, dir.listFiles().length);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, dir.listFiles().length);
+    }
+
+    @Test
+    public void testTtl() throws Exception {
+        PrintResultCache cache = new PrintResultCache(dir, 1024, -1, null);
+        cache.put("a", createFile(10));
+        assertNull(cache.open("a"));
+        assertEquals(0, cache.size());
+    }
+
+    private PJsonObject spec(String json) throws Exception {
+        return new PJsonObject(new JSONObject(json), "spec");
+    }
+
+    private File createFile(int size) throws IOException {
+        File file = File.createTempFile("print", ".pdf");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[size]);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
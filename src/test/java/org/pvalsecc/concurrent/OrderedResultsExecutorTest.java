@@ -0,0 +1,250 @@
+package org.pvalsecc.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class OrderedResultsExecutorTest {
+
+    @Test
+    public void testOrder() throws Exception {
+        final OrderedResultsExecutor<Integer> executor = new OrderedResultsExecutor<Integer>(8, "test");
+        executor.start();
+        try {
+            final int nbTasks = 200;
+            final CountDownLatch done = new CountDownLatch(3);
+            final List<Collector> collectors = new ArrayList<Collector>();
+            for (int i = 0; i < 3; i++) {
+                collectors.add(new Collector(nbTasks, done));
+            }
+
+            final Random random = new Random(42);
+            for (int i = 0; i < nbTasks; i++) {
+                for (Collector collector : collectors) {
+                    final int value = i;
+                    final int sleep = random.nextInt(3);
+                    executor.addTask(new OrderedResultsExecutor.Task<Integer>() {
+                        public Integer process() {
+                            try {
+                                Thread.sleep(sleep);
+                            } catch (InterruptedException e) {
+                                // ignored
+                            }
+                            return value;
+                        }
+                    }, collector);
+                }
+            }
+
+            assertEquals(true, done.await(30, TimeUnit.SECONDS));
+            for (Collector collector : collectors) {
+                assertEquals(nbTasks, collector.results.size());
+                for (int i = 0; i < nbTasks; i++) {
+                    assertEquals(i, collector.results.get(i).intValue());
+                }
+                assertFalse("handle called in parallel", collector.parallelCall);
+            }
+
+            // a collector can be used again once all its results were handled
+            final CountDownLatch again = new CountDownLatch(1);
+            final Collector collector = collectors.get(0);
+            collector.results.clear();
+            collector.done = again;
+            collector.nbTasks = 1;
+            executor.addTask(new OrderedResultsExecutor.Task<Integer>() {
+                public Integer process() {
+                    return 0;
+                }
+            }, collector);
+            assertEquals(true, again.await(30, TimeUnit.SECONDS));
+        } finally {
+            executor.stop();
+        }
+    }
+
+    @Test
+    public void testFairness() throws Exception {
+        final OrderedResultsExecutor<Integer> executor = new OrderedResultsExecutor<Integer>(1, "test");
+        executor.start();
+        try {
+            final int nbTasks = 100;
+            final Collector big = new Collector(nbTasks, new CountDownLatch(1));
+            final CountDownLatch smallDone = new CountDownLatch(1);
+            final Collector small = new Collector(1, smallDone);
+            final OrderedResultsExecutor.Task<Integer> slowTask = new OrderedResultsExecutor.Task<Integer>() {
+                public Integer process() {
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        // ignored
+                    }
+                    return 0;
+                }
+            };
+            for (int i = 0; i < nbTasks; i++) {
+                executor.addTask(slowTask, big);
+            }
+            executor.addTask(slowTask, small);
+
+            assertEquals(true, smallDone.await(30, TimeUnit.SECONDS));
+            synchronized (big.results) {
+                assertTrue("the small collector had to wait for " + big.results.size() + " tasks",
+                        big.results.size() < 10);
+            }
+            assertEquals(true, big.done.await(30, TimeUnit.SECONDS));
+        } finally {
+            executor.stop();
+        }
+    }
+
+    @Test
+    public void testWeights() throws Exception {
+        final OrderedResultsExecutor<Integer> executor = new OrderedResultsExecutor<Integer>(1, "test");
+        final StringBuffer order = new StringBuffer();
+        final int nbTasks = 10;
+        final Collector batch = new Collector(nbTasks, new CountDownLatch(1));
+        final Collector interactive = new Collector(nbTasks, new CountDownLatch(1));
+        for (int i = 0; i < nbTasks; i++) {
+            executor.addTask(new OrderedResultsExecutor.Task<Integer>() {
+                public Integer process() {
+                    order.append('b');
+                    return 0;
+                }
+            }, batch, 1);
+            executor.addTask(new OrderedResultsExecutor.Task<Integer>() {
+                public Integer process() {
+                    order.append('I');
+                    return 0;
+                }
+            }, interactive, 3);
+        }
+        executor.start();
+        try {
+            assertEquals(true, batch.done.await(30, TimeUnit.SECONDS));
+            assertEquals(true, interactive.done.await(30, TimeUnit.SECONDS));
+            assertEquals("bIIIbIIIbIIIbIbbbbbb", order.toString());
+        } finally {
+            executor.stop();
+        }
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        final OrderedResultsExecutor<Integer> executor = new OrderedResultsExecutor<Integer>(1, "test");
+        executor.start();
+        final ScheduledExecutorService io = Executors.newSingleThreadScheduledExecutor();
+        try {
+            final int nbTasks = 50;
+            final Collector collector = new Collector(nbTasks, new CountDownLatch(1));
+            final Random random = new Random(42);
+            final long start = System.currentTimeMillis();
+            for (int i = 0; i < nbTasks; i++) {
+                final int value = i;
+                final int delay = 100 + random.nextInt(100);
+                executor.addTask(new AsyncTask() {
+                    public void start(final OrderedResultsExecutor.Continuation<Integer> continuation) {
+                        //simulates an I/O done without the executor thread
+                        io.schedule(new Runnable() {
+                            public void run() {
+                                continuation.resume(new Runnable() {
+                                    public void run() {
+                                        continuation.done(value);
+                                    }
+                                });
+                            }
+                        }, delay, TimeUnit.MILLISECONDS);
+                    }
+                }, collector);
+            }
+
+            assertEquals(true, collector.done.await(30, TimeUnit.SECONDS));
+            final long duration = System.currentTimeMillis() - start;
+            assertTrue("took " + duration + "ms", duration < nbTasks * 100 / 2);
+            for (int i = 0; i < nbTasks; i++) {
+                assertEquals(i, collector.results.get(i).intValue());
+            }
+            assertFalse("handle called in parallel", collector.parallelCall);
+        } finally {
+            io.shutdown();
+            executor.stop();
+        }
+    }
+
+    @Test
+    public void testThreadPerTask() throws Exception {
+        final int nbTasks = 100;
+        final OrderedResultsExecutor<Integer> executor = new OrderedResultsExecutor<Integer>(nbTasks, "test",
+                new VirtualThreadFactory("test"));
+        executor.start();
+        try {
+            final Collector collector = new Collector(nbTasks, new CountDownLatch(1));
+            final long start = System.currentTimeMillis();
+            for (int i = 0; i < nbTasks; i++) {
+                final int value = i;
+                executor.addTask(new OrderedResultsExecutor.Task<Integer>() {
+                    public Integer process() {
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException e) {
+                            // ignored
+                        }
+                        return value;
+                    }
+                }, collector);
+            }
+
+            assertEquals(true, collector.done.await(30, TimeUnit.SECONDS));
+            final long duration = System.currentTimeMillis() - start;
+            assertTrue("took " + duration + "ms", duration < nbTasks * 100 / 4);
+            for (int i = 0; i < nbTasks; i++) {
+                assertEquals(i, collector.results.get(i).intValue());
+            }
+            assertFalse("handle called in parallel", collector.parallelCall);
+        } finally {
+            executor.stop();
+        }
+    }
+
+    private static abstract class AsyncTask implements OrderedResultsExecutor.AsyncTask<Integer> {
+        public Integer process() {
+            throw new IllegalStateException("not called for the asynchronous tasks");
+        }
+    }
+
+    private static class Collector implements OrderedResultsExecutor.ResultCollector<Integer> {
+        private final List<Integer> results = new ArrayList<Integer>();
+        private final AtomicBoolean inHandle = new AtomicBoolean(false);
+        private volatile boolean parallelCall = false;
+        private volatile int nbTasks;
+        private volatile CountDownLatch done;
+
+        public Collector(int nbTasks, CountDownLatch done) {
+            this.nbTasks = nbTasks;
+            this.done = done;
+        }
+
+        public void handle(Integer result) {
+            if (!inHandle.compareAndSet(false, true)) {
+                parallelCall = true;
+            }
+            synchronized (results) {
+                results.add(result);
+            }
+            inHandle.set(false);
+            if (results.size() == nbTasks) {
+                done.countDown();
+            }
+        }
+    }
+}